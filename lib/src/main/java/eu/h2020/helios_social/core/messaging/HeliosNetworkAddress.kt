@@ -11,6 +11,15 @@ data class HeliosNetworkAddress(
         var publicKey: String? = null,
         var networkAddress: MutableList<String>? = null) {
 
+    /**
+     * Key of the peer in [eu.h2020.helios_social.core.messaging.util.PeerLaneExecutor] lanes:
+     * the network id, or the ego id if the network id is not known. Sends and receives to
+     * the same peer must use the same key to stay ordered.
+     */
+    fun getLaneKey(): String? {
+        return if (!networkId.isNullOrEmpty()) networkId else egoId
+    }
+
     companion object {
         private val gsonBuilder = GsonBuilder()
         private val gson: Gson
@@ -18,5 +18,8 @@ public class MessagingConstants {
     public static final String HELIOS_CHAT_SYNC_PROTO = "/helios/chat/sync/0.0.1";
     public static final String HELIOS_SYNC_DM_ACK_PROTO = "/helios/chat/sync/dm/ack";
     public static final String HELIOS_STATUS_PROTO = "/helios/status/0.0.1";
+    public static final String HELIOS_DM_ACK_PROTO = "/helios/chat/ack/0.0.1";
+    // Protocol of pub-sub messages packaged into HeliosMessagePart
+    public static final String PUB_SUB_PACKAGED = "PUB_SUB_PACKAGED";
 
 }
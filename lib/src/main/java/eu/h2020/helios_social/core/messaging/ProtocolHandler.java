@@ -0,0 +1,176 @@
+package eu.h2020.helios_social.core.messaging;
+
+import eu.h2020.helios_social.core.messaging.data.JsonMessageConverter;
+
+/**
+ * Declares how direct messages of a protocol are handled by
+ * {@link ReliableHeliosMessagingNodejsLibp2pImpl}: how the payload is encoded, whether the
+ * messages are stored and synced, which traffic class lanes they use and what is forwarded to
+ * the receiver of the protocol. Handlers are registered to {@link ProtocolRegistry}.
+ */
+public class ProtocolHandler {
+    /**
+     * Encoding of the payload on the wire.
+     */
+    public enum Codec {
+        /** Payload is sent and received as is. */
+        RAW,
+        /** Payload is sent as the message text of a HeliosMessagePart in JSON format. */
+        MESSAGE_PART
+    }
+
+    /**
+     * What is forwarded to the receiver registered for the protocol.
+     */
+    public enum Forwarding {
+        /** Nothing, the protocol is handled internally. */
+        NONE,
+        /** The payload, i.e., the message text of a HeliosMessagePart. */
+        PAYLOAD,
+        /** The data as received. */
+        WIRE
+    }
+
+    /**
+     * Internal handling of received messages, called before the message is stored or
+     * forwarded to the receiver.
+     */
+    public interface InboundHook {
+        void onReceive(HeliosNetworkAddress address, String protocolId, byte[] data);
+    }
+
+    /**
+     * Kind of a received message. A message received while an earlier one of the same kind
+     * from the same peer is still queued is dropped, e.g., repeated status messages.
+     */
+    public interface CoalesceKey {
+        /**
+         * @param data Data as received
+         * @return kind of the message, or null if it is never dropped
+         */
+        String of(byte[] data);
+    }
+
+    /**
+     * Messages of {@link Codec#MESSAGE_PART} are of the same kind if their message text is
+     * the same.
+     */
+    public static final CoalesceKey BY_MESSAGE_TEXT = data -> JsonMessageConverter.getInstance().peekMessageText(data);
+
+    private final String mProtocolId;
+    private final Codec mCodec;
+    private final boolean mStored;
+    private final boolean mSynced;
+    private final Forwarding mForwarding;
+    private final TrafficClass mTrafficClass;
+    private final InboundHook mInboundHook;
+    private final CoalesceKey mCoalesceKey;
+
+    /**
+     * Constructor for an application protocol. Messages are sent as HeliosMessageParts and
+     * the message text is forwarded to the receiver.
+     *
+     * @param protocolId Protocol id
+     * @param stored true if sent and received messages are stored
+     * @param synced true if undelivered messages are resent later. Requires stored.
+     */
+    public ProtocolHandler(String protocolId, boolean stored, boolean synced) {
+        this(protocolId, Codec.MESSAGE_PART, stored, synced, Forwarding.PAYLOAD,
+                TrafficClass.of(protocolId), null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param protocolId Protocol id
+     * @param codec {@link Codec} of the payload
+     * @param stored true if sent and received messages are stored. Only for
+     *               {@link Codec#MESSAGE_PART}.
+     * @param synced true if undelivered messages are resent later. Requires stored.
+     * @param forwarding {@link Forwarding} to the receiver of the protocol
+     * @param trafficClass {@link TrafficClass} of the messages
+     * @param inboundHook Internal handling of received messages, or null.
+     */
+    public ProtocolHandler(String protocolId, Codec codec, boolean stored, boolean synced,
+                           Forwarding forwarding, TrafficClass trafficClass, InboundHook inboundHook) {
+        this(protocolId, codec, stored, synced, forwarding, trafficClass, inboundHook, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param protocolId Protocol id
+     * @param codec {@link Codec} of the payload
+     * @param stored true if sent and received messages are stored. Only for
+     *               {@link Codec#MESSAGE_PART}.
+     * @param synced true if undelivered messages are resent later. Requires stored.
+     * @param forwarding {@link Forwarding} to the receiver of the protocol
+     * @param trafficClass {@link TrafficClass} of the messages
+     * @param inboundHook Internal handling of received messages, or null.
+     * @param coalesceKey {@link CoalesceKey} of received messages, or null if none are dropped.
+     */
+    public ProtocolHandler(String protocolId, Codec codec, boolean stored, boolean synced,
+                           Forwarding forwarding, TrafficClass trafficClass, InboundHook inboundHook,
+                           CoalesceKey coalesceKey) {
+        if (protocolId == null || codec == null || forwarding == null || trafficClass == null) {
+            throw new IllegalArgumentException("protocolId, codec, forwarding and trafficClass are required");
+        }
+        mProtocolId = protocolId;
+        mCodec = codec;
+        mStored = stored && codec == Codec.MESSAGE_PART;
+        mSynced = synced && mStored;
+        mForwarding = forwarding;
+        mTrafficClass = trafficClass;
+        mInboundHook = inboundHook;
+        mCoalesceKey = coalesceKey;
+    }
+
+    public String getProtocolId() {
+        return mProtocolId;
+    }
+
+    public Codec getCodec() {
+        return mCodec;
+    }
+
+    public boolean isStored() {
+        return mStored;
+    }
+
+    public boolean isSynced() {
+        return mSynced;
+    }
+
+    public Forwarding getForwarding() {
+        return mForwarding;
+    }
+
+    public TrafficClass getTrafficClass() {
+        return mTrafficClass;
+    }
+
+    public InboundHook getInboundHook() {
+        return mInboundHook;
+    }
+
+    /**
+     * Get the key to coalesce a received message with queued messages of the same sender.
+     *
+     * @param data Data as received
+     * @return key, or null if the message is not coalesced
+     */
+    public String getCoalesceKey(byte[] data) {
+        String kind = mCoalesceKey == null ? null : mCoalesceKey.of(data);
+        return kind == null ? null : mProtocolId + "\n" + kind;
+    }
+
+    /**
+     * Check if the protocol is handled internally, i.e., it is always received, whether or
+     * not the application has registered a receiver for it.
+     *
+     * @return true if the protocol has an inbound hook
+     */
+    public boolean isInternal() {
+        return mInboundHook != null;
+    }
+}
@@ -0,0 +1,28 @@
+package eu.h2020.helios_social.core.messaging;
+
+/**
+ * Interceptor of direct message data on the wire, e.g., for metrics or compression.
+ * Interceptors are added to {@link ProtocolRegistry}. Outbound data passes the interceptors in
+ * the order they were added, inbound data in the reverse order.
+ */
+public interface ProtocolInterceptor {
+    /**
+     * Called before data is sent to a peer.
+     *
+     * @param address HeliosNetworkAddress of the peer
+     * @param protocolId Protocol id
+     * @param data Data to send
+     * @return data to send, or null to drop the message
+     */
+    byte[] onSend(HeliosNetworkAddress address, String protocolId, byte[] data);
+
+    /**
+     * Called when data has been received from a peer, before it is handled.
+     *
+     * @param address HeliosNetworkAddress of the peer
+     * @param protocolId Protocol id
+     * @param data Received data
+     * @return data to handle, or null to drop the message
+     */
+    byte[] onReceive(HeliosNetworkAddress address, String protocolId, byte[] data);
+}
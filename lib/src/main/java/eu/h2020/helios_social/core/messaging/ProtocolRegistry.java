@@ -0,0 +1,118 @@
+package eu.h2020.helios_social.core.messaging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Singleton registry of direct message {@link ProtocolHandler}s, keyed by protocol id, and of
+ * {@link ProtocolInterceptor}s applied to all direct messages.
+ *
+ * Protocols without a registered handler are handled as application protocols that are
+ * stored and synced, see {@link ProtocolHandler#ProtocolHandler(String, boolean, boolean)}.
+ */
+public class ProtocolRegistry {
+    private static ProtocolRegistry sInstance = new ProtocolRegistry();
+    private final ConcurrentHashMap<String, ProtocolHandler> mHandlers = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<ProtocolInterceptor> mInterceptors = new CopyOnWriteArrayList<>();
+
+    ProtocolRegistry() {
+        register(new ProtocolHandler(MessagingConstants.HELIOS_DIRECT_CHAT_PROTO, ProtocolHandler.Codec.RAW,
+                false, false, ProtocolHandler.Forwarding.WIRE, TrafficClass.CHAT, null));
+        register(new ProtocolHandler(MessagingConstants.HELIOS_DIRECT_CHAT_FILE_PROTO, ProtocolHandler.Codec.RAW,
+                false, false, ProtocolHandler.Forwarding.WIRE, TrafficClass.BULK, null));
+    }
+
+    public static ProtocolRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Register a handler. Replaces any earlier handler of the same protocol.
+     *
+     * @param handler {@link ProtocolHandler}
+     */
+    public void register(ProtocolHandler handler) {
+        mHandlers.put(handler.getProtocolId(), handler);
+    }
+
+    /**
+     * Remove the handler of a protocol. The protocol is handled as an application protocol.
+     *
+     * @param protocolId Protocol id
+     */
+    public void unregister(String protocolId) {
+        mHandlers.remove(protocolId);
+    }
+
+    /**
+     * Get the handler of a protocol.
+     *
+     * @param protocolId Protocol id
+     * @return registered {@link ProtocolHandler}, or the default handler of an application
+     * protocol.
+     */
+    public ProtocolHandler get(String protocolId) {
+        ProtocolHandler handler = mHandlers.get(protocolId);
+        if (handler == null) {
+            handler = new ProtocolHandler(protocolId, true, true);
+        }
+        return handler;
+    }
+
+    /**
+     * Get the registered handlers.
+     *
+     * @return list of {@link ProtocolHandler}s
+     */
+    public Collection<ProtocolHandler> getHandlers() {
+        return new ArrayList<>(mHandlers.values());
+    }
+
+    public void addInterceptor(ProtocolInterceptor interceptor) {
+        mInterceptors.add(interceptor);
+    }
+
+    public void removeInterceptor(ProtocolInterceptor interceptor) {
+        mInterceptors.remove(interceptor);
+    }
+
+    /**
+     * Pass outbound data through the interceptors, in the order they were added.
+     *
+     * @param address HeliosNetworkAddress of the peer
+     * @param protocolId Protocol id
+     * @param data Data to send
+     * @return data to send, or null if an interceptor dropped the message
+     */
+    public byte[] interceptSend(HeliosNetworkAddress address, String protocolId, byte[] data) {
+        for (ProtocolInterceptor interceptor : mInterceptors) {
+            if (data == null) {
+                break;
+            }
+            data = interceptor.onSend(address, protocolId, data);
+        }
+        return data;
+    }
+
+    /**
+     * Pass inbound data through the interceptors, in the reverse order.
+     *
+     * @param address HeliosNetworkAddress of the peer
+     * @param protocolId Protocol id
+     * @param data Received data
+     * @return data to handle, or null if an interceptor dropped the message
+     */
+    public byte[] interceptReceive(HeliosNetworkAddress address, String protocolId, byte[] data) {
+        if (mInterceptors.isEmpty()) {
+            return data;
+        }
+        List<ProtocolInterceptor> interceptors = new ArrayList<>(mInterceptors);
+        for (int i = interceptors.size() - 1; i >= 0 && data != null; i--) {
+            data = interceptors.get(i).onReceive(address, protocolId, data);
+        }
+        return data;
+    }
+}
@@ -8,43 +8,53 @@ import com.google.gson.JsonParseException;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.h2020.helios_social.core.messaging.data.HeliosConversation;
 import eu.h2020.helios_social.core.messaging.data.HeliosConversationList;
 import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePartEnvelope;
 import eu.h2020.helios_social.core.messaging.data.HeliosTopicContext;
 import eu.h2020.helios_social.core.messaging.data.JsonMessageConverter;
+import eu.h2020.helios_social.core.messaging.data.SequenceTracker;
 import eu.h2020.helios_social.core.messaging.data.StorageHelperClass;
 import eu.h2020.helios_social.core.messaging.db.HeliosMessageStore;
-import eu.h2020.helios_social.core.messaging.sync.HeartbeatDataException;
+import eu.h2020.helios_social.core.messaging.sync.DeliveryAckManager;
 import eu.h2020.helios_social.core.messaging.sync.HeartbeatManager;
+import eu.h2020.helios_social.core.messaging.sync.HeartbeatReconciler;
+import eu.h2020.helios_social.core.messaging.sync.HistoryBackfill;
+import eu.h2020.helios_social.core.messaging.sync.PeerCircuitBreaker;
+import eu.h2020.helios_social.core.messaging.sync.PeerUnreachableException;
 import eu.h2020.helios_social.core.messaging.sync.SyncManager;
 import eu.h2020.helios_social.core.messaging.HeliosDirectMessaging;
 import eu.h2020.helios_social.core.messaging.HeliosEgoTag;
 import eu.h2020.helios_social.core.messaging.HeliosMessageLibp2pPubSub;
 import eu.h2020.helios_social.core.messaging.HeliosMessagingReceiver;
 import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
+import eu.h2020.helios_social.core.messaging.nodejs.HeliosDirectMessagingNodejsLibp2p;
 import eu.h2020.helios_social.core.messaging.nodejs.HeliosMessagingNodejsLibp2p;
+import eu.h2020.helios_social.core.messaging.util.BufferPool;
+import eu.h2020.helios_social.core.messaging.util.HybridLogicalClock;
+import eu.h2020.helios_social.core.messaging.util.PeerLaneExecutor;
 import kotlin.Unit;
 
-import static eu.h2020.helios_social.core.messaging.MessagingConstants.HELIOS_DIRECT_CHAT_FILE_PROTO;
-import static eu.h2020.helios_social.core.messaging.MessagingConstants.HELIOS_DIRECT_CHAT_PROTO;
 import static eu.h2020.helios_social.core.messaging.MessagingConstants.HELIOS_CHAT_SYNC_PROTO;
 import static eu.h2020.helios_social.core.messaging.MessagingConstants.HELIOS_STATUS_PROTO;
+import static eu.h2020.helios_social.core.messaging.MessagingConstants.HELIOS_DM_ACK_PROTO;
+import static eu.h2020.helios_social.core.messaging.MessagingConstants.PUB_SUB_PACKAGED;
 
 public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging, HeliosDirectMessaging, HeliosConnect {
     private static final String TAG = "ReliableHeliosMessagingNodejsLibp2pImpl";
@@ -54,11 +64,12 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
     private boolean mConnected = false;
 
     private HeartbeatManager mHeartbeatManager = HeartbeatManager.getInstance();
+    private HeartbeatReconciler mHeartbeatReconciler = new HeartbeatReconciler(mHeartbeatManager, SyncManager.getInstance());
+    private HistoryBackfill mHistoryBackfill = new HistoryBackfill(SyncManager.getInstance());
     private HeliosIdentityInfo mHeliosIdentityInfo = null;
 
     private static final String STATUS_IS_ONLINE = "STATUS_IS_ONLINE";
     private static final String ACK_STATUS_IS_ONLINE = "ACK_STATUS_IS_ONLINE";
-    private static final String PUB_SUB_PACKAGED = "PUB_SUB_PACKAGED";
     private HashMap<String, HeliosMessageListener> mSubscribers = new HashMap<>();
     private HashMap<String, HeliosMessagingReceiver> mDirectMessageReceivers = new HashMap<>();
     private HeliosReceiver mHeliosReceiver = new HeliosReceiver();
@@ -68,12 +79,47 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
     private boolean mFilterHeartbeatMsg = true;
     private boolean mFilterJoinMsg = true;
     private boolean mRegisteredSyncReceiver = false;
-    private ExecutorService mExecutorService;
+    // Serial send lanes per peer, separately for each traffic class.
+    private final EnumMap<TrafficClass, PeerLaneExecutor> mSendLanes = new EnumMap<>(TrafficClass.class);
+    private final ProtocolRegistry mProtocolRegistry = ProtocolRegistry.getInstance();
+    // UUIDs of recently published messages, to drop their echoes
+    private static final int MAX_PUBLISHED_UUIDS = 256;
+    private static final long PUBLISHED_ECHO_TIMEOUT = 5 * 60 * 1000; // 5 minutes
+    private final ConcurrentHashMap<String, Long> mPublishedUuids = new ConcurrentHashMap<>();
+    // Last sequence numbers of own messages by sender UUID and topic
+    private final ConcurrentHashMap<String, AtomicLong> mSequences = new ConcurrentHashMap<>();
+    private volatile boolean mSequenceNumbers = true;
+
+    private ReliableHeliosMessagingNodejsLibp2pImpl() {
+        // Internal protocols, received whether or not the application has a receiver for them
+        mProtocolRegistry.register(new ProtocolHandler(HELIOS_CHAT_SYNC_PROTO, ProtocolHandler.Codec.RAW,
+                false, false, ProtocolHandler.Forwarding.NONE, TrafficClass.SYNC,
+                (address, protocolId, data) -> handleSyncProto(address, data)));
+        mProtocolRegistry.register(new ProtocolHandler(HELIOS_STATUS_PROTO, ProtocolHandler.Codec.MESSAGE_PART,
+                false, false, ProtocolHandler.Forwarding.WIRE, TrafficClass.CONTROL,
+                (address, protocolId, data) -> handleStatusProtoFromPeer(address, data),
+                ProtocolHandler.BY_MESSAGE_TEXT));
+        mProtocolRegistry.register(new ProtocolHandler(HELIOS_DM_ACK_PROTO, ProtocolHandler.Codec.RAW,
+                false, false, ProtocolHandler.Forwarding.NONE, TrafficClass.CONTROL,
+                (address, protocolId, data) -> DeliveryAckManager.getInstance().onAcksReceived(
+                        address.getNetworkId(), DeliveryAckManager.decodeAcks(data))));
+    }
 
     public void setFilterJoinMsg(boolean filter) {
         mFilterJoinMsg = filter;
     }
 
+    /**
+     * Number own published messages per topic, so that receivers can request exactly the
+     * messages they have missed. Enabled by default. Receivers that do not know the numbers
+     * ignore them.
+     *
+     * @param enabled true to number published messages
+     */
+    public void setSequenceNumbers(boolean enabled) {
+        mSequenceNumbers = enabled;
+    }
+
     /**
      * Get instance of this class.
      *
@@ -92,10 +138,18 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         Log.d(TAG, "setContext");
         mContext = ctx;
 
-        mExecutorService = Executors.newFixedThreadPool(7);
+        synchronized (mSendLanes) {
+            if (mSendLanes.isEmpty()) {
+                mSendLanes.put(TrafficClass.CONTROL, new PeerLaneExecutor("helios-send-control", 2));
+                mSendLanes.put(TrafficClass.CHAT, new PeerLaneExecutor("helios-send", 5));
+                mSendLanes.put(TrafficClass.SYNC, new PeerLaneExecutor("helios-send-sync", 2));
+                mSendLanes.put(TrafficClass.BULK, new PeerLaneExecutor("helios-send-bulk", 1));
+            }
+        }
         mChatMessageStore = new HeliosMessageStore(mContext);
         // Expire by default stored messages older than a week
         mChatMessageStore.deleteExpiredEntries(ZonedDateTime.now().minusDays(7).toInstant().toEpochMilli());
+        DeliveryAckManager.getInstance().init(mHeliosDirectMessaging, mChatMessageStore);
 
         // TODO: Is it possible to move this to private constructor?
         mHeartbeatManager.init();
@@ -127,6 +181,7 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         HeliosMessagePart msg = new HeliosMessagePart(message.getMessage(), mHeliosIdentityInfo.getNickname(), mHeliosIdentityInfo.getUserUUID(), topic.getTopicName(), ts, messageType);
         msg.senderNetworkId = mHeliosMessagingNodejs.getPeerId();
         msg.mediaFileName = message.getMediaFileName();
+        msg.hlc = HybridLogicalClock.getInstance().now();
 
         return msg;
     }
@@ -138,6 +193,7 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         String stringData = new String(data, StandardCharsets.UTF_8);
         HeliosMessagePart msg = new HeliosMessagePart(stringData, mHeliosIdentityInfo.getNickname(), mHeliosIdentityInfo.getUserUUID(), address.getNetworkId(), ts);
         msg.senderNetworkId = mHeliosMessagingNodejs.getPeerId();
+        msg.hlc = HybridLogicalClock.getInstance().now();
         return msg;
     }
 
@@ -263,6 +319,8 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
      */
     public void stop() {
         mHeartbeatManager.stop();
+        mHeartbeatReconciler.reset();
+        mHistoryBackfill.reset();
         mChatMessageStore.closeDatabase();
 
         mHeliosMessagingNodejs.stop();
@@ -283,6 +341,9 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         Log.d(TAG, "mHeliosMessagingNodejs.connect done");
 
         addDirectReceiverInternal();
+        for (String topicName : new ArrayList<>(mSubscribers.keySet())) {
+            seedSequence(topicName, mHeliosIdentityInfo.getUserUUID());
+        }
         Log.d(TAG, "mHeartbeatManager.start");
         mHeartbeatManager.start(this, this, mHeliosIdentityInfo);
 
@@ -303,40 +364,96 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
     @Override
     public void publish(HeliosTopic topic, HeliosMessage message) throws HeliosMessagingException {
         HeliosMessagePart msgPart = null;
+        HeliosMessage published = message;
 
-        // Check if message is already a HeliosMessagePart
-        try {
-            msgPart = JsonMessageConverter.getInstance().readHeliosMessagePart(message.getMessage());
-        } catch (Exception e) {
-            throw new HeliosMessagingException("JSON parsing failed", e);
+        // Typed message part, no need to parse the text to find out what it is
+        if (message instanceof HeliosMessagePartEnvelope) {
+            msgPart = ((HeliosMessagePartEnvelope) message).getMessagePart();
+        } else {
+            // Check if message is already a HeliosMessagePart
+            try {
+                msgPart = JsonMessageConverter.getInstance().readHeliosMessagePart(message.getMessage());
+            } catch (Exception e) {
+                throw new HeliosMessagingException("JSON parsing failed", e);
+            }
         }
 
         // If provided message.getMessage() was already a HeliosMessagePart
         if (isRepackNeeded(msgPart)) {
             // Publish was not a HeliosMessagePart, creating new HeliosMessagePart first
-            HeliosMessagePart heliosMessagePart = createHeliosMessagePart(topic, message);
-            String mediaFileName = heliosMessagePart.mediaFileName;
-            heliosMessagePart.mediaFileName = null;
-            heliosMessagePart.protocol = PUB_SUB_PACKAGED;
-            HeliosMessage newHeliosMessage = new HeliosMessage(JsonMessageConverter.getInstance().convertToJson(heliosMessagePart), mediaFileName);
-            mHeliosMessagingNodejs.publish(topic, newHeliosMessage);
-        } else {
-            // Already HeliosMessagePart message
-            mHeliosMessagingNodejs.publish(topic, message);
+            msgPart = createHeliosMessagePart(topic, message);
+            msgPart.mediaFileName = null;
+            msgPart.protocol = PUB_SUB_PACKAGED;
+            published = new HeliosMessagePartEnvelope(msgPart, null, message.getMediaFileName());
         }
 
-        // Store to DB not required here.
-        // Message is saved when the client receives it themselves from the subscribe (even local)
-        // Otherwise, we could check in there for duplicate and store here.
+        AtomicLong sequence = null;
+        boolean numbered = isNumbered(msgPart);
+        if (numbered || msgPart.hlc == null) {
+            // The part of an envelope is not modified, a copy is stamped
+            msgPart = new HeliosMessagePart(msgPart);
+            if (numbered) {
+                sequence = getSequence(topic.getTopicName(), msgPart.senderUUID);
+                msgPart.seq = sequence.incrementAndGet();
+            }
+            if (msgPart.hlc == null) {
+                // Ordered by our clock, also heartbeats to carry the clock to peers
+                msgPart.hlc = HybridLogicalClock.getInstance().now();
+            }
+            published = new HeliosMessagePartEnvelope(msgPart, null, message.getMediaFileName());
+        }
+
+        // The message is delivered locally right away, and its echo from the network dropped.
+        String uuid = msgPart.getUuid();
+        if (uuid != null) {
+            long now = System.currentTimeMillis();
+            forgetOldPublishedUuids(now);
+            mPublishedUuids.put(uuid, now);
+        }
+        try {
+            mHeliosMessagingNodejs.publish(topic, published);
+        } catch (RuntimeException e) {
+            if (uuid != null) {
+                mPublishedUuids.remove(uuid);
+            }
+            if (sequence != null && !sequence.compareAndSet(msgPart.seq, msgPart.seq - 1)) {
+                // Taken by another message, the number is never sent so it is not waited for
+                HeliosConversation conversation = HeliosConversationList.getInstance().getConversation(topic.getTopicName());
+                if (conversation != null) {
+                    conversation.skipSequenceGap(new SequenceTracker.Gap(msgPart.senderUUID, msgPart.seq, msgPart.seq));
+                }
+            }
+            throw e;
+        }
+        deliverPublishedMessage(topic, msgPart, message.getMediaFileName());
+    }
+
+    /**
+     * Publish (publish-subscribe) a ready-made message part in topic. The part is serialized
+     * once and not parsed back, see {@link HeliosMessagePartEnvelope}. An own chat message is
+     * given a sequence number, see {@link #setSequenceNumbers(boolean)}, and a message without
+     * a {@link HybridLogicalClock} time stamp is given one.
+     * @param topic {@link HeliosTopic} Group topic
+     * @param message {@link HeliosMessagePart} to be published. Must not be modified after this.
+     * @throws HeliosMessagingException thrown if publishing fails
+     */
+    public void publish(HeliosTopic topic, HeliosMessagePart message) throws HeliosMessagingException {
+        publish(topic, new HeliosMessagePartEnvelope(message));
     }
 
     @Override
     public void subscribe(HeliosTopic topic, HeliosMessageListener listener) throws HeliosMessagingException {
         // Create topic structure if not existing
         joinNewTopic(topic.getTopicName());
+        if (mHeliosIdentityInfo != null) {
+            // Seeded now, so that publishing does not wait for the message store
+            seedSequence(topic.getTopicName(), mHeliosIdentityInfo.getUserUUID());
+        }
 
         // Subscribe internally to this topic, to provide sync
         mHeliosMessagingNodejs.subscribe(topic, mHeliosReceiver);
+        // Catch up with the history from the first peer seen in the topic
+        mHistoryBackfill.backfillOnPeerSeen(topic.getTopicName());
 
         // Add to map of subscribes to send message to actual listener
         mSubscribers.put(topic.getTopicName(), listener);
@@ -353,13 +470,9 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         Log.d(TAG, "joinNewTopic :" + topic);
 
         if (!TextUtils.isEmpty(topic)) {
-            ArrayList<HeliosTopicContext> arrTopics = HeliosConversationList.getInstance().getTopics();
-            for (int i = 0; i < arrTopics.size(); i++) {
-                HeliosTopicContext tpc = arrTopics.get(i);
-                if (tpc.topic.equals(topic)) {
-                    Log.d(TAG, "Topic already exists, not creating a new:" + topic);
-                    return;
-                }
+            if (HeliosConversationList.getInstance().getConversation(topic) != null) {
+                Log.d(TAG, "Topic already exists, not creating a new:" + topic);
+                return;
             }
             createConversation(topic);
         }
@@ -392,13 +505,15 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
      */
     private void addDirectReceiverInternal() {
         Log.d(TAG, "check add internal receiver for sync");
-        // register internal protocols
-        // HELIOS_CHAT_SYNC_PROTO
+        // register internal protocols, e.g., HELIOS_CHAT_SYNC_PROTO
         if (!mRegisteredSyncReceiver) {
-            Log.d(TAG, "adding receiver to HELIOS_CHAT_SYNC_PROTO");
-            // Register to real messagingNodeJs with internal receiver
-            mHeliosMessagingNodejs.getDirectMessaging().addReceiver(HELIOS_CHAT_SYNC_PROTO, mDirectHeliosMessagingReceiver);
-            mHeliosMessagingNodejs.getDirectMessaging().addReceiver(HELIOS_STATUS_PROTO, mDirectHeliosMessagingReceiver);
+            for (ProtocolHandler handler : mProtocolRegistry.getHandlers()) {
+                if (handler.isInternal()) {
+                    Log.d(TAG, "adding internal receiver to " + handler.getProtocolId());
+                    // Register to real messagingNodeJs with internal receiver
+                    mHeliosMessagingNodejs.getDirectMessaging().addReceiver(handler.getProtocolId(), mDirectHeliosMessagingReceiver);
+                }
+            }
             mRegisteredSyncReceiver = true;
         }
     }
@@ -463,76 +578,188 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
 
     @Override
     public void sendTo(@NotNull HeliosNetworkAddress address, @NotNull String protocolId, @NotNull byte[] data) {
-        // Handle specific protocolIds separately
-        if (HELIOS_DIRECT_CHAT_FILE_PROTO.equals(protocolId)) {
-            Log.d(TAG, "sendTo protocolId: HELIOS_DIRECT_CHAT_FILE_PROTO");
-            mHeliosMessagingNodejs.getDirectMessaging().sendTo(address, protocolId, data);
-        } else if (HELIOS_DIRECT_CHAT_PROTO.equals(protocolId)) {
-            Log.d(TAG, "sendTo protocolId: HELIOS_DIRECT_CHAT_PROTO");
-            mHeliosMessagingNodejs.getDirectMessaging().sendTo(address, protocolId, data);
-        } else if (HELIOS_STATUS_PROTO.equals(protocolId)) {
-            Log.d(TAG, "sendTo protocolId: HELIOS_STATUS_PROTO");
-            // Convert to HeliosMessagePart
-            HeliosMessagePart heliosMessagePart = createDMHeliosMessagePart(address, data);
-            heliosMessagePart.protocol = protocolId;
+        Log.d(TAG, "sendTo protocolId: " + protocolId);
+        ProtocolHandler handler = mProtocolRegistry.get(protocolId);
+        if (handler.getCodec() == ProtocolHandler.Codec.RAW) {
+            sendToPeer(address, protocolId, data);
+            return;
+        }
 
-            try {
-                Log.d(TAG, "sendTo status start.");
-                mHeliosMessagingNodejs.getDirectMessaging().sendTo(address, protocolId, JsonMessageConverter.getInstance().convertToJson(heliosMessagePart).getBytes());
-                Log.d(TAG, "sendTo status done.");
-            } catch (Exception e) {
-                e.printStackTrace();
-                Log.e(TAG, "HELIOS_STATUS_PROTO sendTo ERROR:" + e.toString());
-                //throw e;
-            }
-        } else {
-            Log.d(TAG, "sendTo protocolId: " + protocolId);
-            // Handle other protocols (non-TestClient protocols)
-
-            // Convert to HeliosMessagePart in order to sync
-            HeliosMessagePart heliosMessagePart = createDMHeliosMessagePart(address, data);
-            heliosMessagePart.protocol = protocolId;
-
-            // Now sending the message using mHeliosMessagingNodejs connection. The code is using
-            // sendTo method that does not always throw an exeception. That is why we will first
-            // store the message as undelivered and change the flag (msgReceived) as true, which
-            // means that the message is considered to be delivered.
-            // TODO: Exception handling cleanup is needed. Catch-part is never run?
-            try {
-                Log.d(TAG, "sendTo start.");
-                heliosMessagePart.msgReceived = false;
-                mChatMessageStore.addMessage(heliosMessagePart);
-                Log.d(TAG, "sendTo preliminary store.");
-                mHeliosMessagingNodejs.getDirectMessaging().sendTo(address, protocolId, JsonMessageConverter.getInstance().convertToJson(heliosMessagePart).getBytes());
-                Log.d(TAG, "sendTo done.");
-                heliosMessagePart.msgReceived = true;
-                mChatMessageStore.addMessage(heliosMessagePart);
-                Log.d(TAG, "sendTo final store.");
-            } catch (Exception e) {
-                e.printStackTrace();
-                Log.e(TAG, "sendTo ERROR:" + e.toString());
-                heliosMessagePart.msgReceived = false;
-                mChatMessageStore.addMessage(heliosMessagePart);
-                Log.e(TAG, "sendTo error occurred, saved message for later sync.");
-                throw e;
-            }
+        // Convert to HeliosMessagePart
+        HeliosMessagePart heliosMessagePart = createDMHeliosMessagePart(address, data);
+        heliosMessagePart.protocol = protocolId;
+
+        if (!handler.isStored()) {
+            sendToPeer(address, protocolId, JsonMessageConverter.getInstance().convertToJson(heliosMessagePart).getBytes());
+            return;
         }
 
-        // TODO: Do we have undelivered messages to address? Should we try to sync?
+        if (!handler.isSynced()) {
+            // Stored once sent, a failed message is not resent
+            sendToPeer(address, protocolId, JsonMessageConverter.getInstance().convertToJson(heliosMessagePart).getBytes());
+            heliosMessagePart.msgReceived = true;
+            mChatMessageStore.addMessage(heliosMessagePart);
+            return;
+        }
+
+        // Now sending the message using mHeliosMessagingNodejs connection. We will first
+        // store the message as undelivered, and after sending update its delivery state in
+        // place. If the send fails, or the peer is known to be unreachable, the message
+        // stays undelivered for later sync.
+        // Peers that ack messages have to ack this one too before it is considered delivered.
+        heliosMessagePart.msgReceived = false;
+        mChatMessageStore.addMessage(heliosMessagePart);
+        Log.d(TAG, "sendTo preliminary store.");
+        DeliveryAckManager ackManager = DeliveryAckManager.getInstance();
+        boolean awaitAck = ackManager.isAckCapable(address.getNetworkId());
+        // Piggyback pending acks to this peer. Also tells the peer that we handle acks.
+        heliosMessagePart.acks = ackManager.takeAcks(address.getNetworkId());
+        try {
+            Log.d(TAG, "sendTo start.");
+            sendToPeer(address, protocolId, JsonMessageConverter.getInstance().convertToJson(heliosMessagePart).getBytes());
+            Log.d(TAG, "sendTo done.");
+            heliosMessagePart.msgReceived = !awaitAck;
+            mChatMessageStore.recordSendAttempt(heliosMessagePart.getUuid(), true, awaitAck);
+            Log.d(TAG, "sendTo final store.");
+        } catch (PeerUnreachableException e) {
+            Log.d(TAG, "sendTo peer unreachable, saved message for later sync.");
+            ackManager.returnAcks(address.getNetworkId(), heliosMessagePart.acks);
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.e(TAG, "sendTo ERROR:" + e.toString());
+            ackManager.returnAcks(address.getNetworkId(), heliosMessagePart.acks);
+            mChatMessageStore.recordSendAttempt(heliosMessagePart.getUuid(), false);
+            Log.e(TAG, "sendTo error occurred, saved message for later sync.");
+            throw e;
+        }
+    }
+
+    /**
+     * Send data to a peer through the protocol interceptors and {@link PeerCircuitBreaker}, so
+     * that sends to a peer that has repeatedly failed fail fast instead of waiting for the node
+     * to time out.
+     *
+     * @param address HeliosNetworkAddress of the peer
+     * @param protocolId Protocol id
+     * @param data Data to send
+     * @throws PeerUnreachableException the circuit to the peer is open.
+     */
+    private void sendToPeer(HeliosNetworkAddress address, String protocolId, byte[] data) {
+        byte[] wireData = mProtocolRegistry.interceptSend(address, protocolId, data);
+        if (wireData == null) {
+            Log.d(TAG, "sendTo dropped by interceptor: " + protocolId);
+            return;
+        }
+        PeerCircuitBreaker.getInstance().call(address.getNetworkId(),
+                () -> mHeliosMessagingNodejs.getDirectMessaging().sendTo(address, protocolId, wireData));
     }
 
     @NotNull
     @Override
     public Future<Unit> sendToFuture(@NotNull HeliosNetworkAddress address, @NotNull String protocolId, @NotNull byte[] data) {
         Log.d(TAG, "sendToFuture protocolId:" + protocolId);
-        // Use internal executor to be able to store and sync these messages.
-        @SuppressWarnings("unchecked")
-        Future<Unit> res = (Future<Unit>) mExecutorService.submit(() -> {
+        // Use internal executor to be able to store and sync these messages. Messages of the
+        // same traffic class to the same peer are sent in order, one at a time. Identical
+        // control messages still waiting in the lane are sent only once.
+        TrafficClass trafficClass = mProtocolRegistry.get(protocolId).getTrafficClass();
+        String coalesceKey = trafficClass == TrafficClass.CONTROL ?
+                protocolId + "\n" + new String(data, StandardCharsets.UTF_8) : null;
+        return mSendLanes.get(trafficClass).submit(address.getLaneKey(), coalesceKey, () -> {
             Log.d(TAG, "sendToFuture start protocolId:" + protocolId);
             sendTo(address, protocolId, data);
             Log.d(TAG, "sendToFuture done protocolId:" + protocolId);
+            return Unit.INSTANCE;
         });
-        return res;
+    }
+
+    /**
+     * Keep only the newest messages of each conversation in memory. Older messages are read
+     * from the message store when needed, e.g., to sync them. Call after
+     * {@link #setContext(Context)}.
+     *
+     * @param maxMessages Maximum number of messages in memory per conversation, or 0 for no limit
+     * @param maxBytes Approximate maximum size of messages in memory per conversation, or 0 for
+     *                 no limit
+     */
+    public void setConversationWindow(int maxMessages, long maxBytes) {
+        boolean windowed = maxMessages > 0 || maxBytes > 0;
+        HeliosConversationList.getInstance().setMessageWindow(windowed ? mChatMessageStore : null,
+                maxMessages, maxBytes);
+    }
+
+    /**
+     * Keep the messages of group conversations in memory within a budget. The least recently
+     * used conversations are evicted from memory and reloaded from the message store when they
+     * are used again. Call after {@link #setContext(Context)}.
+     *
+     * @param maxBytes Approximate maximum size of messages in memory, or 0 for no limit
+     */
+    public void setConversationMemoryBudget(long maxBytes) {
+        HeliosConversationList.getInstance().setMemoryBudget(maxBytes > 0 ? mChatMessageStore : null,
+                maxBytes);
+    }
+
+    /**
+     * Request the history of a group from a peer, e.g., to catch up after joining. The messages
+     * are requested in pages, newest first, merged to the conversation and the message store
+     * and shown to the subscriber of the topic. History is also requested automatically from
+     * the first peer seen in a subscribed topic.
+     *
+     * @param address HeliosNetworkAddress of the peer
+     * @param topic Topic name
+     * @param beforeMillis Epoch milliseconds, only older messages are requested
+     * @param pageSize Number of messages per page, at most 200
+     * @param maxPages Maximum number of pages
+     */
+    public void requestHistory(HeliosNetworkAddress address, String topic, long beforeMillis, int pageSize, int maxPages) {
+        mHistoryBackfill.request(address, topic, beforeMillis, pageSize, maxPages);
+    }
+
+    /**
+     * Get the registry of direct message protocol handlers, e.g., to opt an application
+     * protocol out of storage or sync, or to add interceptors.
+     *
+     * @return {@link ProtocolRegistry}
+     */
+    public ProtocolRegistry getProtocolRegistry() {
+        return mProtocolRegistry;
+    }
+
+    /**
+     * Get the number of direct messages of a traffic class that are queued, either waiting to
+     * be sent or received and waiting to be handled.
+     *
+     * @param trafficClass {@link TrafficClass}
+     * @return queue depth
+     */
+    public int getQueueDepth(@NotNull TrafficClass trafficClass) {
+        PeerLaneExecutor sendLanes = mSendLanes.get(trafficClass);
+        return (sendLanes == null ? 0 : sendLanes.getQueuedTaskCount()) +
+                HeliosDirectMessagingNodejsLibp2p.Companion.getReceiveLanes().get(trafficClass).getQueuedTaskCount();
+    }
+
+    /**
+     * Get the number of direct messages of a traffic class that were shed, i.e., coalesced
+     * with an identical queued message or dropped because the queue was full.
+     *
+     * @param trafficClass {@link TrafficClass}
+     * @return number of shed messages
+     */
+    public long getShedCount(@NotNull TrafficClass trafficClass) {
+        PeerLaneExecutor sendLanes = mSendLanes.get(trafficClass);
+        return (sendLanes == null ? 0 : sendLanes.getShedCount()) +
+                HeliosDirectMessagingNodejsLibp2p.Companion.getReceiveLanes().get(trafficClass).getShedCount();
+    }
+
+    /**
+     * Get the number of received heartbeats that were dropped because they were stale or
+     * superseded by a newer heartbeat from the same sender.
+     *
+     * @return number of shed heartbeats
+     */
+    public long getShedHeartbeatCount() {
+        return mHeartbeatReconciler.getShedCount();
     }
 
     @Override
@@ -543,8 +770,7 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         mDirectMessageReceivers.put(protocolId, receiver);
 
         // Let's not add any internal receivers again to mHeliosMessagingNodejs
-        if(!HELIOS_CHAT_SYNC_PROTO.equals(protocolId) &&
-                !HELIOS_STATUS_PROTO.equals(protocolId) ) {
+        if (!mProtocolRegistry.get(protocolId).isInternal()) {
 
             // Register new real receivers to real messagingNodeJs with internal receiver
             mHeliosMessagingNodejs.getDirectMessaging().addReceiver(protocolId, mDirectHeliosMessagingReceiver);
@@ -558,8 +784,7 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         Log.d(TAG, "removeReceiver protocolId:" + protocolId);
 
         // Let's not remove any internal receivers from mHeliosMessagingNodejs
-        if(!HELIOS_CHAT_SYNC_PROTO.equals(protocolId) &&
-              !HELIOS_STATUS_PROTO.equals(protocolId) ) {
+        if (!mProtocolRegistry.get(protocolId).isInternal()) {
 
             // Remove real receiver
             mHeliosMessagingNodejs.getDirectMessaging().removeReceiver(protocolId);
@@ -584,9 +809,7 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         Log.d(TAG, "Received status from " + address.getNetworkId());
         // TODO: Should handle lightly since this is called by node thread.
         try {
-            String json = new String(data, StandardCharsets.UTF_8);
-            //Log.d(TAG, "Received status: " + json);
-            HeliosMessagePart msg = JsonMessageConverter.getInstance().readHeliosMessagePart(json);
+            HeliosMessagePart msg = JsonMessageConverter.getInstance().readHeliosMessagePart(data);
             Log.d(TAG, "Received status msg: " + msg.msg);
             Log.d(TAG, "Received status senderNetworkId: " + msg.senderNetworkId);
             //Log.d(TAG, "Received status msg.senderUUID: " + msg.senderUUID);
@@ -639,35 +862,15 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         public void receiveMessage(@NotNull HeliosNetworkAddress address, @NotNull String protocolId, @NotNull FileDescriptor fd) {
             Log.d(TAG, "receiveMessage FileDescriptor()");
 
-            ByteArrayOutputStream ba = new ByteArrayOutputStream();
-            try (FileInputStream fileInputStream = new FileInputStream(fd)) {
-                int byteRead;
-                while ((byteRead = fileInputStream.read()) != -1) {
-                    ba.write(byteRead);
-                }
+            byte[] data;
+            try {
+                data = BufferPool.getInstance().readAll(fd);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.e(TAG, "receiveMessage error reading payload: " + e.toString());
+                return;
             }
 
-            receiveMessage(address, protocolId, ba.toByteArray());
-        }
-
-        private void handleSyncProto(HeliosNetworkAddress address, byte[] data) {
-            Log.d(TAG, "Received resend sync from " + address.getNetworkId());
-            try {
-                String json = new String(data, StandardCharsets.UTF_8);
-                Log.d(TAG, "Received resend sync: " + json);
-                HeliosMessagePart msg = JsonMessageConverter.getInstance().readHeliosMessagePart(json);
-                HeliosTopic topic = new HeliosTopic(msg.to, "");
-                HeliosMessage tempMsg = new HeliosMessage(json);
-
-                // Forward synced msg to regular pub-sub handler
-                mHeliosReceiver.showMessage(topic, tempMsg);
-
-                mHeartbeatManager.updateUserOnline(address, msg);
-            } catch (RuntimeException e) {
-                Log.e(TAG, "Error handling resend sync proto: " + e.getMessage());
-            }
+            receiveMessage(address, protocolId, data);
         }
 
         @Override
@@ -675,43 +878,46 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
             Log.d(TAG, "receiveMessage()");
             Log.d(TAG, "address:" + address);
             Log.d(TAG, "protocolId:" + protocolId);
-            /*String temp = new String(data, StandardCharsets.UTF_8);
-            if (!protocolId.equals(HELIOS_DIRECT_CHAT_FILE_PROTO)) {
-                Log.d(TAG, "receiveMessage temp message: " + temp);
-            }*/
             Log.d(TAG, "-------------------------------");
             // TODO: How to handle if we don't "know" the user? Handle known users?
 
-            // Sync messages received in DM are handled separately
-            if (HELIOS_CHAT_SYNC_PROTO.equals(protocolId)) {
-                handleSyncProto(address, data);
+            data = mProtocolRegistry.interceptReceive(address, protocolId, data);
+            if (data == null) {
+                Log.d(TAG, "receiveMessage dropped by interceptor: " + protocolId);
                 return;
             }
 
-            // Status messages received in DM are handled separately
-            if (HELIOS_STATUS_PROTO.equals(protocolId)) {
-                handleStatusProtoFromPeer(address, data);
-                // TODO: Now sending status to any registered listeners, but not storing to db.
-                //return;
+            // Internal protocols, e.g., sync, status and acks, are handled first
+            ProtocolHandler handler = mProtocolRegistry.get(protocolId);
+            if (handler.getInboundHook() != null) {
+                handler.getInboundHook().onReceive(address, protocolId, data);
             }
 
-            String message = null;
-            if (!MessagingConstants.HELIOS_DIRECT_CHAT_FILE_PROTO.equals(protocolId) &&
-                    !MessagingConstants.HELIOS_DIRECT_CHAT_PROTO.equals(protocolId) &&
-                    !MessagingConstants.HELIOS_STATUS_PROTO.equals(protocolId)){
+            byte[] forwardData = data;
+            if (handler.getCodec() == ProtocolHandler.Codec.MESSAGE_PART &&
+                    (handler.isStored() || handler.getForwarding() == ProtocolHandler.Forwarding.PAYLOAD)) {
                 try {
                     Log.d(TAG, "receiveMessage protocolId:" + protocolId + ", address:" + address.getNetworkId());
-                    String messageJson = new String(data, StandardCharsets.UTF_8);
-                    HeliosMessagePart msgPart = JsonMessageConverter.getInstance().readHeliosMessagePart(messageJson);
+                    HeliosMessagePart msgPart = JsonMessageConverter.getInstance().readHeliosMessagePart(data);
                     msgPart.msgReceived = true;
-                    message = msgPart.msg;
-                    HeliosTopic topic = new HeliosTopic("DIRECT_PROTO", "");
+                    if (msgPart.msg != null) {
+                        forwardData = msgPart.msg.getBytes();
+                    }
                     Log.d(TAG, "receiveMessage protocolId:" + protocolId + ", msgPart.msg:" + msgPart.msg);
 
                     // We could save online status in the beginning, from HeliosNetworkAddress & ts only.
                     mHeartbeatManager.updateUserOnline(address, msgPart);
-                    
-                    storeHeliosMessage(topic, msgPart, true, address);
+
+                    if (handler.isStored()) {
+                        storeHeliosMessage(new HeliosTopic("DIRECT_PROTO", ""), msgPart, true, address);
+                    }
+
+                    // Acks piggybacked by the sender, and ack this message in turn
+                    if (msgPart.acks != null) {
+                        DeliveryAckManager ackManager = DeliveryAckManager.getInstance();
+                        ackManager.onAcksReceived(address.getNetworkId(), msgPart.acks);
+                        ackManager.onMessageReceived(address.getNetworkId(), msgPart.getUuid(), true);
+                    }
                 } catch (Exception e) {
                     // TODO: notify error
                     Log.e(TAG, "receiveMessage Exception while reading HeliosMessagePart: " + e.toString());
@@ -719,31 +925,87 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
                 }
             }
 
+            if (handler.getForwarding() == ProtocolHandler.Forwarding.NONE) {
+                return;
+            }
+
             // Check the internal receivers, though already stored above if known
-            if (mDirectMessageReceivers.containsKey(protocolId)) {
-                Log.d(TAG, "receiveMessage Internal receiver found for protocolId: " + protocolId);
-                //TODO: do we need to extract original data?
-
-                // Don't forward HELIOS_DIRECT_CHAT_FILE_PROTO now
-                if (HELIOS_DIRECT_CHAT_PROTO.equals(protocolId)) {
-                    Log.d(TAG, "receiveMessage forwarding message.data: " + HELIOS_DIRECT_CHAT_PROTO);
-                    mDirectMessageReceivers.get(protocolId).receiveMessage(address, protocolId, data);
-                } else if (HELIOS_DIRECT_CHAT_FILE_PROTO.equals(protocolId)) {
-                    Log.d(TAG, "receiveMessage forwarding HELIOS_DIRECT_CHAT_FILE_PROTO: " + protocolId);
-                    mDirectMessageReceivers.get(protocolId).receiveMessage(address, protocolId, data);
-                } else if(HELIOS_STATUS_PROTO.equals(protocolId)) {
-                    Log.d(TAG, "receiveMessage status forwarding: " + protocolId);
-                    mDirectMessageReceivers.get(protocolId).receiveMessage(address, protocolId, data);
-                } else {
-                    Log.d(TAG, "receiveMessage forwarding message.getBytes: " + protocolId);
-                    mDirectMessageReceivers.get(protocolId).receiveMessage(address, protocolId, message.getBytes());
-                }
+            HeliosMessagingReceiver receiver = mDirectMessageReceivers.get(protocolId);
+            if (receiver != null) {
+                Log.d(TAG, "receiveMessage forwarding to receiver of protocolId: " + protocolId);
+                receiver.receiveMessage(address, protocolId, forwardData);
             } else {
                 Log.d(TAG, "receiveMessage No internal receiver for protocolId: " + protocolId);
             }
         }
     };
 
+    /**
+     * Handle HELIOS_CHAT_SYNC_PROTO received in DM internally. Resent pub-sub messages are
+     * forwarded to the regular pub-sub handler, sync requests to the heartbeat reconciler.
+     *
+     * @param address HeliosNetworkAddress from which we got the message
+     * @param data data - JSON HeliosMessagePart
+     */
+    private void handleSyncProto(HeliosNetworkAddress address, byte[] data) {
+        Log.d(TAG, "Received resend sync from " + address.getNetworkId());
+        try {
+            HeliosMessagePart msg = JsonMessageConverter.getInstance().readHeliosMessagePart(data);
+            if (HistoryBackfill.isHistoryRequest(msg)) {
+                mHistoryBackfill.submitRequest(msg, address);
+                return;
+            } else if (msg.messageType == HeliosMessagePart.MessagePartType.SYNC_REQUEST) {
+                // The peer asks us to resend messages it lacks
+                mHeartbeatReconciler.submitSyncRequest(msg, address);
+                return;
+            } else if (msg.messageType == HeliosMessagePart.MessagePartType.SYNC_RESPONSE) {
+                handleHistoryResponse(address, msg);
+                return;
+            }
+            Log.d(TAG, "Received resend sync: " + msg.getUuid());
+            HeliosTopic topic = new HeliosTopic(msg.to, "");
+
+            // Forward synced msg to regular pub-sub handler, already decoded
+            mHeliosReceiver.showMessage(topic, new HeliosMessagePartEnvelope(msg));
+
+            mHeartbeatManager.updateUserOnline(address, msg);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error handling resend sync proto: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Merge a page of history received from a peer to the conversation and the message store,
+     * and show the new messages to the subscriber of the topic.
+     *
+     * @param address HeliosNetworkAddress from which we got the history
+     * @param response SYNC_RESPONSE message
+     */
+    private void handleHistoryResponse(HeliosNetworkAddress address, HeliosMessagePart response) {
+        List<HeliosMessagePart> batch = mHistoryBackfill.readResponse(response, address);
+        if (batch == null) {
+            return;
+        }
+        List<HeliosMessagePart> added = Collections.emptyList();
+        HeliosConversation conversation = HeliosConversationList.getInstance().getConversation(response.to);
+        if (conversation != null) {
+            // Only messages of the topic
+            batch.removeIf(msg -> msg.messageType != HeliosMessagePart.MessagePartType.MESSAGE ||
+                    !response.to.equals(msg.to));
+            added = conversation.addMessages(batch);
+            Log.d(TAG, "Received history of " + response.to + " from " + address.getNetworkId() +
+                    ": " + batch.size() + ", new: " + added.size());
+            if (!added.isEmpty()) {
+                mChatMessageStore.addMessages(added);
+                HeliosTopic topic = new HeliosTopic(response.to, "");
+                for (HeliosMessagePart msg : added) {
+                    showMessageToListener(topic, msg, new HeliosMessagePartEnvelope(msg));
+                }
+            }
+        }
+        mHistoryBackfill.onBatchMerged(response, address, batch, added.size());
+    }
+
     @Override
     public boolean isConnected() {
         return mConnected;
@@ -758,35 +1020,19 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         public void showMessage(HeliosTopic heliosTopic, HeliosMessage heliosMessage) {
             Log.d(TAG, "HeliosReceiver showMessage() topic:" + heliosTopic.getTopicName());
 
-            // Convert message part from JSON
+            // Own messages are already stored and shown when published
+            if (isPublishedEcho(heliosMessage)) {
+                Log.d(TAG, "showMessage dropping echo of own message");
+                return;
+            }
+
+            // Convert message part from JSON, unless it was already decoded
             HeliosMessagePart msg = null;
-            HeliosNetworkAddress networkAddress = null;
             try {
-                msg = JsonMessageConverter.getInstance().readHeliosMessagePart(heliosMessage.getMessage());
-
-                // In case there was a media file, update its name accordingly to local saved file.
-                if (null != heliosMessage.getMediaFileName()) {
-                    msg.mediaFileName = heliosMessage.getMediaFileName();
-                }
-
-                if (msg.messageType == HeliosMessagePart.MessagePartType.PUBSUB_SYNC_RESEND) {
-                    // FIXME: allows anyone to impersonate anyone else
-                    // FIXME: this duplicates UserNetworkMap handling below
-                    // Do we handle msg.senderNetworkId etc.
-
-                    msg.messageType = msg.originalType;
-                    // RESEND only for group / pubsub messages
-                } else if (heliosMessage instanceof HeliosMessageLibp2pPubSub) {
-                    // TODO fix better handling for direct/sub messages.
-                    // TODO fix handling users not seen before -- privacy.
-
-                    HeliosMessageLibp2pPubSub msgPubSub = (HeliosMessageLibp2pPubSub) heliosMessage;
-                    networkAddress = msgPubSub.getNetworkAddress();
-                    String networkId = msgPubSub.getNetworkAddress().getNetworkId();
-                    Log.d(TAG, "getNetworkAddress:" + msgPubSub.getNetworkAddress());
-                    //Log.d(TAG, "getNetworkId:" + networkId);
-                    //Log.d(TAG, "getMessage:" + msgPubSub.getMessage());
-                    msg.senderNetworkId = networkId;
+                if (heliosMessage instanceof HeliosMessagePartEnvelope) {
+                    msg = ((HeliosMessagePartEnvelope) heliosMessage).getMessagePart();
+                } else {
+                    msg = JsonMessageConverter.getInstance().readHeliosMessagePart(heliosMessage.getMessage());
                 }
             } catch (JsonParseException e) {
                 // TODO: notify error
@@ -794,32 +1040,68 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
                 return;
             }
 
+            showMessagePart(heliosTopic, msg, heliosMessage);
+        }
+
+        /**
+         * Handle a decoded pub-sub message: store it, analyze it for sync and deliver it to the
+         * subscriber. The message is not decoded again on the way.
+         *
+         * @param heliosTopic Topic of the message
+         * @param msg Decoded message part
+         * @param heliosMessage Message as received
+         */
+        private void showMessagePart(HeliosTopic heliosTopic, HeliosMessagePart msg, HeliosMessage heliosMessage) {
+            HeliosNetworkAddress networkAddress = null;
+
+            // In case there was a media file, update its name accordingly to local saved file.
+            if (null != heliosMessage.getMediaFileName()) {
+                msg.mediaFileName = heliosMessage.getMediaFileName();
+            }
+
+            if (msg.messageType == HeliosMessagePart.MessagePartType.PUBSUB_SYNC_RESEND) {
+                // FIXME: allows anyone to impersonate anyone else
+                // FIXME: this duplicates UserNetworkMap handling below
+                // Do we handle msg.senderNetworkId etc.
+
+                msg.messageType = msg.originalType;
+                // RESEND only for group / pubsub messages
+            } else if (heliosMessage instanceof HeliosMessageLibp2pPubSub) {
+                // TODO fix better handling for direct/sub messages.
+                // TODO fix handling users not seen before -- privacy.
+
+                HeliosMessageLibp2pPubSub msgPubSub = (HeliosMessageLibp2pPubSub) heliosMessage;
+                networkAddress = msgPubSub.getNetworkAddress();
+                String networkId = msgPubSub.getNetworkAddress().getNetworkId();
+                Log.d(TAG, "getNetworkAddress:" + msgPubSub.getNetworkAddress());
+                //Log.d(TAG, "getNetworkId:" + networkId);
+                //Log.d(TAG, "getMessage:" + msgPubSub.getMessage());
+                msg.senderNetworkId = networkId;
+            }
+
             // We received a message, store it internally.
             boolean stored = storeHeliosMessage(heliosTopic, msg, false, networkAddress);
             // Pass the info to listeners if stored (not duplicate)
             if (stored) {
-                // Update mediaFileName reference if needed.
+                // Update mediaFileName reference if needed. JSON is only created if the
+                // listener asks for it.
                 if (null != heliosMessage.getMediaFileName()) {
-                    HeliosMessage newMsg = new HeliosMessage(JsonMessageConverter.getInstance().convertToJson(msg), heliosMessage.getMediaFileName());
-                    showMessageToListener(heliosTopic, newMsg);
+                    showMessageToListener(heliosTopic, msg, new HeliosMessagePartEnvelope(msg, null, heliosMessage.getMediaFileName()));
                 } else {
-                    showMessageToListener(heliosTopic, heliosMessage);
+                    showMessageToListener(heliosTopic, msg, heliosMessage);
                 }
             }
         }
     }
 
-    private void showMessageToListener(HeliosTopic topic, HeliosMessage message) {
+    private void showMessageToListener(HeliosTopic topic, HeliosMessagePart msgPart, HeliosMessage message) {
         try {
             //TODO: Not handling multiple same topics with separate subscribes
             // Handle normal messages for any subscriber of this topic.
             // Fetch the correct listener
             if (mSubscribers.containsKey(topic.getTopicName())) {
                 Log.d(TAG, "showMessageToListener: Internal receiver found for topic: " + topic.getTopicName());
-
-                HeliosMessagePart msgPart = JsonMessageConverter.getInstance().readHeliosMessagePart(message.getMessage());
                 Log.d(TAG, "showMessageToListener: protocol:" + msgPart.protocol);
-                //Log.d(TAG, "showMessageToListener: ##:" + message.getMessage());
 
                 // Extract the correct data encapsulated into HeliosMessagePart and deliver it to subscriber
                 if (PUB_SUB_PACKAGED.equals(msgPart.protocol)) {
@@ -839,78 +1121,67 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
     private boolean storeHeliosMessage(HeliosTopic heliosTopic, HeliosMessagePart msg, boolean isDirectMessage, HeliosNetworkAddress senderAddress) {
         Log.d(TAG, "storeHeliosMessage");
         boolean stored = false;
+        if (msg.hlc != null) {
+            // Our following messages are ordered after this one
+            HybridLogicalClock.getInstance().update(msg.hlc);
+        }
         // Update message to singleton
-        ArrayList<HeliosConversation> conversationList = HeliosConversationList.getInstance().getConversations();
-        for (int i = 0; i < conversationList.size(); i++) {
-            HeliosConversation conversation = conversationList.get(i);
-            if (isDirectMessage) {
-                // DirectMessage
-                // If uuid, it is direct chat
-                if (!TextUtils.isEmpty(conversation.topic.uuid)) {
-                    Log.d(TAG, "topic.uuid  " + conversation.topic.uuid);
-                    Log.d(TAG, "msg.senderUUID  " + msg.senderUUID);
-                    if (conversation.topic.uuid.equals(msg.senderUUID)) {
-                        Log.d(TAG, "update message to topic " + conversation.topic.topic);
-                        Log.d(TAG, "update message to uuid " + conversation.topic.uuid);
-                        stored = conversation.addMessage(msg);
-                        Log.d(TAG, "msg.senderUUID:" + msg.senderUUID + " to: " + msg.to + " msg:" + msg.msg);
-                        if (stored)
-                            mChatMessageStore.addMessage(msg);
-                        break;
+        HeliosConversationList conversationList = HeliosConversationList.getInstance();
+        HeliosConversation conversation;
+        if (isDirectMessage) {
+            // DirectMessage
+            // If uuid, it is direct chat
+            Log.d(TAG, "msg.senderUUID  " + msg.senderUUID);
+            conversation = conversationList.getConversationByTopicUUID(msg.senderUUID);
+            if (conversation != null) {
+                Log.d(TAG, "update message to topic " + conversation.topic.topic);
+                Log.d(TAG, "update message to uuid " + conversation.topic.uuid);
+                stored = conversation.addMessage(msg);
+                Log.d(TAG, "msg.senderUUID:" + msg.senderUUID + " to: " + msg.to + " msg:" + msg.msg);
+                if (stored)
+                    mChatMessageStore.addMessage(msg);
+            }
+        } else {
+            // Pub-sub message
+            conversation = conversationList.getConversation(heliosTopic.getTopicName());
+            if (conversation != null) {
+                Log.d(TAG, "update message to topic " + heliosTopic.getTopicName());
+                Log.d(TAG, "update message senderAddress " + senderAddress);
+                if ((msg.messageType == HeliosMessagePart.MessagePartType.HEARTBEAT) && (senderAddress != null)) {
+                    // Analyzed in the background, so that chat messages are not delayed
+                    mHeartbeatReconciler.submit(msg, conversation, senderAddress);
+                    if (msg.syncSketch != null) {
+                        mHistoryBackfill.onPeerSeen(heliosTopic.getTopicName(), senderAddress);
                     }
                 }
-            } else {
-                // Pub-sub message
-                if (conversation.topic.topic.equals(heliosTopic.getTopicName())) {
-                    Log.d(TAG, "update message to topic " + heliosTopic.getTopicName());
-                    Log.d(TAG, "update message senderAddress " + senderAddress);
-                    if ((msg.messageType == HeliosMessagePart.MessagePartType.HEARTBEAT) && (senderAddress != null)) {
-                        try {
-                            Log.d(TAG, "update message senderAddress " + senderAddress);
-                            List<HeliosMessagePart> hasMissing = mHeartbeatManager.collectMissingMessages(msg, conversation);
-                            Log.d(TAG, "update hasMissing: " + hasMissing.size());
-                            if (!hasMissing.isEmpty()) {
-                                for (HeliosMessagePart missingMsg : hasMissing) {
-                                    Log.i(TAG, "Sender " + msg.senderName + " is missing " + missingMsg.msg);
-                                }
-                                // Trigger a sync message to heartbeat sender
-                                SyncManager syncMgr = SyncManager.getInstance();
-                                syncMgr.syncMessages(hasMissing, senderAddress);
-                            }
-                        } catch (HeartbeatDataException e) {
-                            Log.d(TAG, "Heartbeat message without payload");
-                        }
-                    }
 
-                    // Check if we need to sync direct messages to this user
-                    //TODO: Now only with HEARTBEAT or JOIN, should check when user is actually online.
-                    Log.d(TAG, "update msg.messageType:" + msg.messageType);
-                    Log.d(TAG, "SyncManager msg.senderUUID:" + msg.senderUUID);
-                    //Log.d(TAG, "SyncManager mHeliosIdentityInfo.getUserUUID:" + mHeliosIdentityInfo.getUserUUID());
-                    if (mHeliosIdentityInfo != null && !TextUtils.isEmpty(msg.senderUUID)) {
-                        // Don't sync with self
-                        String myUUID = mHeliosIdentityInfo.getUserUUID();
-                        if (myUUID == null) {
-                            Log.e(TAG, "UUID identity is null - sync attempt failed");
-                        } else if (!myUUID.equals(msg.senderUUID)) {
-                            if (msg.messageType == HeliosMessagePart.MessagePartType.HEARTBEAT || msg.messageType == HeliosMessagePart.MessagePartType.JOIN) {
-                                SyncManager syncMgr = SyncManager.getInstance();
-                                syncMgr.syncDirectMessages(mContext, msg.senderUUID,
-                                        msg.senderNetworkId, mChatMessageStore, mDirectMessageReceivers);
-                            }
+                // Check if we need to sync direct messages to this user
+                //TODO: Now only with HEARTBEAT or JOIN, should check when user is actually online.
+                Log.d(TAG, "update msg.messageType:" + msg.messageType);
+                Log.d(TAG, "SyncManager msg.senderUUID:" + msg.senderUUID);
+                //Log.d(TAG, "SyncManager mHeliosIdentityInfo.getUserUUID:" + mHeliosIdentityInfo.getUserUUID());
+                if (mHeliosIdentityInfo != null && !TextUtils.isEmpty(msg.senderUUID)) {
+                    // Don't sync with self
+                    String myUUID = mHeliosIdentityInfo.getUserUUID();
+                    if (myUUID == null) {
+                        Log.e(TAG, "UUID identity is null - sync attempt failed");
+                    } else if (!myUUID.equals(msg.senderUUID)) {
+                        if (msg.messageType == HeliosMessagePart.MessagePartType.HEARTBEAT || msg.messageType == HeliosMessagePart.MessagePartType.JOIN) {
+                            // Sender is online, let a probe through if its circuit is open
+                            PeerCircuitBreaker.getInstance().onPresence(msg.senderNetworkId);
+                            SyncManager syncMgr = SyncManager.getInstance();
+                            syncMgr.syncDirectMessages(mContext, msg.senderUUID,
+                                    msg.senderNetworkId, mChatMessageStore, mDirectMessageReceivers);
                         }
                     }
+                }
 
-                    if (mFilterHeartbeatMsg && msg.messageType == HeliosMessagePart.MessagePartType.HEARTBEAT) {
-                        break;
-                    }
-                    if (mFilterJoinMsg && msg.messageType == HeliosMessagePart.MessagePartType.JOIN) {
-                        break;
-                    }
+                boolean filtered = (mFilterHeartbeatMsg && msg.messageType == HeliosMessagePart.MessagePartType.HEARTBEAT) ||
+                        (mFilterJoinMsg && msg.messageType == HeliosMessagePart.MessagePartType.JOIN);
+                if (!filtered) {
                     stored = conversation.addMessage(msg);
                     if (stored)
                         mChatMessageStore.addMessage(msg);
-                    break;
                 }
             }
         }
@@ -932,34 +1203,23 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
             return false;
         }
 
-        boolean topicFound = false;
         // Update topic to singleton
-        ArrayList<HeliosTopicContext> arrTopics = HeliosConversationList.getInstance().getTopics();
-        for (int i = 0; i < arrTopics.size(); i++) {
-            HeliosTopicContext topicContext = arrTopics.get(i);
+        boolean topicFound = conversation != null;
+        if (topicFound) {
+            HeliosTopicContext topicContext = conversation.topic;
             if (isDirectMessage) {
                 // Only 1-1 has uuid set.
-                if (!TextUtils.isEmpty(topicContext.uuid)) {
-                    if (topicContext.uuid.equals(msg.senderUUID)) {
-                        Log.d(TAG, "update topic desc to topic.uuid  " + topicContext.uuid);
-                        topicFound = true;
-                        topicContext.lastMsg = msg.msg;
-                        // Update also user's name if changed..
-                        topicContext.topic = msg.senderName;
-                        topicContext.participants = msg.senderName + ":" + msg.msg;
-                        topicContext.ts = msg.getLocaleTs();
-                        break;
-                    }
-                }
+                Log.d(TAG, "update topic desc to topic.uuid  " + topicContext.uuid);
+                topicContext.lastMsg = msg.msg;
+                // Update also user's name if changed..
+                conversationList.renameConversation(conversation, msg.senderName);
+                topicContext.participants = msg.senderName + ":" + msg.msg;
+                topicContext.ts = msg.getLocaleTs();
             } else {
-                if (topicContext.topic.equals(heliosTopic.getTopicName())) {
-                    Log.d(TAG, "update topic desc to topic name " + topicContext.topic);
-                    topicFound = true;
-                    topicContext.lastMsg = msg.msg;
-                    topicContext.participants = msg.senderName + ":" + msg.msg;
-                    topicContext.ts = msg.getLocaleTs();
-                    break;
-                }
+                Log.d(TAG, "update topic desc to topic name " + topicContext.topic);
+                topicContext.lastMsg = msg.msg;
+                topicContext.participants = msg.senderName + ":" + msg.msg;
+                topicContext.ts = msg.getLocaleTs();
             }
         }
         Log.d(TAG, "update topic done >");
@@ -980,7 +1240,7 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
             newConversation.topic.participants = msg.senderName + ":" + msg.msg;
             newConversation.topic.ts = msg.getLocaleTs();
             stored = newConversation.addMessage(msg);
-            HeliosConversationList.getInstance().addConversation(newConversation);
+            conversationList.addConversation(newConversation);
             if (stored)
                 mChatMessageStore.addMessage(msg);
         }
@@ -988,6 +1248,67 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         return stored;
     }
 
+    /**
+     * Store and show a message we have published, without waiting for it to come back from
+     * the network.
+     *
+     * @param topic Topic of the message
+     * @param published Published message part, not modified
+     * @param mediaFileName Local file name of the attached media file, or null
+     */
+    private void deliverPublishedMessage(HeliosTopic topic, HeliosMessagePart published, String mediaFileName) {
+        // Heartbeats are not stored or shown
+        if (published.messageType == HeliosMessagePart.MessagePartType.HEARTBEAT) {
+            return;
+        }
+        HeliosMessagePart msg = new HeliosMessagePart(published);
+        msg.mediaFileName = mediaFileName;
+        msg.senderNetworkId = mHeliosMessagingNodejs.getPeerId();
+        if (storeHeliosMessage(topic, msg, false, null)) {
+            showMessageToListener(topic, msg, new HeliosMessagePartEnvelope(msg, null, mediaFileName));
+        }
+    }
+
+    /**
+     * Check if a pub-sub message is the echo of a message we have published recently. Only
+     * the UUID is read from the message, it is not decoded.
+     *
+     * @param heliosMessage Received message
+     * @return true if the message is our own and already delivered locally
+     */
+    private boolean isPublishedEcho(HeliosMessage heliosMessage) {
+        if (mPublishedUuids.isEmpty() || !(heliosMessage instanceof HeliosMessageLibp2pPubSub)) {
+            return false;
+        }
+        HeliosNetworkAddress address = ((HeliosMessageLibp2pPubSub) heliosMessage).getNetworkAddress();
+        String peerId = mHeliosMessagingNodejs.getPeerId();
+        if (address == null || peerId == null || !peerId.equals(address.getNetworkId())) {
+            return false;
+        }
+        String uuid = JsonMessageConverter.getInstance().peekUuid(heliosMessage.getMessage());
+        if (uuid == null) {
+            return false;
+        }
+
+        // Each message is echoed once
+        long now = System.currentTimeMillis();
+        Long publishedAt = mPublishedUuids.remove(uuid);
+        forgetOldPublishedUuids(now);
+        return publishedAt != null && now - publishedAt <= PUBLISHED_ECHO_TIMEOUT;
+    }
+
+    /**
+     * Forget published messages whose echoes are not expected anymore, e.g., because the echo
+     * was lost. Only scans the messages when there are many of them.
+     *
+     * @param now Current time in milliseconds
+     */
+    private void forgetOldPublishedUuids(long now) {
+        if (mPublishedUuids.size() > MAX_PUBLISHED_UUIDS) {
+            mPublishedUuids.values().removeIf(ts -> now - ts > PUBLISHED_ECHO_TIMEOUT);
+        }
+    }
+
     /**
      * A couple of ad-hoc tests to check if converted HeliosMessagePart lacks
      * data fields that should always be present.
@@ -1004,4 +1325,55 @@ public class ReliableHeliosMessagingNodejsLibp2pImpl implements HeliosMessaging,
         }
         return false;
     }
+
+    /**
+     * Check if a published message is to be numbered, i.e., it is an own chat message without
+     * a sequence number.
+     *
+     * @param msgPart Published message
+     * @return true if a sequence number is needed
+     */
+    private boolean isNumbered(HeliosMessagePart msgPart) {
+        return mSequenceNumbers && msgPart.seq == null &&
+                msgPart.messageType == HeliosMessagePart.MessagePartType.MESSAGE &&
+                mHeliosIdentityInfo != null && msgPart.senderUUID != null &&
+                msgPart.senderUUID.equals(mHeliosIdentityInfo.getUserUUID());
+    }
+
+    /**
+     * Get the counter of the sequence numbers of a sender in a topic. Counters are seeded when
+     * a topic is subscribed, see {@link #seedSequence(String, String)}.
+     *
+     * @param topic Topic name
+     * @param senderUUID UUID of the sender
+     * @return counter holding the last sequence number
+     */
+    private AtomicLong getSequence(String topic, String senderUUID) {
+        AtomicLong sequence = mSequences.get(senderUUID + "/" + topic);
+        return sequence != null ? sequence : seedSequence(topic, senderUUID);
+    }
+
+    /**
+     * Create the counter of the sequence numbers of a sender in a topic, if not created yet.
+     * The counter starts from the last number in the conversation or the message store.
+     *
+     * @param topic Topic name
+     * @param senderUUID UUID of the sender
+     * @return counter holding the last sequence number
+     */
+    private AtomicLong seedSequence(String topic, String senderUUID) {
+        String key = senderUUID + "/" + topic;
+        AtomicLong sequence = mSequences.get(key);
+        if (sequence != null) {
+            return sequence;
+        }
+        long last = mChatMessageStore == null ? 0 : mChatMessageStore.getLastSequence(topic, senderUUID);
+        HeliosConversation conversation = HeliosConversationList.getInstance().getConversation(topic);
+        if (conversation != null) {
+            last = Math.max(last, conversation.getLastSequence(senderUUID));
+        }
+        AtomicLong seeded = new AtomicLong(last);
+        sequence = mSequences.putIfAbsent(key, seeded);
+        return sequence != null ? sequence : seeded;
+    }
 }
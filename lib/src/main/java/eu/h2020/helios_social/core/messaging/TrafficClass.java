@@ -0,0 +1,34 @@
+package eu.h2020.helios_social.core.messaging;
+
+/**
+ * Priority classes of direct message traffic. Each class is processed in lanes of its own,
+ * so that, e.g., file transfers during a resync do not delay chat messages typed by the user.
+ */
+public enum TrafficClass {
+    /** Status and ack messages. Small, identical pending messages are coalesced. */
+    CONTROL,
+    /** Chat and application messages. Never dropped. */
+    CHAT,
+    /** Resent pub-sub messages. */
+    SYNC,
+    /** File transfers. Deferred behind other traffic. */
+    BULK;
+
+    /**
+     * Get the traffic class of a direct message protocol.
+     *
+     * @param protocolId Protocol id
+     * @return {@link TrafficClass}
+     */
+    public static TrafficClass of(String protocolId) {
+        if (MessagingConstants.HELIOS_STATUS_PROTO.equals(protocolId) ||
+                MessagingConstants.HELIOS_DM_ACK_PROTO.equals(protocolId)) {
+            return CONTROL;
+        } else if (MessagingConstants.HELIOS_CHAT_SYNC_PROTO.equals(protocolId)) {
+            return SYNC;
+        } else if (MessagingConstants.HELIOS_DIRECT_CHAT_FILE_PROTO.equals(protocolId)) {
+            return BULK;
+        }
+        return CHAT;
+    }
+}
@@ -14,8 +14,15 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -23,12 +30,59 @@ import eu.h2020.helios_social.core.messaging.HeliosMessagingException;
 
 /**
  * Class to store a conversation list of {@link HeliosMessagePart} in a specific {@link HeliosTopicContext}.
+ *
+ * A conversation can be windowed, see {@link #setWindow(HeliosMessageHistory, int, long)}. Then
+ * only the newest messages are kept in memory and older ones are read from the
+ * {@link HeliosMessageHistory} when needed.
+ *
+ * An inactive conversation can be evicted, see {@link #evict(HeliosMessageHistory)}. Then no
+ * messages are kept in memory until the conversation is used again. Note that the
+ * {@link #messages} list of an evicted conversation is empty, the methods of this class and
+ * the lookups of {@link HeliosConversationList} reload the messages when needed.
+ *
+ * Messages are ordered by {@link HeliosMessagePart#getOrderKey()}, i.e., by the hybrid logical
+ * clock of the senders, so that a message is usually newer than all messages its sender had
+ * seen and is appended to the list.
+ *
+ * The {@link #messages} list is changed in place by the receiving thread. Other threads, e.g.,
+ * UI, should read the messages from {@link #getSnapshot()}.
  */
 public class HeliosConversation {
     private static final String TAG = "HeliosConversation";
     public ArrayList<HeliosMessagePart> messages;
     public HeliosTopicContext topic;
     private final Object lock = new Object();
+    // Changes whenever messages are added, not serialized
+    private transient volatile int version = 0;
+    // Index of messages by UUID. Rebuilt if the message list has been replaced (e.g., by Gson)
+    // or modified from outside.
+    private transient HashMap<String, HeliosMessagePart> uuidIndex;
+    private transient ArrayList<HeliosMessagePart> indexedMessages;
+    private transient int indexedCount;
+    // Windowed mode, not serialized. Sizes are 0 if not limited.
+    private static final long NOT_TRIMMED = Long.MIN_VALUE;
+    private transient HeliosMessageHistory history;
+    private transient int maxMessages = 0;
+    private transient long maxBytes = 0;
+    private transient volatile long residentBytes = 0;
+    // Time stamp of the newest message dropped from memory
+    private transient long trimmedUntil = NOT_TRIMMED;
+    // Eviction, not serialized. The latest message and message count are kept as a summary.
+    private static final AtomicLong ACCESS_COUNTER = new AtomicLong();
+    private transient volatile long lastAccess = 0;
+    private transient volatile boolean evicted = false;
+    private transient HeliosMessagePart evictedLatest;
+    private transient int evictedCount;
+    private transient long trimmedBeforeEviction = NOT_TRIMMED;
+    // List that keeps the total size of its conversations, see HeliosConversationList.setMemoryBudget
+    private transient volatile HeliosConversationList owner;
+    // Heartbeat digest, not serialized
+    private transient MessageBloomDigest digest;
+    // Sequence numbers received from each sender, not serialized. Kept when messages are
+    // dropped from memory.
+    private transient SequenceTracker sequences;
+    // Latest snapshot of the messages, not serialized
+    private transient volatile MessageSnapshot snapshot;
 
     /**
      * Constructor.
@@ -45,23 +99,542 @@ public class HeliosConversation {
      * @return boolean value if message was already present in this conversation using message UUID.
      */
     public boolean addMessage(HeliosMessagePart msg) {
-        boolean found = false;
+        boolean added;
+        while (true) {
+            ensureResident();
+            DroppedMessages dropped = findDropped(Collections.singletonList(msg));
+            synchronized (lock) {
+                if (dropped.isCurrentLocked()) {
+                    added = addMessageLocked(msg, dropped);
+                    break;
+                }
+            }
+        }
+        checkMemoryBudget();
+
+        return added;
+    }
+
+    private boolean addMessageLocked(HeliosMessagePart msg, DroppedMessages dropped) {
+        HashMap<String, HeliosMessagePart> index = getUuidIndex();
+        String uuid = msg.getUuid();
+        if (uuid != null && index.containsKey(uuid)) {
+            return false;
+        }
+        if (uuid != null && dropped.contains(uuid)) {
+            return false;
+        }
+
+        insertMessage(msg);
+        if (uuid != null) {
+            index.put(uuid, msg);
+        }
+        indexedCount = messages.size();
+        setResidentBytesLocked(residentBytes + estimateSize(msg));
+        if (digest != null) {
+            digest.add(msg);
+        }
+        getSequencesLocked().add(msg);
+        trimLocked();
+        version++;
+        return true;
+    }
+
+    /**
+     * Find the messages that have been dropped from memory, i.e., older messages found in the
+     * history. The history is read without holding the lock, so the result must be checked to
+     * be current, see {@link DroppedMessages#isCurrentLocked()}.
+     *
+     * @param msglist Messages to check
+     * @return {@link DroppedMessages}
+     */
+    private DroppedMessages findDropped(Collection<HeliosMessagePart> msglist) {
+        HeliosMessageHistory source;
+        long until;
         synchronized (lock) {
-            for (HeliosMessagePart a : messages) {
-                if (a.getUuid().equals(msg.getUuid())) {
-                    found = true;
+            source = history;
+            until = trimmedUntil;
+        }
+        HashSet<String> uuids = new HashSet<>();
+        if (source != null && until != NOT_TRIMMED) {
+            for (HeliosMessagePart msg : msglist) {
+                String uuid = msg.getUuid();
+                if (uuid != null && msg.getTimestampAsMilliseconds() <= until && source.hasMessage(uuid)) {
+                    uuids.add(uuid);
+                }
+            }
+        }
+        return new DroppedMessages(until, uuids);
+    }
+
+    /**
+     * Result of {@link #findDropped(Collection)}.
+     */
+    private class DroppedMessages {
+        private final long checkedUntil;
+        private final HashSet<String> uuids;
+
+        DroppedMessages(long checkedUntil, HashSet<String> uuids) {
+            this.checkedUntil = checkedUntil;
+            this.uuids = uuids;
+        }
+
+        /**
+         * Check that no more messages have been dropped from memory since the history was read.
+         * Must be called holding the lock.
+         *
+         * @return true if the result can be used
+         */
+        boolean isCurrentLocked() {
+            return checkedUntil == trimmedUntil;
+        }
+
+        boolean contains(String uuid) {
+            return uuids.contains(uuid);
+        }
+    }
+
+    /**
+     * Keep only the newest messages in memory. Older messages are read from the history when
+     * they are needed, so they must be stored there, e.g., by {@link HeliosMessageHistory}
+     * implementation {@code HeliosMessageStore}.
+     *
+     * @param history History of the messages
+     * @param maxMessages Maximum number of messages in memory, or 0 for no limit
+     * @param maxBytes Approximate maximum size of messages in memory, or 0 for no limit
+     */
+    public void setWindow(HeliosMessageHistory history, int maxMessages, long maxBytes) {
+        while (true) {
+            if (history == null) {
+                // Reload while the history is still known
+                ensureResident();
+            }
+            synchronized (lock) {
+                if (evicted && history == null) {
+                    // Evicted again meanwhile
+                    continue;
+                }
+                this.history = history;
+                this.maxMessages = history == null ? 0 : maxMessages;
+                this.maxBytes = history == null ? 0 : maxBytes;
+                if (!evicted) {
+                    rebuildIndexLocked();
+                    trimLocked();
+                }
+                break;
+            }
+        }
+        checkMemoryBudget();
+    }
+
+    /**
+     * Drop all messages of this conversation from memory, keeping the topic, the latest message
+     * and the message count. The messages are reloaded from the history when the conversation
+     * is used again, so they must be stored there, as with {@link #setWindow}.
+     *
+     * @param history History of the messages. The history of the window is used if set.
+     * @return true if the conversation was evicted, false if it already was evicted or there
+     * is no history.
+     */
+    public boolean evict(HeliosMessageHistory history) {
+        synchronized (lock) {
+            if (evicted) {
+                return false;
+            }
+            if (this.history == null) {
+                this.history = history;
+            }
+            if (this.history == null) {
+                return false;
+            }
+            rebuildIndexLocked();
+            evictedLatest = getLatestMessage();
+            evictedCount = messages.size();
+            trimmedBeforeEviction = trimmedUntil;
+            for (HeliosMessagePart msg : messages) {
+                trimmedUntil = Math.max(trimmedUntil, msg.getTimestampAsMilliseconds());
+            }
+            messages.clear();
+            uuidIndex.clear();
+            indexedCount = 0;
+            setResidentBytesLocked(0);
+            evicted = true;
+            // Let go of the messages also held by the snapshot
+            snapshot = null;
+            version++;
+            Log.d(TAG, "Evicted " + evictedCount + " messages of " + topic.topic + " from memory");
+            return true;
+        }
+    }
+
+    /**
+     * Check if this conversation has been evicted from memory.
+     *
+     * @return true if evicted
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Get the number of messages in memory or, if this conversation has been evicted, the
+     * number of messages at eviction.
+     *
+     * @return number of messages
+     */
+    public int getMessageCount() {
+        synchronized (lock) {
+            return evicted ? evictedCount : messages.size();
+        }
+    }
+
+    /**
+     * Get the approximate size of the messages in memory.
+     *
+     * @return size in bytes
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Set the approximate size of the messages in memory, keeping the total of the list of
+     * this conversation up to date. Must be called holding the lock.
+     *
+     * @param bytes size in bytes
+     */
+    private void setResidentBytesLocked(long bytes) {
+        long delta = bytes - residentBytes;
+        residentBytes = bytes;
+        HeliosConversationList list = owner;
+        if (list != null && delta != 0) {
+            list.onResidentBytesChanged(delta);
+        }
+    }
+
+    /**
+     * Set the list that keeps the total size of its conversations, or null when removed from
+     * the list.
+     *
+     * @param list {@link HeliosConversationList} or null
+     * @return size of the messages in memory when set, see {@link #getResidentBytes()}
+     */
+    long setOwner(HeliosConversationList list) {
+        synchronized (lock) {
+            owner = list;
+            return residentBytes;
+        }
+    }
+
+    /**
+     * Get the list this conversation has been added to.
+     *
+     * @return {@link HeliosConversationList} or null
+     */
+    HeliosConversationList getOwner() {
+        return owner;
+    }
+
+    /**
+     * Let the list of this conversation keep the memory budget after messages were added.
+     * Must be called without holding the lock, as other conversations may be evicted.
+     */
+    private void checkMemoryBudget() {
+        HeliosConversationList list = owner;
+        if (list != null) {
+            list.checkMemoryBudget(this);
+        }
+    }
+
+    /**
+     * Get the order of last use. Conversations used later have a larger value.
+     *
+     * @return access counter value
+     */
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Reload the messages of an evicted conversation from the history. The newest messages
+     * that fit in the window are loaded. The history is read without holding the lock, and
+     * the messages are merged unless the conversation has changed meanwhile. Must be called
+     * without holding the lock.
+     */
+    void ensureResident() {
+        while (true) {
+            HeliosMessageHistory source;
+            int max;
+            int seen;
+            synchronized (lock) {
+                if (!evicted) {
+                    return;
+                }
+                source = history;
+                max = maxMessages;
+                seen = version;
+            }
+            List<HeliosMessagePart> loaded = max > 0 ?
+                    source.loadMessagesBefore(topic.topic, Long.MAX_VALUE, max) :
+                    source.loadMessages(topic.topic, Long.MIN_VALUE);
+            synchronized (lock) {
+                if (evicted && version == seen) {
+                    rehydrateLocked(loaded);
                     break;
                 }
             }
+        }
+        checkMemoryBudget();
+    }
+
+    /**
+     * Merge the messages reloaded from the history to an evicted conversation. Must be called
+     * holding the lock.
+     *
+     * @param loaded Messages read from the history
+     */
+    private void rehydrateLocked(List<HeliosMessagePart> loaded) {
+        evicted = false;
+        evictedLatest = null;
+        boolean modified = !messages.isEmpty();
+        if (modified) {
+            // Added while evicted, and possibly stored in the history already
+            HashSet<String> known = new HashSet<>();
+            for (HeliosMessagePart msg : messages) {
+                known.add(msg.getUuid());
+            }
+            for (HeliosMessagePart msg : loaded) {
+                if (msg.getUuid() == null || !known.contains(msg.getUuid())) {
+                    messages.add(msg);
+                }
+            }
+            sortMessageList();
+        } else {
+            messages.addAll(loaded);
+        }
+        // Older messages than the loaded ones are still only in the history
+        trimmedUntil = trimmedBeforeEviction;
+        if (maxMessages > 0 && loaded.size() >= maxMessages) {
+            trimmedUntil = Math.max(trimmedUntil, loaded.get(0).getTimestampAsMilliseconds());
+        }
+        uuidIndex = null;
+        rebuildIndexLocked();
+        trimLocked();
+        version++;
+        Log.d(TAG, "Reloaded " + loaded.size() + " messages of " + topic.topic + " to memory");
+    }
+
+    /**
+     * Check if messages of this conversation have been dropped from memory.
+     *
+     * @return true if older messages are only available from the history
+     */
+    public boolean isTrimmed() {
+        return trimmedUntil != NOT_TRIMMED;
+    }
+
+    /**
+     * Get a page of messages older than given time, oldest first. Messages are read from memory
+     * or, if they have been dropped from memory, from the history. Use the time stamp of the
+     * oldest returned message to get the previous page.
+     *
+     * @param beforeMillis Epoch milliseconds, only older messages are returned
+     * @param limit Maximum number of messages, the newest ones by time stamp are returned
+     * @return list of messages, ordered by time stamp
+     */
+    public List<HeliosMessagePart> getMessagesBefore(long beforeMillis, int limit) {
+        ArrayList<HeliosMessagePart> page = new ArrayList<>();
+        HeliosMessageHistory source;
+        long trimmed;
+        ensureResident();
+        synchronized (lock) {
+            getUuidIndex();
+            for (HeliosMessagePart msg : messages) {
+                if (msg.getTimestampAsMilliseconds() < beforeMillis) {
+                    page.add(msg);
+                }
+            }
+            source = history;
+            trimmed = trimmedUntil;
+        }
+
+        // Time stamps of senders need not be in the order of the list
+        Comparator<HeliosMessagePart> byTime = Comparator.comparingLong(HeliosMessagePart::getTimestampAsMilliseconds);
+        page.sort(byTime);
+        // Messages dropped from memory are not older than the page if their senders were ahead
+        if (source != null && trimmed != NOT_TRIMMED &&
+                (page.size() < limit || page.get(page.size() - limit).getTimestampAsMilliseconds() <= trimmed)) {
+            HashSet<String> seen = new HashSet<>();
+            for (HeliosMessagePart msg : page) {
+                seen.add(msg.getUuid());
+            }
+            for (HeliosMessagePart msg : source.loadMessagesBefore(topic.topic, beforeMillis, limit)) {
+                if (msg.getUuid() == null || seen.add(msg.getUuid())) {
+                    page.add(msg);
+                }
+            }
+            page.sort(byTime);
+        }
+        if (page.size() > limit) {
+            return new ArrayList<>(page.subList(page.size() - limit, page.size()));
+        }
+        return page;
+    }
+
+    /**
+     * Drop the oldest messages from memory while the window is exceeded. Must be called
+     * holding the lock.
+     */
+    private void trimLocked() {
+        if (history == null || (maxMessages <= 0 && maxBytes <= 0)) {
+            return;
+        }
+        int trim = 0;
+        long bytes = residentBytes;
+        int size = messages.size();
+        while (size - trim > 1 &&
+                ((maxMessages > 0 && size - trim > maxMessages) || (maxBytes > 0 && bytes > maxBytes))) {
+            HeliosMessagePart oldest = messages.get(trim);
+            bytes -= estimateSize(oldest);
+            trimmedUntil = Math.max(trimmedUntil, oldest.getTimestampAsMilliseconds());
+            if (oldest.getUuid() != null) {
+                uuidIndex.remove(oldest.getUuid());
+            }
+            trim++;
+        }
+        if (trim > 0) {
+            messages.subList(0, trim).clear();
+            setResidentBytesLocked(bytes);
+            indexedCount = messages.size();
+            Log.d(TAG, "Dropped " + trim + " messages of " + topic.topic + " from memory");
+        }
+    }
+
+    /**
+     * Rough estimate of the memory used by a message.
+     *
+     * @param msg {@link HeliosMessagePart}
+     * @return size in bytes
+     */
+    private static long estimateSize(HeliosMessagePart msg) {
+        long size = 128;
+        size += msg.msg == null ? 0 : 2L * msg.msg.length();
+        size += msg.senderName == null ? 0 : 2L * msg.senderName.length();
+        size += msg.mediaFileName == null ? 0 : 2L * msg.mediaFileName.length();
+        size += msg.mediaFileData == null ? 0 : msg.mediaFileData.length;
+        return size;
+    }
+
+    /**
+     * Insert a message to the sorted message list, after any messages with the same order key.
+     * Messages usually arrive in order and are simply appended, delayed messages are placed
+     * by binary search.
+     *
+     * @param msg {@link HeliosMessagePart}
+     */
+    private void insertMessage(HeliosMessagePart msg) {
+        long key = msg.getOrderKey();
+        int size = messages.size();
+        if (size == 0 || messages.get(size - 1).getOrderKey() <= key) {
+            messages.add(msg);
+            return;
+        }
+
+        // Find the first message newer than msg
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (messages.get(mid).getOrderKey() <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        messages.add(low, msg);
+    }
+
+    /**
+     * Get the UUID index of the messages in memory. Marks this conversation used. Must be
+     * called holding the lock, after {@link #ensureResident()} if all messages are needed.
+     *
+     * @return map of UUID to message
+     */
+    private HashMap<String, HeliosMessagePart> getUuidIndex() {
+        lastAccess = ACCESS_COUNTER.incrementAndGet();
+        return rebuildIndexLocked();
+    }
 
-            if (!found) {
-                messages.add(msg);
-                // TODO: Only sort if needed, we could assume only delayed messages require sorting.
+    /**
+     * Rebuild the UUID index if the message list has changed without it. Must be called
+     * holding the lock.
+     *
+     * @return map of UUID to message
+     */
+    private HashMap<String, HeliosMessagePart> rebuildIndexLocked() {
+        if (uuidIndex == null || indexedMessages != messages || indexedCount != messages.size()) {
+            if (digest != null && (uuidIndex != null || (indexedMessages != null && indexedMessages != messages))) {
+                // Changed from outside, the digest may have missed messages
+                digest.invalidate();
+            }
+            if (indexedMessages != messages) {
+                // A replaced list is not known to be in order
                 sortMessageList();
             }
+            uuidIndex = new HashMap<>(Math.max(16, messages.size() * 2));
+            SequenceTracker tracker = getSequencesLocked();
+            long bytes = 0;
+            for (HeliosMessagePart a : messages) {
+                if (a.getUuid() != null) {
+                    uuidIndex.putIfAbsent(a.getUuid(), a);
+                }
+                bytes += estimateSize(a);
+                tracker.add(a);
+            }
+            setResidentBytesLocked(bytes);
+            indexedMessages = messages;
+            indexedCount = messages.size();
+            version++;
         }
+        return uuidIndex;
+    }
 
-        return !found;
+    /**
+     * Get an immutable snapshot of the messages of this conversation, in order. The snapshot
+     * is copied only after the messages have changed, otherwise the previous one is returned
+     * without locking. Messages changed in {@link #messages} from outside this class are seen
+     * once the conversation is used through its methods.
+     *
+     * If this conversation has been evicted, its messages are first reloaded from the
+     * history.
+     *
+     * @return {@link MessageSnapshot}
+     */
+    public MessageSnapshot getSnapshot() {
+        ensureResident();
+        MessageSnapshot current = snapshot;
+        if (current != null && current.version == version) {
+            return current;
+        }
+        synchronized (lock) {
+            getUuidIndex();
+            current = snapshot;
+            if (current == null || current.version != version) {
+                current = new MessageSnapshot(new ArrayList<>(messages), version);
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Get the version of the message list. The version changes whenever messages are added to
+     * this conversation, dropped from or reloaded to memory.
+     *
+     * @return version number
+     */
+    public int getVersion() {
+        return version;
     }
 
     /**
@@ -71,13 +644,12 @@ public class HeliosConversation {
      * @param val New value for received.
      */
     public void setMessageReceivedValue(String uuid, boolean val) {
+        ensureResident();
         synchronized (lock) {
-            for (HeliosMessagePart a : messages) {
-                if (a.getUuid().equals(uuid)) {
-                    Log.d(TAG, "setReceivedField msg:" + a.msg +" msgReceived was:" + a.msgReceived);
-                    a.msgReceived = val;
-                    break;
-                }
+            HeliosMessagePart a = getUuidIndex().get(uuid);
+            if (a != null) {
+                Log.d(TAG, "setReceivedField msg:" + a.msg +" msgReceived was:" + a.msgReceived);
+                a.msgReceived = val;
             }
         }
     }
@@ -90,61 +662,156 @@ public class HeliosConversation {
         PREPEND
     }
     /**
-     * Joins a list of Helios messages to the beginning of the conversation message list. This
-     * operation is used to add old messages from a cache to the conversation. Doesn't add duplicates.
+     * Joins a list of Helios messages to the conversation message list. This operation is used
+     * to add old messages from a cache to the conversation. Doesn't add duplicates.
      *
-     * @param msglist The list of messages to be added.
-     * @param loc Where to join the list end (APPEND) or beginning (PREPEND)
+     * @param msglist The list of messages to be added. The list is not modified.
+     * @param loc Where to join messages with the same time stamp as existing ones, after them
+     *            (APPEND) or before them (PREPEND)
      */
     public void joinMessages(ArrayList<HeliosMessagePart> msglist, JoinLocation loc) {
+        joinAndCountMessages(msglist, loc);
+    }
+
+    /**
+     * Same as {@link #joinMessages(ArrayList, JoinLocation)}, but tells how many of the
+     * messages were not already present.
+     *
+     * @param msglist The list of messages to be added. The list is not modified.
+     * @param loc Where to join messages with the same time stamp as existing ones
+     * @return number of messages added
+     */
+    public int joinAndCountMessages(ArrayList<HeliosMessagePart> msglist, JoinLocation loc) {
         Log.d(TAG, "joinMessages start");
-        synchronized (lock) {
-            // Remove already existing messages from msglist
-            for (HeliosMessagePart a : messages) {
-                if (msglist.contains(a)) {
-                    msglist.remove(a);
+        int added = merge(msglist, loc == JoinLocation.PREPEND, null);
+        Log.d(TAG, "joinMessages end, joined " + added);
+        return added;
+    }
+
+    /**
+     * Add a batch of messages to this conversation, e.g., messages received in sync. Doesn't
+     * add duplicates.
+     *
+     * @param msglist Messages to add
+     * @return list of the messages that were added, i.e., not already present
+     */
+    public List<HeliosMessagePart> addMessages(Collection<HeliosMessagePart> msglist) {
+        ArrayList<HeliosMessagePart> added = new ArrayList<>();
+        merge(msglist, false, added);
+        return added;
+    }
+
+    private int merge(Collection<HeliosMessagePart> msglist, boolean before, List<HeliosMessagePart> added) {
+        int count;
+        while (true) {
+            ensureResident();
+            DroppedMessages dropped = findDropped(msglist);
+            synchronized (lock) {
+                if (dropped.isCurrentLocked()) {
+                    count = mergeLocked(msglist, before, added, dropped);
+                    break;
+                }
+            }
+        }
+        checkMemoryBudget();
+        return count;
+    }
+
+    /**
+     * Merge messages to the sorted message list. Duplicates are found with the UUID index and
+     * the new messages, sorted, are merged with the list in one pass. Must be called holding
+     * the lock.
+     *
+     * @param msglist Messages to merge
+     * @param before true to place new messages before existing ones with the same time stamp
+     * @param added List to collect the added messages to, or null
+     * @param dropped Messages found in the history only, see {@link #findDropped(Collection)}
+     * @return number of messages added
+     */
+    private int mergeLocked(Collection<HeliosMessagePart> msglist, boolean before, List<HeliosMessagePart> added,
+                            DroppedMessages dropped) {
+        HashMap<String, HeliosMessagePart> index = getUuidIndex();
+        ArrayList<HeliosMessagePart> incoming = new ArrayList<>(msglist.size());
+        HashSet<String> seen = new HashSet<>();
+        for (HeliosMessagePart msg : msglist) {
+            String uuid = msg.getUuid();
+            if (uuid != null && (index.containsKey(uuid) || !seen.add(uuid) || dropped.contains(uuid))) {
+                continue;
+            }
+            incoming.add(msg);
+        }
+        if (incoming.isEmpty()) {
+            return 0;
+        }
+        // Batches are usually in order already, which the stable sort handles in linear time
+        incoming.sort(Comparator.comparingLong(HeliosMessagePart::getOrderKey));
+
+        int size = messages.size();
+        if (size == 0 || messages.get(size - 1).getOrderKey() < incoming.get(0).getOrderKey()) {
+            messages.addAll(incoming);
+        } else {
+            ArrayList<HeliosMessagePart> merged = new ArrayList<>(size + incoming.size());
+            int i = 0;
+            int j = 0;
+            while (i < size && j < incoming.size()) {
+                long existingKey = messages.get(i).getOrderKey();
+                long incomingKey = incoming.get(j).getOrderKey();
+                if (incomingKey < existingKey || (before && incomingKey == existingKey)) {
+                    merged.add(incoming.get(j++));
+                } else {
+                    merged.add(messages.get(i++));
                 }
             }
-            Log.d(TAG, "Number of messages to join: " + msglist.size());
+            merged.addAll(messages.subList(i, size));
+            merged.addAll(incoming.subList(j, incoming.size()));
+            messages.clear();
+            messages.addAll(merged);
+        }
 
-            if (loc == JoinLocation.PREPEND) {
-                messages.addAll(0, msglist);
-            } else {
-                messages.addAll(msglist);
+        for (HeliosMessagePart msg : incoming) {
+            if (msg.getUuid() != null) {
+                index.put(msg.getUuid(), msg);
             }
-            sortMessageList();
+            setResidentBytesLocked(residentBytes + estimateSize(msg));
+            if (digest != null) {
+                digest.add(msg);
+            }
+            getSequencesLocked().add(msg);
         }
-        Log.d(TAG, "joinMessages end" );
+        indexedCount = messages.size();
+        if (added != null) {
+            added.addAll(incoming);
+        }
+        trimLocked();
+        version++;
+        return incoming.size();
     }
 
     /**
-     * Get the latest message by the senders message time stamp `ts` in {@link HeliosMessagePart} or
-     * `null` if not found.
+     * Get the latest message in conversation order, i.e., the last message by
+     * {@link HeliosMessagePart#getOrderKey()} that has a valid time stamp, or `null` if not
+     * found. The order key is the hybrid logical clock of the sender when it has one, so a
+     * message with a skewed `ts` is not the latest just because its `ts` is the largest.
+     * For an evicted conversation, the latest message at eviction is returned.
      *
      * @return {@link HeliosMessagePart} latest message or null
      */
     public HeliosMessagePart getLatestMessage() {
         synchronized (lock) {
-            HeliosMessagePart latest = null;
-            long latestTs = 0;
-
-            for (HeliosMessagePart msg : messages) {
-                try {
-                    if (msg.ts == null || msg.ts.isEmpty()) {
-                        continue;
-                    }
-
-                    long ts = ZonedDateTime.parse(msg.ts).toEpochSecond();
-                    if (ts >= latestTs) {
-                        latestTs = ts;
-                        latest = msg;
-                    }
-                } catch (Exception e) {
-                    Log.d(TAG, "Could not compare ts in messages " + topic.topic + ": " + e.getMessage());
+            if (evicted) {
+                return evictedLatest;
+            }
+            // Messages are in order, the last valid one is the latest. A replaced
+            // list is sorted when it is indexed.
+            getUuidIndex();
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                HeliosMessagePart msg = messages.get(i);
+                if (msg.hasValidTimestamp()) {
+                    return msg;
                 }
             }
 
-            return latest;
+            return null;
         }
     }
 
@@ -153,44 +820,187 @@ public class HeliosConversation {
     }
 
     public List<HeliosMessagePart> getMessagesAfter(long epoch) {
+        List<HeliosMessagePart> resident;
+        HeliosMessageHistory source;
         synchronized (lock) {
-            return getMessageStream(epoch).collect(Collectors.toList());
+            resident = getMessageStream(epoch).collect(Collectors.toList());
+            // Read from the history if some of the messages have been dropped from memory
+            source = trimmedUntil != NOT_TRIMMED && Math.floorDiv(trimmedUntil, 1000L) > epoch ? history : null;
+        }
+        if (source == null) {
+            return resident;
+        }
+
+        HashSet<String> seen = new HashSet<>();
+        for (HeliosMessagePart msg : resident) {
+            seen.add(msg.getUuid());
+        }
+        List<HeliosMessagePart> result = new ArrayList<>();
+        for (HeliosMessagePart msg : source.loadMessages(topic.topic, (epoch + 1) * 1000L - 1)) {
+            if (msg.messageType == HeliosMessagePart.MessagePartType.MESSAGE &&
+                    msg.hasValidTimestamp() && seen.add(msg.getUuid())) {
+                result.add(msg);
+            }
         }
+        result.addAll(resident);
+        result.sort(Comparator.comparingLong(HeliosMessagePart::getOrderKey));
+        return result;
     }
 
     private Stream<HeliosMessagePart> getMessageStream(long epoch) {
-        return messages.stream().filter(msg -> {
-            try {
-                return msg.ts != null &&
-                        msg.messageType == HeliosMessagePart.MessagePartType.MESSAGE &&
-                        ZonedDateTime.parse(msg.ts).toEpochSecond() > epoch;
-            } catch (Exception e) {
-                Log.d(TAG, "Could not compare ts in messages " + topic.topic + ": " + e.getMessage());
-                return false;
-            }
-        });
+        return messages.stream().filter(msg ->
+                msg.messageType == HeliosMessagePart.MessagePartType.MESSAGE &&
+                        msg.hasValidTimestamp() &&
+                        Math.floorDiv(msg.getTimestampAsMilliseconds(), 1000L) > epoch);
     }
 
 
+    /**
+     * Get a Bloom filter of the UUIDs of the messages after given time. The filter may also
+     * contain messages up to an hour older.
+     *
+     * @param dateTime Time
+     * @return Bloom filter
+     */
     public BloomFilter<String> getMessageBloom(ZonedDateTime dateTime) {
+        return readDigest(dateTime.toEpochSecond() * 1000L, digest -> digest.getFilter().copy());
+    }
+
+    /**
+     * Get the serialized Bloom filter of the UUIDs of the messages after given time, see
+     * {@link #getMessageBloom(ZonedDateTime)}. The result is cached until messages are added,
+     * so it must not be modified.
+     *
+     * @param dateTime Time
+     * @return serialized Bloom filter
+     */
+    public byte[] formatBloom(ZonedDateTime dateTime) {
+        return readDigest(dateTime.toEpochSecond() * 1000L, MessageBloomDigest::getSerialized);
+    }
+
+    /**
+     * Get the serialized {@link MessageSetSketch} of the UUIDs of the messages after given time.
+     * The sketch covers the same messages as {@link #getMessageBloom(ZonedDateTime)}, see
+     * {@link #getDigestMessages(ZonedDateTime)}. The result is cached until messages are added,
+     * so it must not be modified.
+     *
+     * @param dateTime Time
+     * @param cells Number of cells of the sketch
+     * @return serialized sketch
+     */
+    public byte[] formatSketch(ZonedDateTime dateTime, int cells) {
+        return readDigest(dateTime.toEpochSecond() * 1000L, digest -> digest.getSerializedSketch(cells));
+    }
+
+    /**
+     * Get the messages covered by the digests of messages after given time, i.e., messages
+     * with a UUID from the start of the hour of the time on.
+     *
+     * @param dateTime Time
+     * @return list of messages
+     */
+    public List<HeliosMessagePart> getDigestMessages(ZonedDateTime dateTime) {
+        long start = MessageBloomDigest.windowStart(dateTime.toEpochSecond() * 1000L);
+        List<HeliosMessagePart> result = getMessagesAfter(Math.floorDiv(start, 1000L) - 1);
+        result.removeIf(msg -> msg.getUuid() == null);
+        return result;
+    }
+
+    /**
+     * Read the digest of the messages since given time, moving its window or building it if
+     * needed. The messages to build the digest from are collected without holding the lock,
+     * as they may be read from the history, and the digest is built unless messages were
+     * added meanwhile.
+     *
+     * @param sinceMillis Epoch milliseconds
+     * @param reader Function to read the digest, called holding the lock
+     * @return result of the reader
+     */
+    private <T> T readDigest(long sinceMillis, Function<MessageBloomDigest, T> reader) {
+        long start = MessageBloomDigest.windowStart(sinceMillis);
+        List<HeliosMessagePart> window = null;
+        int collected = 0;
+        while (true) {
+            synchronized (lock) {
+                if (digest == null) {
+                    digest = new MessageBloomDigest();
+                }
+                // Notice messages changed from outside
+                rebuildIndexLocked();
+                if (digest.moveTo(sinceMillis)) {
+                    return reader.apply(digest);
+                }
+                if (window != null && collected == version) {
+                    digest.build(start, window);
+                    return reader.apply(digest);
+                }
+                collected = version;
+            }
+            window = getMessagesAfter(Math.floorDiv(start, 1000L) - 1);
+        }
+    }
+
+    /**
+     * Get the high-water marks of the senders of this conversation, see {@link SequenceTracker}.
+     *
+     * @return map of sender UUID to the sequence number up to which all messages have been
+     * received
+     */
+    public Map<String, Long> getHighWaterMarks() {
         synchronized (lock) {
-            Stream<HeliosMessagePart> msgs = getMessageStream(dateTime.toEpochSecond());
-            BloomFilter<String> filter = BloomFilter.create(
-                    Funnels.stringFunnel(StandardCharsets.UTF_8),
-                    1000, 0.01);
+            rebuildIndexLocked();
+            return getSequencesLocked().getMarks();
+        }
+    }
 
-            msgs.map(msg -> {
-                    //Log.i(TAG, "Add " + msg.getUuid() + "/" + msg.msg + " to filter set");
-                    return msg.getUuid();
-                })
-                .forEach(filter::put);
+    /**
+     * Find the messages we lack compared with the high-water marks of a peer.
+     *
+     * @param remoteMarks High-water marks of the peer by sender UUID
+     * @param limit Maximum number of messages in the gaps
+     * @return list of gaps
+     */
+    public List<SequenceTracker.Gap> findSequenceGaps(Map<String, Long> remoteMarks, int limit) {
+        synchronized (lock) {
+            rebuildIndexLocked();
+            return getSequencesLocked().findGaps(remoteMarks, limit);
+        }
+    }
 
-            return filter;
+    /**
+     * Give up messages that cannot be received, see {@link SequenceTracker#skip}.
+     *
+     * @param gap Gap found by {@link #findSequenceGaps(Map, int)}
+     */
+    public void skipSequenceGap(SequenceTracker.Gap gap) {
+        synchronized (lock) {
+            getSequencesLocked().skip(gap);
         }
     }
 
-    public byte[] formatBloom(ZonedDateTime dateTime) {
-        return formatBloom(getMessageBloom(dateTime));
+    /**
+     * Get the largest sequence number seen from a sender in this conversation.
+     *
+     * @param senderUUID UUID of the sender
+     * @return sequence number, 0 if none
+     */
+    public long getLastSequence(String senderUUID) {
+        synchronized (lock) {
+            rebuildIndexLocked();
+            return getSequencesLocked().getLast(senderUUID);
+        }
+    }
+
+    /**
+     * Must be called holding the lock.
+     *
+     * @return {@link SequenceTracker} of this conversation
+     */
+    private SequenceTracker getSequencesLocked() {
+        if (sequences == null) {
+            sequences = new SequenceTracker();
+        }
+        return sequences;
     }
 
     public static byte[] formatBloom(BloomFilter<String> filter) {
@@ -221,18 +1031,35 @@ public class HeliosConversation {
         }
     }
 
+    /**
+     * Immutable snapshot of the messages of a conversation. The list cannot be changed, the
+     * messages in it are shared with the conversation.
+     */
+    public static class MessageSnapshot {
+        private final List<HeliosMessagePart> messages;
+        private final int version;
+
+        MessageSnapshot(List<HeliosMessagePart> messages, int version) {
+            this.messages = Collections.unmodifiableList(messages);
+            this.version = version;
+        }
+
+        public List<HeliosMessagePart> getMessages() {
+            return messages;
+        }
+
+        /**
+         * Get the version of the conversation at the snapshot, see
+         * {@link HeliosConversation#getVersion()}.
+         *
+         * @return version number
+         */
+        public int getVersion() {
+            return version;
+        }
+    }
+
     private void sortMessageList() {
-        messages.sort(new Comparator<HeliosMessagePart>() {
-            @Override
-            public int compare(HeliosMessagePart o1, HeliosMessagePart o2) {
-                long t1 = o1.getTimestampAsMilliseconds();
-                long t2 = o2.getTimestampAsMilliseconds();
-                if (t1 < t2)
-                    return -1;
-                if (t1 > t2)
-                    return 1;
-                return 0;
-            }
-        });
+        messages.sort(Comparator.comparingLong(HeliosMessagePart::getOrderKey));
     }
 }
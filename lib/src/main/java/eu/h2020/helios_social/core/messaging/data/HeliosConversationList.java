@@ -3,9 +3,24 @@ package eu.h2020.helios_social.core.messaging.data;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Stores a conversation list and provides methods to query topics and conversations separately.
+ * Conversations are indexed by topic name and topic UUID, so that lookups do not scan the list.
+ *
+ * Group conversations can be kept within a memory budget, see {@link #setMemoryBudget}. Direct
+ * message conversations are not windowed or evicted, as their messages are stored by
+ * recipient and cannot be read back by the topic of the conversation.
+ *
+ * Every change of the list publishes a new immutable {@link Snapshot}. Readers on other
+ * threads, e.g., UI and sync, should iterate {@link #getSnapshot()}, which never blocks and
+ * is not affected by later changes.
  */
 public class HeliosConversationList {
     private static final String TAG = "HeliosConversationList";
@@ -16,6 +31,19 @@ public class HeliosConversationList {
     private ArrayList<HeliosTopicContext> topics;
     //Collections.synchronizedList(new ArrayList
     private final Object lock = new Object();
+    // Conversations by topic name and UUID, the first conversation with a given key wins
+    private final KeyIndex conversationsByName = new KeyIndex();
+    private final KeyIndex conversationsByUUID = new KeyIndex();
+    // Message window of the conversations, see HeliosConversation.setWindow
+    private HeliosMessageHistory history;
+    private int windowMessages = 0;
+    private long windowBytes = 0;
+    // Memory budget of the conversations, 0 if not limited
+    private HeliosMessageHistory evictionHistory;
+    private volatile long memoryBudget = 0;
+    // Total size of the messages in memory, kept up to date by the conversations
+    private final AtomicLong residentBytes = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList(), Collections.emptyList(), 0);
 
     /**
      * Constructor.
@@ -33,9 +61,145 @@ public class HeliosConversationList {
     public void addConversation(HeliosConversation conv) {
         Log.d(TAG, "addConversation: " + conv.topic.topic);
         synchronized (lock) {
-            conversations.add(conv);
-            topics.add(conv.topic);
+            addConversationLocked(conv);
+            publishLocked();
         }
+        enforceMemoryBudget(conv);
+    }
+
+    private void addConversationLocked(HeliosConversation conv) {
+        if (history != null && isGroupConversation(conv)) {
+            conv.setWindow(history, windowMessages, windowBytes);
+        }
+        conversations.add(conv);
+        topics.add(conv.topic);
+        indexLocked(conv);
+        residentBytes.addAndGet(conv.setOwner(this));
+    }
+
+    private void removeConversationLocked(HeliosConversation conv) {
+        conversations.remove(conv);
+        if (conv.topic.topic != null) {
+            conversationsByName.remove(conv.topic.topic, conv);
+        }
+        if (conv.topic.uuid != null && !conv.topic.uuid.isEmpty()) {
+            conversationsByUUID.remove(conv.topic.uuid, conv);
+        }
+        residentBytes.addAndGet(-conv.setOwner(null));
+    }
+
+    /**
+     * Publish a snapshot of the current lists. Must be called holding the lock after every
+     * change.
+     */
+    private void publishLocked() {
+        snapshot = new Snapshot(new ArrayList<>(conversations), new ArrayList<>(topics), snapshot.version + 1);
+    }
+
+    /**
+     * Keep only the newest messages of each conversation in memory, now and for conversations
+     * added later. Older messages are read from the history when needed.
+     *
+     * @param history History of the messages, or null to keep all messages in memory
+     * @param maxMessages Maximum number of messages in memory per conversation, or 0 for no limit
+     * @param maxBytes Approximate maximum size of messages in memory per conversation, or 0 for
+     *                 no limit
+     */
+    public void setMessageWindow(HeliosMessageHistory history, int maxMessages, long maxBytes) {
+        synchronized (lock) {
+            this.history = history;
+            this.windowMessages = maxMessages;
+            this.windowBytes = maxBytes;
+            for (HeliosConversation conversation : conversations) {
+                if (isGroupConversation(conversation)) {
+                    conversation.setWindow(history, maxMessages, maxBytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the messages of group conversations in memory within a budget. When the budget is
+     * exceeded, the least recently used conversations are evicted from memory, keeping only
+     * their topic, latest message and message count. An evicted conversation is reloaded from
+     * the history when it is used again, e.g., when it is looked up from this list or a
+     * message is added to it.
+     *
+     * @param history History of the messages, or null to disable eviction
+     * @param maxBytes Approximate maximum size of messages in memory, or 0 for no limit
+     */
+    public void setMemoryBudget(HeliosMessageHistory history, long maxBytes) {
+        synchronized (lock) {
+            this.evictionHistory = history;
+            this.memoryBudget = history == null ? 0 : maxBytes;
+        }
+        enforceMemoryBudget(null);
+    }
+
+    /**
+     * Update the total size of the messages in memory. Called by the conversations of this
+     * list when their messages are added or dropped from memory.
+     *
+     * @param delta Change of size in bytes
+     */
+    void onResidentBytesChanged(long delta) {
+        residentBytes.addAndGet(delta);
+    }
+
+    /**
+     * Keep the memory budget after messages were added to a conversation. Cheap unless the
+     * budget is exceeded.
+     *
+     * @param current {@link HeliosConversation} the messages were added to, not evicted
+     */
+    void checkMemoryBudget(HeliosConversation current) {
+        long budget = memoryBudget;
+        if (budget > 0 && residentBytes.get() > budget) {
+            enforceMemoryBudget(current);
+        }
+    }
+
+    /**
+     * Get the approximate size of the messages of all conversations in memory.
+     *
+     * @return size in bytes
+     */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    /**
+     * Evict the least recently used conversations while the memory budget is exceeded.
+     *
+     * @param current {@link HeliosConversation} in use, not evicted, or null
+     */
+    private void enforceMemoryBudget(HeliosConversation current) {
+        if (memoryBudget <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (residentBytes.get() <= memoryBudget) {
+                return;
+            }
+
+            ArrayList<HeliosConversation> candidates = new ArrayList<>();
+            for (HeliosConversation conv : conversations) {
+                if (conv != current && !conv.isEvicted() && isGroupConversation(conv)) {
+                    candidates.add(conv);
+                }
+            }
+            candidates.sort(Comparator.comparingLong(HeliosConversation::getLastAccess));
+            for (HeliosConversation conv : candidates) {
+                if (residentBytes.get() <= memoryBudget) {
+                    break;
+                }
+                conv.evict(evictionHistory);
+            }
+        }
+    }
+
+    private static boolean isGroupConversation(HeliosConversation conv) {
+        return conv.topic == null || conv.topic.uuid == null || conv.topic.uuid.isEmpty();
     }
 
     /**
@@ -46,16 +210,26 @@ public class HeliosConversationList {
     public void replaceConversations(ArrayList<HeliosConversation> conversationArr) {
         Log.d(TAG, "replaceConversations()");
         synchronized (lock) {
+            for (HeliosConversation conversation : conversations) {
+                conversation.setOwner(null);
+            }
             conversations.clear();
+            residentBytes.set(0);
             topics.clear();
+            conversationsByName.clear();
+            conversationsByUUID.clear();
             for (HeliosConversation conversation : conversationArr) {
-                addConversation(conversation);
+                Log.d(TAG, "addConversation: " + conversation.topic.topic);
+                addConversationLocked(conversation);
             }
+            publishLocked();
         }
+        enforceMemoryBudget(null);
     }
 
     /**
-     * Get list of topics.
+     * Get list of topics. The list is changed in place, so it must only be used in the thread
+     * that changes the conversations. Use {@link #getSnapshot()} in other threads.
      *
      * @return ArrayList of {@link HeliosTopicContext}
      */
@@ -64,7 +238,8 @@ public class HeliosConversationList {
     }
 
     /**
-     * Get list of conversations.
+     * Get list of conversations. The list is changed in place, so it must only be used in the
+     * thread that changes the conversations. Use {@link #getSnapshot()} in other threads.
      *
      * @return ArrayList of {@link HeliosConversation}
      */
@@ -72,46 +247,91 @@ public class HeliosConversationList {
         return conversations;
     }
 
+    /**
+     * Get the latest snapshot of the conversations and topics. Does not block.
+     *
+     * @return {@link Snapshot}
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
     /**
      * Get specific conversation by topic.
      *
+     * Reloads the messages of an evicted conversation from the history.
+     *
      * @param topicName to search.
      * @return {@link HeliosConversation} or null if not found.
      */
     public HeliosConversation getConversation(String topicName) {
         Log.d(TAG, "getConversation: " + topicName);
+        return rehydrate(findConversation(topicName));
+    }
 
-        synchronized (lock) {
-            for (int i = 0; i < conversations.size(); i++) {
-                HeliosConversation conversation = conversations.get(i);
-
-                if (conversation.topic.topic.equals(topicName)) {
-                    return conversation;
-                }
-            }
-            return null;
-        }
+    private HeliosConversation findConversation(String topicName) {
+        return topicName == null ? null : conversationsByName.get(topicName);
     }
 
     /**
      * Get specific conversation by topic UUID.
      *
+     * Reloads the messages of an evicted conversation from the history.
+     *
      * @param topicUUID UUID to search.
      * @return {@link HeliosConversation} or null if not found (or no UUID for topic).
      */
     public HeliosConversation getConversationByTopicUUID(String topicUUID) {
+        return rehydrate(findConversationByTopicUUID(topicUUID));
+    }
+
+    private HeliosConversation findConversationByTopicUUID(String topicUUID) {
+        if (topicUUID == null || topicUUID.isEmpty()) {
+            return null;
+        }
+        return conversationsByUUID.get(topicUUID);
+    }
+
+    /**
+     * Reload the messages of a conversation that has been evicted from memory, so that a
+     * conversation looked up, e.g., to be shown, has all its messages. Must be called without
+     * holding the lock.
+     *
+     * @param conv {@link HeliosConversation} or null
+     * @return the conversation
+     */
+    private static HeliosConversation rehydrate(HeliosConversation conv) {
+        if (conv != null) {
+            conv.ensureResident();
+        }
+        return conv;
+    }
+
+    /**
+     * Change the topic name of a conversation and keep the topic name index up to date. Topic
+     * names must only be changed with this method, otherwise the conversation is not found by
+     * its new name.
+     *
+     * @param conv {@link HeliosConversation} to rename.
+     * @param topicName New topic name.
+     */
+    public void renameConversation(HeliosConversation conv, String topicName) {
         synchronized (lock) {
-            if (topicUUID == null) {
-                return null;
+            String oldName = conv.topic.topic;
+            if (oldName != null && oldName.equals(topicName)) {
+                return;
             }
-
-            for (int i = 0; i < conversations.size(); i++) {
-                HeliosConversation conversation = conversations.get(i);
-                if (topicUUID.equals(conversation.topic.uuid)) {
-                    return conversation;
-                }
+            conv.topic.topic = topicName;
+            if (conv.getOwner() != this) {
+                return;
             }
-            return null;
+            if (oldName != null) {
+                conversationsByName.remove(oldName, conv);
+            }
+            if (topicName != null) {
+                conversationsByName.add(topicName, conv);
+            }
+            publishLocked();
         }
     }
 
@@ -123,33 +343,26 @@ public class HeliosConversationList {
      */
     public boolean deleteConversationByTopicUUID(String topicUUID) {
         synchronized (lock) {
-            if (topicUUID == null) {
-                return false;
-            }
-            boolean res = false;
-            HeliosConversation conversation = null;
-            for (HeliosConversation conv : conversations) {
-                if (conv.topic.uuid != null) {
-                    if (conv.topic.uuid.equals(topicUUID)) {
-                        conversation = conv;
-                    }
-                }
-            }
-            HeliosTopicContext tpc = null;
-            for (HeliosTopicContext top : topics) {
-                if (top.uuid != null) {
-                    if (top.uuid.equals(topicUUID)) {
-                        tpc = top;
-                    }
-                }
-            }
+            HeliosConversation conversation = findConversationByTopicUUID(topicUUID);
             // TODO: sync
-            if (conversation != null && tpc != null) {
-                topics.remove(tpc);
-                conversations.remove(conversation);
-                res = true;
+            if (conversation == null || !topics.remove(conversation.topic)) {
+                return false;
             }
-            return res;
+            removeConversationLocked(conversation);
+            publishLocked();
+            return true;
+        }
+    }
+
+    private void indexLocked(HeliosConversation conv) {
+        if (conv.topic == null) {
+            return;
+        }
+        if (conv.topic.topic != null) {
+            conversationsByName.add(conv.topic.topic, conv);
+        }
+        if (conv.topic.uuid != null && !conv.topic.uuid.isEmpty()) {
+            conversationsByUUID.add(conv.topic.uuid, conv);
         }
     }
 
@@ -162,4 +375,77 @@ public class HeliosConversationList {
         return sInstance;
     }
 
+    /**
+     * Index of conversations by a key, e.g., topic name. The first conversation added with a
+     * key is found by it. Later conversations with the same key are kept aside and take over
+     * when the first one is removed. Changed holding the lock of the list, read without it.
+     */
+    private static class KeyIndex {
+        private final ConcurrentHashMap<String, HeliosConversation> first = new ConcurrentHashMap<>();
+        private final HashMap<String, ArrayList<HeliosConversation>> others = new HashMap<>();
+
+        HeliosConversation get(String key) {
+            return first.get(key);
+        }
+
+        void add(String key, HeliosConversation conv) {
+            if (first.putIfAbsent(key, conv) != null) {
+                others.computeIfAbsent(key, k -> new ArrayList<>()).add(conv);
+            }
+        }
+
+        void remove(String key, HeliosConversation conv) {
+            ArrayList<HeliosConversation> waiting = others.get(key);
+            if (waiting == null) {
+                first.remove(key, conv);
+                return;
+            }
+            if (!waiting.remove(conv) && first.get(key) == conv) {
+                // Replaced in one step, so that readers never miss the key
+                first.put(key, waiting.remove(0));
+            }
+            if (waiting.isEmpty()) {
+                others.remove(key);
+            }
+        }
+
+        void clear() {
+            first.clear();
+            others.clear();
+        }
+    }
+
+    /**
+     * Immutable snapshot of the conversations and topics. The conversations themselves are
+     * shared, see {@link HeliosConversation#getSnapshot()} for their messages.
+     */
+    public static class Snapshot {
+        private final List<HeliosConversation> conversations;
+        private final List<HeliosTopicContext> topics;
+        private final long version;
+
+        Snapshot(List<HeliosConversation> conversations, List<HeliosTopicContext> topics, long version) {
+            this.conversations = Collections.unmodifiableList(conversations);
+            this.topics = Collections.unmodifiableList(topics);
+            this.version = version;
+        }
+
+        public List<HeliosConversation> getConversations() {
+            return conversations;
+        }
+
+        public List<HeliosTopicContext> getTopics() {
+            return topics;
+        }
+
+        /**
+         * Get the version of this snapshot. A newer snapshot has a larger version.
+         *
+         * @return version number
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
 }
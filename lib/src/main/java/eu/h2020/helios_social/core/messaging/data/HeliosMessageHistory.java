@@ -0,0 +1,36 @@
+package eu.h2020.helios_social.core.messaging.data;
+
+import java.util.List;
+
+/**
+ * Persistent message history, used by windowed {@link HeliosConversation}s to read messages
+ * that are no longer kept in memory.
+ */
+public interface HeliosMessageHistory {
+    /**
+     * Load messages of a topic that are newer than given time, oldest first.
+     *
+     * @param topic Topic name
+     * @param sinceMillis Epoch milliseconds, only newer messages are loaded
+     * @return list of messages
+     */
+    List<HeliosMessagePart> loadMessages(String topic, long sinceMillis);
+
+    /**
+     * Load a page of messages of a topic that are older than given time, oldest first.
+     *
+     * @param topic Topic name
+     * @param beforeMillis Epoch milliseconds, only older messages are loaded
+     * @param limit Maximum number of messages, the newest ones are loaded
+     * @return list of messages
+     */
+    List<HeliosMessagePart> loadMessagesBefore(String topic, long beforeMillis, int limit);
+
+    /**
+     * Check if a message is in the history.
+     *
+     * @param uuid UUID of the message
+     * @return true if the message is found
+     */
+    boolean hasMessage(String uuid);
+}
@@ -2,15 +2,22 @@ package eu.h2020.helios_social.core.messaging.data;
 
 import android.util.Log;
 
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.time.format.FormatStyle;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
+import eu.h2020.helios_social.core.messaging.util.HybridLogicalClock;
+
 /**
  * Basic class to store a message that is sent to other HELIOS users - in a serialized format.
  * See {@link JsonMessageConverter}.
@@ -33,6 +40,22 @@ public class HeliosMessagePart {
     public MessagePartType originalType;
     public String senderNetworkId;
     public String protocol;
+    // UUIDs of received direct messages acked to the recipient, null if the sender does not ack
+    public List<String> acks;
+    // Heartbeat MessageSetSketch of the messages since sinceTs, null if the sender does not support it
+    public byte[] syncSketch;
+    // Sequence number of the message among the messages of the sender in the topic, from 1 on,
+    // null if not numbered
+    public Long seq;
+    // Heartbeat high-water marks, the sequence number up to which the messages of each sender
+    // UUID have been received, null if the sender does not number messages
+    public Map<String, Long> highWaterMarks;
+    // HybridLogicalClock time stamp given by the sender, null if the sender has no clock
+    public Long hlc;
+    // ts parsed into epoch milliseconds, not serialized. Parsed again if ts is changed.
+    private transient volatile ParsedTimestamp parsedTs;
+    // Localized formatter of the current locale and time zone
+    private static volatile LocaleFormatter sLocaleFormatter;
 
     public enum MessagePartType {
         MESSAGE,
@@ -40,7 +63,9 @@ public class HeliosMessagePart {
         JOIN,
         LEAVE,
         PUBSUB_SYNC_RESEND,
-        INVALID
+        INVALID,
+        SYNC_REQUEST,
+        SYNC_RESPONSE
     }
 
     public static MessagePartType IntToMessagePartType(int val)
@@ -116,9 +141,21 @@ public class HeliosMessagePart {
         this.localeTs = message.localeTs;
         this.msgReceived = message.msgReceived;
         this.sinceTs = message.sinceTs;
+        if (message.acks != null) {
+            this.acks = new ArrayList<>(message.acks);
+        }
+        if (message.syncSketch != null) {
+            this.syncSketch = message.syncSketch.clone();
+        }
+        this.seq = message.seq;
+        if (message.highWaterMarks != null) {
+            this.highWaterMarks = new HashMap<>(message.highWaterMarks);
+        }
+        this.hlc = message.hlc;
         this.originalType = message.originalType;
         this.senderNetworkId = message.senderNetworkId;
         this.protocol = message.protocol;
+        this.parsedTs = message.parsedTs;
     }
 
 
@@ -132,11 +169,11 @@ public class HeliosMessagePart {
         // TODO: make getter and setter for ts.
 
         if (localeTs == null) {
-            try {
-                ZonedDateTime dt = ZonedDateTime.parse(ts);
-                localeTs = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM, FormatStyle.SHORT).withZone(ZoneId.systemDefault()).withLocale(Locale.getDefault()).format(dt);
+            ParsedTimestamp parsed = getParsedTimestamp();
+            if (parsed.valid) {
+                localeTs = getLocaleFormatter().format(Instant.ofEpochMilli(parsed.millis));
                 Log.d(TAG, "setNewDate " + localeTs);
-            } catch (DateTimeParseException ex) {
+            } else {
                 // use plain text if old format
                 localeTs = ts;
                 Log.d(TAG, "old format error using old " + localeTs);
@@ -145,6 +182,36 @@ public class HeliosMessagePart {
         return localeTs;
     }
 
+    /**
+     * Check if the sender timestamp `ts` of this message can be parsed.
+     *
+     * @return true if the timestamp is valid
+     */
+    public boolean hasValidTimestamp() {
+        return getParsedTimestamp().valid;
+    }
+
+    private ParsedTimestamp getParsedTimestamp() {
+        ParsedTimestamp parsed = parsedTs;
+        String current = ts;
+        if (parsed == null || parsed.ts != current) {
+            parsed = new ParsedTimestamp(current);
+            parsedTs = parsed;
+        }
+        return parsed;
+    }
+
+    private static DateTimeFormatter getLocaleFormatter() {
+        Locale locale = Locale.getDefault();
+        ZoneId zone = ZoneId.systemDefault();
+        LocaleFormatter formatter = sLocaleFormatter;
+        if (formatter == null || !formatter.locale.equals(locale) || !formatter.zone.equals(zone)) {
+            formatter = new LocaleFormatter(locale, zone);
+            sLocaleFormatter = formatter;
+        }
+        return formatter.formatter;
+    }
+
     /**
      * Get the UUID of this message.
      * @return String representation of the UUID.
@@ -178,19 +245,61 @@ public class HeliosMessagePart {
      * @return Message send time as milliseconds from Unix Epoch time
      */
     public long getTimestampAsMilliseconds() {
-        // TODO: We should store this, so we would not create it every time it is asked.
-        long millis;
-        if (ts != null) {
-            try {
-                millis = java.time.ZonedDateTime.parse(ts).toInstant().toEpochMilli();
-            } catch (DateTimeParseException e) {
-                millis = java.time.ZonedDateTime.now().toInstant().toEpochMilli();
-                Log.d(TAG, "Cannot parse timestamp - setting as current time");
+        // Parsed only once, the result is kept until ts is changed
+        return getParsedTimestamp().millis;
+    }
+
+    /**
+     * Get the key that orders this message in a conversation: the {@link HybridLogicalClock}
+     * time stamp of the sender or, if the sender has no clock, the sender timestamp `ts`.
+     *
+     * @return order key, compare as a long
+     */
+    public long getOrderKey() {
+        Long clock = hlc;
+        return clock != null ? clock : HybridLogicalClock.fromMillis(getTimestampAsMilliseconds());
+    }
+
+    /**
+     * Sender timestamp parsed into epoch milliseconds. A missing or invalid timestamp is
+     * replaced with the time it was first parsed.
+     */
+    private static class ParsedTimestamp {
+        final String ts;
+        final long millis;
+        final boolean valid;
+
+        ParsedTimestamp(String ts) {
+            this.ts = ts;
+            long parsed;
+            boolean ok = false;
+            if (ts != null) {
+                try {
+                    parsed = ZonedDateTime.parse(ts).toInstant().toEpochMilli();
+                    ok = true;
+                } catch (DateTimeParseException e) {
+                    parsed = System.currentTimeMillis();
+                    Log.d(TAG, "Cannot parse timestamp - setting as current time");
+                }
+            } else {
+                parsed = System.currentTimeMillis();
+                Log.d(TAG, "Timestamp missing - setting as current time");
             }
-        } else {
-            millis = java.time.ZonedDateTime.now().toInstant().toEpochMilli();
-            Log.d(TAG, "Timestamp missing - setting as current time");
+            this.millis = parsed;
+            this.valid = ok;
+        }
+    }
+
+    private static class LocaleFormatter {
+        final Locale locale;
+        final ZoneId zone;
+        final DateTimeFormatter formatter;
+
+        LocaleFormatter(Locale locale, ZoneId zone) {
+            this.locale = locale;
+            this.zone = zone;
+            this.formatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM, FormatStyle.SHORT)
+                    .withZone(zone).withLocale(locale);
         }
-        return millis;
     }
 }
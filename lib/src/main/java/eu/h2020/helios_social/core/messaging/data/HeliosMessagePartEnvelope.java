@@ -0,0 +1,57 @@
+package eu.h2020.helios_social.core.messaging.data;
+
+import eu.h2020.helios_social.core.messaging.HeliosMessage;
+
+/**
+ * A {@link HeliosMessage} that carries an already built {@link HeliosMessagePart}. Publishing
+ * an envelope does not need to parse the message text to find out whether it is a message
+ * part, and the part is serialized to JSON only once, when the text is first needed.
+ */
+public class HeliosMessagePartEnvelope extends HeliosMessage {
+    private final HeliosMessagePart part;
+    private volatile String json;
+
+    /**
+     * Constructor for an envelope that is serialized lazily.
+     *
+     * @param part Message part to send. Must not be modified after this.
+     */
+    public HeliosMessagePartEnvelope(HeliosMessagePart part) {
+        this(part, null, null);
+    }
+
+    /**
+     * Constructor for an envelope with a pre-encoded JSON form of the message part.
+     *
+     * @param part Message part to send. Must not be modified after this.
+     * @param json JSON form of the part, or null to serialize lazily.
+     * @param mediaFileName file name for the attached media file, or null.
+     */
+    public HeliosMessagePartEnvelope(HeliosMessagePart part, String json, String mediaFileName) {
+        super(null, mediaFileName);
+        this.part = part;
+        this.json = json;
+    }
+
+    /**
+     * Get the message part.
+     * @return {@link HeliosMessagePart}
+     */
+    public HeliosMessagePart getMessagePart() {
+        return part;
+    }
+
+    /**
+     * Get the message part in JSON format.
+     * @return JSON text
+     */
+    @Override
+    public String getMessage() {
+        String result = json;
+        if (result == null) {
+            result = JsonMessageConverter.getInstance().convertToJson(part);
+            json = result;
+        }
+        return result;
+    }
+}
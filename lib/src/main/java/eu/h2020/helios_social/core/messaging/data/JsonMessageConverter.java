@@ -2,10 +2,17 @@ package eu.h2020.helios_social.core.messaging.data;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,6 +23,8 @@ import java.util.List;
 public class JsonMessageConverter {
     private static final String TAG = "JsonMessageConverter";
     private static JsonMessageConverter sInstance = new JsonMessageConverter();
+    private static final String UUID_FIELD = "\"uuid\":\"";
+    private static final String MSG_FIELD = "msg";
     private GsonBuilder gsonBuilder;
     private Gson gson;
 
@@ -39,6 +48,55 @@ public class JsonMessageConverter {
         return gson.toJson(msg);
     }
 
+    /**
+     * Find the UUID of a {@link HeliosMessagePart} in JSON format without parsing the message.
+     * Only the compact form produced by {@link #convertToJson(HeliosMessagePart)} is recognized.
+     *
+     * @param json JSON of a {@link HeliosMessagePart}
+     * @return UUID, or null if it was not found
+     */
+    public String peekUuid(String json) {
+        if (json == null) {
+            return null;
+        }
+        int start = json.indexOf(UUID_FIELD);
+        if (start < 0) {
+            return null;
+        }
+        start += UUID_FIELD.length();
+        int end = json.indexOf('"', start);
+        if (end < 0) {
+            return null;
+        }
+        return json.substring(start, end);
+    }
+
+    /**
+     * Find the message text of a UTF-8 encoded {@link HeliosMessagePart} in JSON format. The
+     * JSON is scanned only up to the text, and other fields are skipped without decoding.
+     *
+     * @param data UTF-8 encoded JSON of a {@link HeliosMessagePart}
+     * @return message text, or null if it was not found
+     */
+    public String peekMessageText(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(data), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (MSG_FIELD.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Not a HeliosMessagePart
+        }
+        return null;
+    }
+
     /**
      * Read a JSON message of {@link HeliosMessagePart}
      *
@@ -50,6 +108,57 @@ public class JsonMessageConverter {
         return gson.fromJson(json, HeliosMessagePart.class);
     }
 
+    /**
+     * Read a UTF-8 encoded JSON message of {@link HeliosMessagePart} directly from bytes,
+     * without first converting the payload into a String.
+     *
+     * @param data UTF-8 encoded JSON
+     * @return {@link HeliosMessagePart}
+     * @throws JsonParseException if JSON parsing failed
+     */
+    public HeliosMessagePart readHeliosMessagePart(byte[] data) throws JsonParseException {
+        return readHeliosMessagePart(data, 0, data.length);
+    }
+
+    /**
+     * Read a UTF-8 encoded JSON message of {@link HeliosMessagePart} from a region of a byte
+     * array, e.g., a pooled receive buffer.
+     *
+     * @param data UTF-8 encoded JSON
+     * @param offset start of the JSON in data
+     * @param length length of the JSON in bytes
+     * @return {@link HeliosMessagePart}
+     * @throws JsonParseException if JSON parsing failed
+     */
+    public HeliosMessagePart readHeliosMessagePart(byte[] data, int offset, int length) throws JsonParseException {
+        InputStreamReader reader = new InputStreamReader(
+                new ByteArrayInputStream(data, offset, length), StandardCharsets.UTF_8);
+        return gson.fromJson(reader, HeliosMessagePart.class);
+    }
+
+    /**
+     * Convert a list of {@link HeliosMessagePart} to JSON.
+     *
+     * @param messages List of {@link HeliosMessagePart}
+     * @return JSON String.
+     */
+    public String convertMessageListToJson(List<HeliosMessagePart> messages) {
+        return gson.toJson(messages);
+    }
+
+    /**
+     * Read a UTF-8 encoded JSON list of {@link HeliosMessagePart}.
+     *
+     * @param data UTF-8 encoded JSON
+     * @return List of {@link HeliosMessagePart}
+     * @throws JsonParseException if JSON parsing failed
+     */
+    public List<HeliosMessagePart> readMessageList(byte[] data) throws JsonParseException {
+        Type type = new TypeToken<List<HeliosMessagePart>>() {}.getType();
+        InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8);
+        return gson.fromJson(reader, type);
+    }
+
     /**
      * Convert ArrayList of {@link HeliosConversation} to JSON.
      *
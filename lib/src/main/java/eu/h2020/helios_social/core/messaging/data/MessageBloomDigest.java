@@ -0,0 +1,202 @@
+package eu.h2020.helios_social.core.messaging.data;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Bloom filter of the message UUIDs of a conversation within a time window, as sent in
+ * heartbeats. Messages are kept in hourly buckets, so that the window can be moved without
+ * reading the messages again. The filter is updated as messages are added and rebuilt from the
+ * buckets only when the window moves to a new bucket or the filter fills up. The filter is sized
+ * to the number of messages and its serialized form is cached.
+ *
+ * A {@link MessageSetSketch} of the same messages is kept as well once it has been requested.
+ * It is updated as messages enter and leave the window, and rebuilt only if its size changes.
+ *
+ * Not thread safe, used holding the lock of the {@link HeliosConversation}.
+ */
+class MessageBloomDigest {
+    static final long BUCKET_MILLIS = 60 * 60 * 1000L;
+    private static final int MIN_INSERTIONS = 64;
+    private static final double FPP = 0.01;
+    private static final long NOT_BUILT = Long.MIN_VALUE;
+
+    // Bucket number to UUIDs of the messages in the bucket
+    private final TreeMap<Long, ArrayList<String>> buckets = new TreeMap<>();
+    private int count = 0;
+    private long windowBucket = NOT_BUILT;
+    private BloomFilter<String> filter;
+    private int capacity = 0;
+    private byte[] serialized;
+    private MessageSetSketch sketch;
+    private byte[] serializedSketch;
+
+    static long bucketOf(long millis) {
+        return Math.floorDiv(millis, BUCKET_MILLIS);
+    }
+
+    /**
+     * Get the start of the window that would contain messages since given time.
+     *
+     * @param sinceMillis Epoch milliseconds
+     * @return epoch milliseconds of the start of the first bucket
+     */
+    static long windowStart(long sinceMillis) {
+        return bucketOf(sinceMillis) * BUCKET_MILLIS;
+    }
+
+    /**
+     * Move the window to start at the bucket of given time, if possible without the messages.
+     *
+     * @param sinceMillis Epoch milliseconds
+     * @return true if the digest covers the window, false if it must be built
+     */
+    boolean moveTo(long sinceMillis) {
+        long bucket = bucketOf(sinceMillis);
+        if (windowBucket == NOT_BUILT || bucket < windowBucket) {
+            return false;
+        }
+        if (bucket > windowBucket) {
+            for (List<String> expired : buckets.headMap(bucket).values()) {
+                count -= expired.size();
+                if (sketch != null) {
+                    for (String uuid : expired) {
+                        sketch.remove(uuid);
+                    }
+                }
+            }
+            buckets.headMap(bucket).clear();
+            windowBucket = bucket;
+            rebuildFilter();
+            serializedSketch = null;
+        }
+        return true;
+    }
+
+    /**
+     * Build the digest.
+     *
+     * @param sinceMillis Epoch milliseconds of the window, see {@link #windowStart(long)}
+     * @param messages All messages of the window
+     */
+    void build(long sinceMillis, List<HeliosMessagePart> messages) {
+        buckets.clear();
+        count = 0;
+        windowBucket = bucketOf(sinceMillis);
+        sketch = null;
+        serializedSketch = null;
+        for (HeliosMessagePart msg : messages) {
+            put(msg);
+        }
+        rebuildFilter();
+    }
+
+    /**
+     * Add a message, if the digest has been built and the message is in the window.
+     *
+     * @param msg {@link HeliosMessagePart}
+     */
+    void add(HeliosMessagePart msg) {
+        if (windowBucket == NOT_BUILT || !put(msg)) {
+            return;
+        }
+        if (count > capacity) {
+            rebuildFilter();
+        } else {
+            filter.put(msg.getUuid());
+            serialized = null;
+        }
+        if (sketch != null) {
+            sketch.add(msg.getUuid());
+            serializedSketch = null;
+        }
+    }
+
+    /**
+     * Forget the messages, e.g., if the message list has been replaced. The digest is built
+     * again when it is needed.
+     */
+    void invalidate() {
+        buckets.clear();
+        count = 0;
+        windowBucket = NOT_BUILT;
+        filter = null;
+        serialized = null;
+        sketch = null;
+        serializedSketch = null;
+    }
+
+    BloomFilter<String> getFilter() {
+        return filter;
+    }
+
+    byte[] getSerialized() {
+        if (serialized == null) {
+            serialized = HeliosConversation.formatBloom(filter);
+        }
+        return serialized;
+    }
+
+    /**
+     * Get the serialized sketch of the messages.
+     *
+     * @param cells Number of cells of the sketch, see {@link MessageSetSketch#cellsFor(int)}
+     * @return serialized {@link MessageSetSketch}
+     */
+    byte[] getSerializedSketch(int cells) {
+        int size = MessageSetSketch.cellsFor(cells);
+        if (sketch == null || sketch.getCellCount() != size) {
+            sketch = new MessageSetSketch(size);
+            for (List<String> uuids : buckets.values()) {
+                for (String uuid : uuids) {
+                    sketch.add(uuid);
+                }
+            }
+            serializedSketch = null;
+        }
+        if (serializedSketch == null) {
+            serializedSketch = sketch.toBytes();
+        }
+        return serializedSketch;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    private boolean put(HeliosMessagePart msg) {
+        if (msg.getUuid() == null || msg.messageType != HeliosMessagePart.MessagePartType.MESSAGE ||
+                !msg.hasValidTimestamp()) {
+            return false;
+        }
+        long bucket = bucketOf(msg.getTimestampAsMilliseconds());
+        if (bucket < windowBucket) {
+            return false;
+        }
+        ArrayList<String> uuids = buckets.get(bucket);
+        if (uuids == null) {
+            uuids = new ArrayList<>();
+            buckets.put(bucket, uuids);
+        }
+        uuids.add(msg.getUuid());
+        count++;
+        return true;
+    }
+
+    private void rebuildFilter() {
+        // Room to grow before the filter is rebuilt again
+        capacity = Math.max(MIN_INSERTIONS, count * 2);
+        filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), capacity, FPP);
+        for (List<String> uuids : buckets.values()) {
+            for (String uuid : uuids) {
+                filter.put(uuid);
+            }
+        }
+        serialized = null;
+    }
+}
@@ -0,0 +1,252 @@
+package eu.h2020.helios_social.core.messaging.data;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Invertible Bloom lookup table of message UUIDs, used to reconcile the messages of a
+ * conversation with a peer. Subtracting the sketch of the peer from the sketch of the same
+ * size of our messages and decoding the result gives the exact difference of the two sets,
+ * as long as the difference is small compared to the size of the sketch. The size of the
+ * sketch depends on the expected difference only, not on the number of messages.
+ *
+ * UUIDs are stored as 64-bit keys, see {@link #keyOf(String)}. Each side maps the keys of the
+ * difference back to its own messages.
+ */
+public class MessageSetSketch {
+    public static final int MIN_CELLS = 30;
+    public static final int MAX_CELLS = 3000;
+    private static final int HASH_COUNT = 3;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int CELL_BYTES = 4 + 8 + 4;
+    private static final long CHECK_SEED = 0x5bd1e9955bd1e995L;
+
+    private final int[] counts;
+    private final long[] keySums;
+    private final int[] checkSums;
+
+    /**
+     * Constructor of an empty sketch.
+     *
+     * @param cells Number of cells, rounded up to a multiple of three
+     */
+    public MessageSetSketch(int cells) {
+        int size = cellsFor(cells);
+        counts = new int[size];
+        keySums = new long[size];
+        checkSums = new int[size];
+    }
+
+    /**
+     * Get the valid number of cells closest to given number.
+     *
+     * @param cells Number of cells
+     * @return number of cells between {@link #MIN_CELLS} and {@link #MAX_CELLS}, a multiple
+     * of three
+     */
+    public static int cellsFor(int cells) {
+        int size = Math.min(MAX_CELLS, Math.max(MIN_CELLS, cells));
+        return (size + HASH_COUNT - 1) / HASH_COUNT * HASH_COUNT;
+    }
+
+    /**
+     * Get the key of a message UUID.
+     *
+     * @param uuid UUID of the message
+     * @return 64-bit key
+     */
+    public static long keyOf(String uuid) {
+        return Hashing.murmur3_128().hashString(uuid, StandardCharsets.UTF_8).asLong();
+    }
+
+    public int getCellCount() {
+        return counts.length;
+    }
+
+    public void add(String uuid) {
+        update(keyOf(uuid), 1);
+    }
+
+    public void remove(String uuid) {
+        update(keyOf(uuid), -1);
+    }
+
+    /**
+     * Subtract another sketch from this one.
+     *
+     * @param other Sketch of the same size
+     * @return new sketch of the difference
+     */
+    public MessageSetSketch subtract(MessageSetSketch other) {
+        if (other.counts.length != counts.length) {
+            throw new IllegalArgumentException("Sketch sizes differ: " + counts.length + " and " + other.counts.length);
+        }
+        MessageSetSketch result = new MessageSetSketch(counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            result.counts[i] = counts[i] - other.counts[i];
+            result.keySums[i] = keySums[i] ^ other.keySums[i];
+            result.checkSums[i] = checkSums[i] ^ other.checkSums[i];
+        }
+        return result;
+    }
+
+    /**
+     * Decode a sketch made by {@link #subtract(MessageSetSketch)}.
+     *
+     * @return the difference, or null if it is too large for the size of the sketch
+     */
+    public Difference decode() {
+        int[] c = counts.clone();
+        long[] k = keySums.clone();
+        int[] h = checkSums.clone();
+        Difference difference = new Difference();
+        ArrayDeque<Integer> pure = new ArrayDeque<>();
+        for (int i = 0; i < c.length; i++) {
+            if (isPure(c, k, h, i)) {
+                pure.add(i);
+            }
+        }
+        while (!pure.isEmpty()) {
+            int i = pure.poll();
+            if (!isPure(c, k, h, i)) {
+                continue;
+            }
+            if (difference.size() > c.length) {
+                // Checksum collisions, give up
+                return null;
+            }
+            long key = k[i];
+            int sign = c[i];
+            if (sign > 0) {
+                difference.localKeys.add(key);
+            } else {
+                difference.remoteKeys.add(key);
+            }
+            int subSize = c.length / HASH_COUNT;
+            int check = check(key);
+            for (int j = 0; j < HASH_COUNT; j++) {
+                int cell = cellOf(key, j, subSize);
+                c[cell] -= sign;
+                k[cell] ^= key;
+                h[cell] ^= check;
+                if (isPure(c, k, h, cell)) {
+                    pure.add(cell);
+                }
+            }
+        }
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] != 0 || k[i] != 0 || h[i] != 0) {
+                return null;
+            }
+        }
+        return difference;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + counts.length * CELL_BYTES);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            buffer.putInt(counts[i]);
+            buffer.putLong(keySums[i]);
+            buffer.putInt(checkSums[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parse a sketch serialized by {@link #toBytes()}.
+     *
+     * @param data Serialized sketch
+     * @return {@link MessageSetSketch}
+     * @throws IllegalArgumentException if the data is not a valid sketch
+     */
+    public static MessageSetSketch parse(byte[] data) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.get() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown sketch format");
+            }
+            int cells = buffer.getInt();
+            if (cells != cellsFor(cells) || buffer.remaining() != cells * CELL_BYTES) {
+                throw new IllegalArgumentException("Invalid sketch size " + cells);
+            }
+            MessageSetSketch sketch = new MessageSetSketch(cells);
+            for (int i = 0; i < cells; i++) {
+                sketch.counts[i] = buffer.getInt();
+                sketch.keySums[i] = buffer.getLong();
+                sketch.checkSums[i] = buffer.getInt();
+            }
+            return sketch;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated sketch");
+        }
+    }
+
+    private void update(long key, int delta) {
+        int subSize = counts.length / HASH_COUNT;
+        int check = check(key);
+        for (int j = 0; j < HASH_COUNT; j++) {
+            int cell = cellOf(key, j, subSize);
+            counts[cell] += delta;
+            keySums[cell] ^= key;
+            checkSums[cell] ^= check;
+        }
+    }
+
+    private static boolean isPure(int[] c, long[] k, int[] h, int i) {
+        return (c[i] == 1 || c[i] == -1) && h[i] == check(k[i]);
+    }
+
+    // Each hash function has a subtable of its own, so the cells of a key are distinct
+    private static int cellOf(long key, int hash, int subSize) {
+        return hash * subSize + (int) Long.remainderUnsigned(mix(key + hash * 0x9e3779b97f4a7c15L), subSize);
+    }
+
+    private static int check(long key) {
+        return (int) mix(key ^ CHECK_SEED);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Difference of two message sets, as keys of the message UUIDs.
+     */
+    public static class Difference {
+        private final Set<Long> localKeys = new HashSet<>();
+        private final Set<Long> remoteKeys = new HashSet<>();
+
+        /**
+         * Get the keys of messages only in the sketch that was subtracted from.
+         *
+         * @return set of keys
+         */
+        public Set<Long> getLocalKeys() {
+            return localKeys;
+        }
+
+        /**
+         * Get the keys of messages only in the subtracted sketch.
+         *
+         * @return set of keys
+         */
+        public Set<Long> getRemoteKeys() {
+            return remoteKeys;
+        }
+
+        public int size() {
+            return localKeys.size() + remoteKeys.size();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package eu.h2020.helios_social.core.messaging.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tracks the sequence numbers of the messages received from each sender of a conversation, see
+ * {@link HeliosMessagePart#seq}. For each sender, the high-water mark is the sequence number up
+ * to which all messages have been received. Numbers above it are kept until the gap below them
+ * is filled.
+ *
+ * Tracking of a sender starts from the first message seen from it, so the messages before it
+ * are not considered missing. Those are found by the heartbeat sketch or history backfill.
+ *
+ * Not thread safe, used holding the lock of the {@link HeliosConversation}.
+ */
+public class SequenceTracker {
+    // Received numbers kept above the high-water mark. If exceeded, the oldest gap is given up.
+    private static final int MAX_RECEIVED_ABOVE_MARK = 4096;
+    private final HashMap<String, Sender> senders = new HashMap<>();
+
+    /**
+     * Record a received message. Messages without a sequence number are ignored.
+     *
+     * @param msg {@link HeliosMessagePart}
+     */
+    public void add(HeliosMessagePart msg) {
+        if (msg.seq == null || msg.seq <= 0 || msg.senderUUID == null) {
+            return;
+        }
+        long seq = msg.seq;
+        Sender sender = senders.get(msg.senderUUID);
+        if (sender == null) {
+            sender = new Sender(seq - 1);
+            senders.put(msg.senderUUID, sender);
+        }
+        sender.add(seq);
+    }
+
+    /**
+     * Get the high-water mark of a sender.
+     *
+     * @param senderUUID UUID of the sender
+     * @return sequence number up to which all messages have been received, 0 if none
+     */
+    public long getMark(String senderUUID) {
+        Sender sender = senders.get(senderUUID);
+        return sender == null ? 0 : sender.mark;
+    }
+
+    /**
+     * Get the largest sequence number received from a sender.
+     *
+     * @param senderUUID UUID of the sender
+     * @return sequence number, 0 if none
+     */
+    public long getLast(String senderUUID) {
+        Sender sender = senders.get(senderUUID);
+        return sender == null ? 0 : Math.max(sender.mark, sender.above.isEmpty() ? 0 : sender.above.last());
+    }
+
+    /**
+     * Get the high-water marks of all senders.
+     *
+     * @return map of sender UUID to high-water mark
+     */
+    public Map<String, Long> getMarks() {
+        HashMap<String, Long> marks = new HashMap<>();
+        for (Map.Entry<String, Sender> entry : senders.entrySet()) {
+            if (entry.getValue().mark > 0) {
+                marks.put(entry.getKey(), entry.getValue().mark);
+            }
+        }
+        return marks;
+    }
+
+    /**
+     * Find the messages we lack compared with the high-water marks of a peer. Senders we have
+     * not seen messages from are skipped.
+     *
+     * @param remoteMarks High-water marks of the peer by sender UUID
+     * @param limit Maximum number of messages in the gaps
+     * @return list of gaps, the oldest of each sender first
+     */
+    public List<Gap> findGaps(Map<String, Long> remoteMarks, int limit) {
+        ArrayList<Gap> gaps = new ArrayList<>();
+        int remaining = limit;
+        for (Map.Entry<String, Long> entry : remoteMarks.entrySet()) {
+            Sender sender = senders.get(entry.getKey());
+            Long remoteMark = entry.getValue();
+            if (sender == null || remoteMark == null || remoteMark <= sender.mark) {
+                continue;
+            }
+            long from = sender.mark + 1;
+            for (Long received : sender.above.subSet(from, true, remoteMark, true)) {
+                if (received > from) {
+                    remaining = addGap(gaps, entry.getKey(), from, received - 1, remaining);
+                }
+                from = received + 1;
+            }
+            if (from <= remoteMark) {
+                remaining = addGap(gaps, entry.getKey(), from, remoteMark, remaining);
+            }
+            if (remaining <= 0) {
+                break;
+            }
+        }
+        return gaps;
+    }
+
+    /**
+     * Give up a gap that cannot be filled, e.g., because no peer has the messages any more.
+     * The numbers of the gap are then considered received.
+     *
+     * @param gap Gap found by {@link #findGaps(Map, int)}
+     */
+    public void skip(Gap gap) {
+        Sender sender = senders.get(gap.getSenderUUID());
+        if (sender == null) {
+            return;
+        }
+        for (long seq = Math.max(gap.getFrom(), sender.mark + 1); seq <= gap.getTo(); seq++) {
+            sender.add(seq);
+        }
+    }
+
+    private static int addGap(List<Gap> gaps, String senderUUID, long from, long to, int remaining) {
+        if (remaining <= 0) {
+            return remaining;
+        }
+        long last = Math.min(to, from + remaining - 1);
+        gaps.add(new Gap(senderUUID, from, last));
+        return remaining - (int) (last - from + 1);
+    }
+
+    private static class Sender {
+        long mark;
+        final TreeSet<Long> above = new TreeSet<>();
+
+        Sender(long mark) {
+            this.mark = mark;
+        }
+
+        void add(long seq) {
+            if (seq <= mark) {
+                return;
+            }
+            if (seq == mark + 1) {
+                mark = seq;
+            } else {
+                above.add(seq);
+                if (above.size() > MAX_RECEIVED_ABOVE_MARK) {
+                    mark = above.pollFirst();
+                }
+            }
+            while (!above.isEmpty() && above.first() == mark + 1) {
+                mark = above.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * Range of sequence numbers of a sender.
+     */
+    public static class Gap {
+        private final String senderUUID;
+        private final long from;
+        private final long to;
+
+        public Gap(String senderUUID, long from, long to) {
+            this.senderUUID = senderUUID;
+            this.from = from;
+            this.to = to;
+        }
+
+        public String getSenderUUID() {
+            return senderUUID;
+        }
+
+        /**
+         * @return first sequence number of the range
+         */
+        public long getFrom() {
+            return from;
+        }
+
+        /**
+         * @return last sequence number of the range, inclusive
+         */
+        public long getTo() {
+            return to;
+        }
+
+        public boolean contains(HeliosMessagePart msg) {
+            return msg.seq != null && senderUUID.equals(msg.senderUUID) && msg.seq >= from && msg.seq <= to;
+        }
+    }
+}
@@ -2,13 +2,23 @@ package eu.h2020.helios_social.core.messaging.db;
 
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 /**
- * Helios message storage database data entity. This is used in Room persistence library
+ * Helios message storage database data entity. This is used in Room persistence library.
+ * Sent direct messages also act as an outbox: the delivery state and send attempts of
+ * a message are updated in place.
  */
-@Entity(tableName="messages")
+@Entity(tableName="messages",
+        indices = {@Index(value = {"Message_UUID"}, unique = true),
+                   @Index(value = {"Topic", "Received"}),
+                   @Index(value = {"Topic", "Milliseconds"})})
 public class HeliosData {
+    // Delivery states
+    public static final int DELIVERY_PENDING = 0;
+    public static final int DELIVERY_SENT = 1;
+    public static final int DELIVERY_DELIVERED = 2;
 
     @PrimaryKey(autoGenerate = true)
     public long mId;
@@ -52,5 +62,22 @@ public class HeliosData {
     @ColumnInfo(name = "Message")
     public String mMessage;
 
+    @ColumnInfo(name = "Delivery_State", defaultValue = "0")
+    public int mDeliveryState;
+
+    @ColumnInfo(name = "Attempts", defaultValue = "0")
+    public int mAttempts;
+
+    @ColumnInfo(name = "Last_Attempt", defaultValue = "0")
+    public long mLastAttempt;
+
+    // Sequence number of the message from its sender in the topic, 0 if not numbered
+    @ColumnInfo(name = "Sequence", defaultValue = "0")
+    public long mSequence;
+
+    // HybridLogicalClock time stamp of the message, 0 if none
+    @ColumnInfo(name = "Hlc", defaultValue = "0")
+    public long mHlc;
+
 }
 
@@ -2,18 +2,29 @@ package eu.h2020.helios_social.core.messaging.db;
 
 import androidx.room.Dao;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
 
 import java.util.List;
 
+import eu.h2020.helios_social.core.messaging.MessagingConstants;
+
 /**
  * Data access object (DAO) class to access Room persistence library message database
  */
 @Dao
 public interface HeliosDataDao {
 
-    @Insert
-    void addMessages(HeliosData... data);
+    /**
+     * Insert messages. A message whose UUID is already stored is ignored, so that its delivery
+     * state and send attempts are kept. Stored messages are changed with the update queries.
+     *
+     * @param data Messages to insert
+     * @return row ids of the inserted messages, -1 for ignored ones
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long[] addMessages(HeliosData... data);
 
     @Query("SELECT * FROM  messages ORDER BY Milliseconds")
     List<HeliosData> dumpDB();
@@ -24,12 +35,52 @@ public interface HeliosDataDao {
     @Query("SELECT * FROM  messages WHERE Topic = :topic AND Milliseconds > :since ORDER BY Milliseconds")
     List<HeliosData> loadMessages(String topic, long since);
 
+    @Query("SELECT * FROM messages WHERE Topic = :topic AND Milliseconds < :before ORDER BY Milliseconds DESC LIMIT :limit")
+    List<HeliosData> loadMessagesBefore(String topic, long before, int limit);
+
+    @Query("SELECT MAX(Sequence) FROM messages WHERE Topic = :topic AND Sender_UUID = :senderUuid")
+    long getLastSequence(String topic, String senderUuid);
+
+    @Query("SELECT COUNT(*) FROM messages WHERE Message_UUID = :msgUuid")
+    int countMessages(String msgUuid);
+
     @Query("SELECT DISTINCT Topic FROM messages ORDER BY Topic ASC")
     List<String> getTopics();
 
     @Query("DELETE FROM messages WHERE Milliseconds < :milliseconds")
     void deleteExpiredEntries(long milliseconds);
 
-    @Query("UPDATE messages SET Received = :fieldval WHERE Message_UUID = :msgUuid")
-    void setReceivedField(String msgUuid, boolean fieldval);
+    @Query("SELECT * FROM messages WHERE Received = 0 AND Protocol IS NOT NULL AND Protocol != '" + MessagingConstants.PUB_SUB_PACKAGED + "' AND Milliseconds > :since ORDER BY Milliseconds")
+    List<HeliosData> loadPendingMessages(long since);
+
+    @Query("SELECT * FROM messages WHERE Topic = :recipient AND Received = 0 ORDER BY Milliseconds")
+    List<HeliosData> loadPendingMessages(String recipient);
+
+    @Query("UPDATE messages SET Received = :fieldval, Delivery_State = :state WHERE Message_UUID = :msgUuid")
+    void setReceivedField(String msgUuid, boolean fieldval, int state);
+
+    @Query("SELECT Message_UUID FROM messages WHERE Topic = :recipient AND Delivery_State != " + HeliosData.DELIVERY_DELIVERED + " AND Message_UUID IN (:msgUuids)")
+    List<String> findUndelivered(String recipient, List<String> msgUuids);
+
+    @Query("UPDATE messages SET Received = 1, Delivery_State = " + HeliosData.DELIVERY_DELIVERED + " WHERE Topic = :recipient AND Message_UUID IN (:msgUuids)")
+    void setDelivered(String recipient, List<String> msgUuids);
+
+    /**
+     * Mark the messages to a recipient delivered.
+     *
+     * @param recipient Recipient of the messages, i.e., the Topic column of direct messages
+     * @param msgUuids UUIDs of the messages
+     * @return UUIDs of the messages that were not delivered before
+     */
+    @Transaction
+    default List<String> markDelivered(String recipient, List<String> msgUuids) {
+        List<String> changed = findUndelivered(recipient, msgUuids);
+        if (!changed.isEmpty()) {
+            setDelivered(recipient, changed);
+        }
+        return changed;
+    }
+
+    @Query("UPDATE messages SET Received = :fieldval, Delivery_State = :state, Attempts = Attempts + 1, Last_Attempt = :time WHERE Message_UUID = :msgUuid")
+    void setSendAttempt(String msgUuid, boolean fieldval, int state, long time);
 }
@@ -3,11 +3,61 @@ package eu.h2020.helios_social.core.messaging.db;
 import androidx.room.Database;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 /**
  * Helios message store database using Room persistence library (SQLite-based).
  */
-@Database(entities = {HeliosData.class}, version = 3, exportSchema = false)
+@Database(entities = {HeliosData.class}, version = 7, exportSchema = false)
 public abstract class HeliosDatabase extends RoomDatabase {
     public abstract HeliosDataDao heliosDataDao();
+
+    /**
+     * Remove duplicate rows of the same message, keeping the latest one, and add the outbox
+     * columns and indexes.
+     */
+    public static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("DELETE FROM messages WHERE Message_UUID IS NOT NULL AND mId NOT IN " +
+                    "(SELECT MAX(mId) FROM messages WHERE Message_UUID IS NOT NULL GROUP BY Message_UUID)");
+            database.execSQL("ALTER TABLE messages ADD COLUMN Delivery_State INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE messages ADD COLUMN Attempts INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE messages ADD COLUMN Last_Attempt INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("UPDATE messages SET Delivery_State = " + HeliosData.DELIVERY_SENT + " WHERE Received = 1");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_messages_Message_UUID ON messages (Message_UUID)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_messages_Topic_Received ON messages (Topic, Received)");
+        }
+    };
+
+    /**
+     * Add an index for paging the messages of a topic by time.
+     */
+    public static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_messages_Topic_Milliseconds ON messages (Topic, Milliseconds)");
+        }
+    };
+
+    /**
+     * Add the sequence number of a message from its sender.
+     */
+    public static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE messages ADD COLUMN Sequence INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    /**
+     * Add the hybrid logical clock time stamp of a message.
+     */
+    public static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE messages ADD COLUMN Hlc INTEGER NOT NULL DEFAULT 0");
+        }
+    };
 }
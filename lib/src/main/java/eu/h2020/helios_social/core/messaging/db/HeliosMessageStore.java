@@ -7,22 +7,27 @@ import android.util.Log;
 import androidx.room.Room;
 
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.UUID;
 
+import eu.h2020.helios_social.core.messaging.data.HeliosMessageHistory;
 import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
 import eu.h2020.helios_social.core.messaging.data.HeliosTopicContext;
 
 /**
  * This class takes care of storing and retrieving HELIOS messages from Room database.
+ * It is also the {@link HeliosMessageHistory} of windowed conversations.
  */
-public class HeliosMessageStore {
+public class HeliosMessageStore implements HeliosMessageHistory {
     private static final String TAG = "HeliosMessageStore";
     private HeliosDatabase mDatabase;
     private HeliosDataDao mHeliosDataDao;
+    private final PendingMessageIndex mPendingMessages = new PendingMessageIndex();
+    // How old undelivered messages are still synced
+    private static final int PENDING_MESSAGE_DAYS = 7;
 
     /**
      * Initialize database instance
@@ -32,19 +37,46 @@ public class HeliosMessageStore {
     public HeliosMessageStore(Context ctx) {
         this.mDatabase = Room.databaseBuilder(ctx, HeliosDatabase.class, "messageDB")
                 .allowMainThreadQueries()
+                .addMigrations(HeliosDatabase.MIGRATION_3_4, HeliosDatabase.MIGRATION_4_5, HeliosDatabase.MIGRATION_5_6, HeliosDatabase.MIGRATION_6_7)
                 .fallbackToDestructiveMigration()
                 .build();
         this.mHeliosDataDao = mDatabase.heliosDataDao();
+        loadPendingMessages();
     }
 
     /**
-     * Add HELIOS message to Room database
+     * Add HELIOS message to Room database. If a message with the same UUID is already stored,
+     * it is kept as is, see {@link #setReceivedField} and {@link #recordSendAttempt} to
+     * change it.
      *
      * @param message HELIOS message
      */
     public void addMessage(HeliosMessagePart message) {
         HeliosData data = convertToDBEntry(message);
-        mHeliosDataDao.addMessages(data);
+        if (mHeliosDataDao.addMessages(data)[0] != -1) {
+            mPendingMessages.update(message);
+        }
+    }
+
+    /**
+     * Add HELIOS messages to Room database in one transaction. Messages whose UUID is already
+     * stored are kept as is.
+     *
+     * @param messages HELIOS messages
+     */
+    public void addMessages(Collection<HeliosMessagePart> messages) {
+        HeliosData[] data = new HeliosData[messages.size()];
+        int i = 0;
+        for (HeliosMessagePart message : messages) {
+            data[i++] = convertToDBEntry(message);
+        }
+        long[] rowIds = mHeliosDataDao.addMessages(data);
+        i = 0;
+        for (HeliosMessagePart message : messages) {
+            if (rowIds[i++] != -1) {
+                mPendingMessages.update(message);
+            }
+        }
     }
 
     /**
@@ -54,7 +86,94 @@ public class HeliosMessageStore {
      * @param value New value for the received field.
      */
     public void setReceivedField(String uuid, boolean value) {
-        mHeliosDataDao.setReceivedField(uuid, value);
+        mHeliosDataDao.setReceivedField(uuid, value, value ? HeliosData.DELIVERY_SENT : HeliosData.DELIVERY_PENDING);
+        if (value) {
+            mPendingMessages.remove(uuid);
+        }
+    }
+
+    /**
+     * Record an attempt to send a stored message. The delivery state, attempt count and time
+     * of the last attempt are updated in place.
+     *
+     * @param uuid UUID of the message.
+     * @param sent true if the message was sent, false if the attempt failed.
+     */
+    public void recordSendAttempt(String uuid, boolean sent) {
+        recordSendAttempt(uuid, sent, false);
+    }
+
+    /**
+     * Record an attempt to send a stored message. The delivery state, attempt count and time
+     * of the last attempt are updated in place.
+     *
+     * @param uuid UUID of the message.
+     * @param sent true if the message was sent, false if the attempt failed.
+     * @param awaitAck true if a sent message is only delivered once the recipient acks it.
+     *                 Until then it stays undelivered, but is not resent right away.
+     */
+    public void recordSendAttempt(String uuid, boolean sent, boolean awaitAck) {
+        boolean received = sent && !awaitAck;
+        mHeliosDataDao.setSendAttempt(uuid, received, sent ? HeliosData.DELIVERY_SENT : HeliosData.DELIVERY_PENDING,
+                System.currentTimeMillis());
+        if (received) {
+            mPendingMessages.remove(uuid);
+        } else if (sent) {
+            mPendingMessages.markAwaitingAck(uuid);
+        }
+    }
+
+    /**
+     * Mark messages delivered when the recipient has acked them. All messages are updated in
+     * one transaction. Only messages sent to the recipient are changed, so that a peer cannot
+     * ack messages sent to others.
+     *
+     * @param recipient Network id of the peer that acked the messages.
+     * @param uuids UUIDs of the messages.
+     */
+    public void markDelivered(String recipient, Collection<String> uuids) {
+        if (TextUtils.isEmpty(recipient) || uuids.isEmpty()) {
+            return;
+        }
+        for (String uuid : mHeliosDataDao.markDelivered(recipient, new ArrayList<>(uuids))) {
+            mPendingMessages.remove(uuid);
+        }
+    }
+
+    /**
+     * Load undelivered messages to a recipient from Room database.
+     *
+     * @param recipient Network id or UUID of the recipient.
+     * @return Array list of HeliosMessagePart objects
+     */
+    public ArrayList<HeliosMessagePart> loadPendingMessages(String recipient) {
+        List<HeliosData> reply = mHeliosDataDao.loadPendingMessages(recipient);
+        ArrayList<HeliosMessagePart> messages = new ArrayList<HeliosMessagePart>();
+        for (HeliosData data : reply) {
+            messages.add(convertFromDBEntry(data));
+        }
+        return messages;
+    }
+
+    /**
+     * Get the index of undelivered direct messages.
+     *
+     * @return {@link PendingMessageIndex}
+     */
+    public PendingMessageIndex getPendingMessages() {
+        return mPendingMessages;
+    }
+
+    /**
+     * Rebuild the index of undelivered direct messages from the database.
+     */
+    private void loadPendingMessages() {
+        long since = ZonedDateTime.now().minusDays(PENDING_MESSAGE_DAYS).toInstant().toEpochMilli();
+        mPendingMessages.clear();
+        for (HeliosData data : mHeliosDataDao.loadPendingMessages(since)) {
+            mPendingMessages.update(convertFromDBEntry(data));
+        }
+        Log.d(TAG, "loadPendingMessages done");
     }
 
     /**
@@ -81,6 +200,7 @@ public class HeliosMessageStore {
      * @param topic Topic name to be requested.
      * @return Array list of HeliosMessagePart objects
      */
+    @Override
     public ArrayList<HeliosMessagePart> loadMessages(String topic, long sinceTs) {
         List<HeliosData> reply = mHeliosDataDao.loadMessages(topic, sinceTs);
         ArrayList<HeliosMessagePart> messages = new ArrayList<HeliosMessagePart>();
@@ -92,6 +212,47 @@ public class HeliosMessageStore {
         return messages;
     }
 
+    /**
+     * Load a page of HELIOS messages from Room database that are older than given timestamp.
+     * Paging uses the time stamp as the key, so that no offset needs to be skipped.
+     *
+     * @param topic Topic name to be requested.
+     * @param beforeMillis timestamp to compare messages.
+     * @param limit Maximum number of messages, the newest ones are loaded.
+     * @return Array list of HeliosMessagePart objects, oldest first
+     */
+    @Override
+    public ArrayList<HeliosMessagePart> loadMessagesBefore(String topic, long beforeMillis, int limit) {
+        List<HeliosData> reply = mHeliosDataDao.loadMessagesBefore(topic, beforeMillis, limit);
+        ArrayList<HeliosMessagePart> messages = new ArrayList<HeliosMessagePart>(reply.size());
+        for (int i = reply.size() - 1; i >= 0; i--) {
+            messages.add(convertFromDBEntry(reply.get(i)));
+        }
+        return messages;
+    }
+
+    /**
+     * Check if a message is stored in Room database.
+     *
+     * @param uuid UUID of the message.
+     * @return true if the message is stored
+     */
+    @Override
+    public boolean hasMessage(String uuid) {
+        return uuid != null && mHeliosDataDao.countMessages(uuid) > 0;
+    }
+
+    /**
+     * Get the largest sequence number of the stored messages of a sender in a topic.
+     *
+     * @param topic Topic name
+     * @param senderUUID UUID of the sender
+     * @return sequence number, 0 if none
+     */
+    public long getLastSequence(String topic, String senderUUID) {
+        return mHeliosDataDao.getLastSequence(topic, senderUUID);
+    }
+
     /**
      * Load HELIOS direct message topics from Room database (having UUID).
      *
@@ -133,30 +294,6 @@ public class HeliosMessageStore {
     public void closeDatabase() {
     }
 
-    /**
-     * Convert text string timestamp value to numerical value (milliseconds)
-     *
-     * @param timestamp Timestamp as text string
-     * @return Timestamp in milliseconds
-     */
-    private long convertTimestampToMilliseconds(String timestamp) {
-        long milliseconds;
-
-        // Extract Epoch milliseconds as long int from ZonedDateTime text format
-        if (timestamp != null) {
-            try {
-                milliseconds = ZonedDateTime.parse(timestamp).toInstant().toEpochMilli();
-            } catch (DateTimeParseException e) {
-                milliseconds = ZonedDateTime.now().toInstant().toEpochMilli();
-                Log.d(TAG, "Cannot parse timestamp - setting as current time");
-            }
-        } else {
-            milliseconds = ZonedDateTime.now().toInstant().toEpochMilli();
-            Log.d(TAG, "Timestamp missing - setting as current time");
-        }
-        return milliseconds;
-    }
-
     /**
      * Convert internal HeliosMessagePart to Room database entity
      *
@@ -175,12 +312,15 @@ public class HeliosMessageStore {
         data.mTopic = message.to;
         data.mTimestamp = message.ts;
         data.mMessageUUID = message.getUuid();
-        data.mMilliseconds = convertTimestampToMilliseconds(message.ts);
+        data.mMilliseconds = message.getTimestampAsMilliseconds();
         data.mMediaFilename = (message.mediaFileName != null) ? message.mediaFileName : null;
         data.mMessage = message.msg;
         data.mProtocol = message.protocol;
         data.mOriginalType = (message.originalType == null) ? 0 : message.originalType.ordinal();
         data.mSenderNetworkId = message.senderNetworkId;
+        data.mDeliveryState = message.msgReceived ? HeliosData.DELIVERY_SENT : HeliosData.DELIVERY_PENDING;
+        data.mSequence = (message.seq == null) ? 0 : message.seq;
+        data.mHlc = (message.hlc == null) ? 0 : message.hlc;
 
         return data;
     }
@@ -204,6 +344,8 @@ public class HeliosMessageStore {
         msg.protocol = data.mProtocol;
         msg.originalType = HeliosMessagePart.IntToMessagePartType(data.mOriginalType);
         msg.senderNetworkId = data.mSenderNetworkId;
+        msg.seq = (data.mSequence > 0) ? data.mSequence : null;
+        msg.hlc = (data.mHlc != 0) ? data.mHlc : null;
         return msg;
     }
 }
@@ -0,0 +1,165 @@
+package eu.h2020.helios_social.core.messaging.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eu.h2020.helios_social.core.messaging.MessagingConstants;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+
+/**
+ * In-memory index of undelivered direct messages, keyed by recipient (the "to" field of the
+ * message, i.e., network id or UUID of the peer). It is kept up to date by
+ * {@link HeliosMessageStore}, so that checking whether a peer has pending messages does not
+ * need a database query.
+ */
+public class PendingMessageIndex {
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, HeliosMessagePart>> mByRecipient = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> mRecipientByUuid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> mAwaitingAckSince = new ConcurrentHashMap<>();
+    private long mAckTimeout = 60 * 1000; // 1 minute
+
+    /**
+     * Check if the message is an undelivered direct message that can be synced later.
+     *
+     * @param message HeliosMessagePart
+     * @return true if the message is pending.
+     */
+    static boolean isPendingDirectMessage(HeliosMessagePart message) {
+        return !message.msgReceived &&
+                message.to != null &&
+                message.getUuid() != null &&
+                message.protocol != null && !message.protocol.isEmpty() &&
+                !MessagingConstants.PUB_SUB_PACKAGED.equals(message.protocol);
+    }
+
+    /**
+     * Update the index with a stored message. Undelivered direct messages are added, delivered
+     * ones removed.
+     *
+     * @param message HeliosMessagePart that was stored, a copy is kept in the index
+     */
+    public void update(HeliosMessagePart message) {
+        if (isPendingDirectMessage(message)) {
+            HeliosMessagePart pending = new HeliosMessagePart(message);
+            String uuid = message.getUuid();
+            String previous = mRecipientByUuid.put(uuid, message.to);
+            if (previous != null && !previous.equals(message.to)) {
+                removeFromRecipient(previous, uuid);
+            }
+            mByRecipient.compute(message.to, (k, messages) -> {
+                if (messages == null) {
+                    messages = new ConcurrentHashMap<>();
+                }
+                messages.put(uuid, pending);
+                return messages;
+            });
+        } else if (message.getUuid() != null) {
+            remove(message.getUuid());
+        }
+    }
+
+    /**
+     * Remove a message from the index, e.g., when it has been delivered.
+     *
+     * @param uuid UUID of the message
+     */
+    public void remove(String uuid) {
+        mAwaitingAckSince.remove(uuid);
+        String recipient = mRecipientByUuid.remove(uuid);
+        if (recipient != null) {
+            removeFromRecipient(recipient, uuid);
+        }
+    }
+
+    /**
+     * The message has been sent and waits for an ack from the recipient. It is not returned
+     * by {@link #getPending(long, String...)} until the ack timeout has passed.
+     *
+     * @param uuid UUID of the message
+     */
+    public void markAwaitingAck(String uuid) {
+        if (mRecipientByUuid.containsKey(uuid)) {
+            mAwaitingAckSince.put(uuid, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Set the time to wait for an ack before a sent message is resent.
+     *
+     * @param milliseconds Ack timeout in milliseconds
+     */
+    public void setAckTimeout(long milliseconds) {
+        mAckTimeout = milliseconds;
+    }
+
+    /**
+     * Check if there are undelivered messages to any of the given recipients.
+     *
+     * @param recipients Network ids and/or UUIDs of the peer (nulls are ignored)
+     * @return true if there are pending messages.
+     */
+    public boolean hasPending(String... recipients) {
+        for (String recipient : recipients) {
+            if (recipient == null) {
+                continue;
+            }
+            Map<String, HeliosMessagePart> messages = mByRecipient.get(recipient);
+            if (messages != null && !messages.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get undelivered messages to the given recipients that are newer than given time,
+     * oldest first. Messages that wait for an ack are left out until the ack timeout.
+     *
+     * @param sinceMilliseconds Epoch milliseconds, older messages are ignored
+     * @param recipients Network ids and/or UUIDs of the peer (nulls are ignored)
+     * @return list of pending messages
+     */
+    public List<HeliosMessagePart> getPending(long sinceMilliseconds, String... recipients) {
+        List<HeliosMessagePart> pending = new ArrayList<>();
+        for (String recipient : recipients) {
+            if (recipient == null) {
+                continue;
+            }
+            Map<String, HeliosMessagePart> messages = mByRecipient.get(recipient);
+            if (messages == null) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            for (HeliosMessagePart message : messages.values()) {
+                Long sentAt = mAwaitingAckSince.get(message.getUuid());
+                if (sentAt != null && now - sentAt < mAckTimeout) {
+                    continue;
+                }
+                if (message.getTimestampAsMilliseconds() > sinceMilliseconds) {
+                    pending.add(message);
+                }
+            }
+        }
+        pending.sort(Comparator.comparingLong(HeliosMessagePart::getTimestampAsMilliseconds));
+        return pending;
+    }
+
+    /**
+     * Remove all messages from the index.
+     */
+    public void clear() {
+        mByRecipient.clear();
+        mRecipientByUuid.clear();
+        mAwaitingAckSince.clear();
+    }
+
+    private void removeFromRecipient(String recipient, String uuid) {
+        mByRecipient.computeIfPresent(recipient, (k, messages) -> {
+            messages.remove(uuid);
+            return messages.isEmpty() ? null : messages;
+        });
+    }
+}
@@ -5,9 +5,14 @@ import com.google.gson.JsonElement
 import eu.h2020.helios_social.core.messaging.HeliosDirectMessaging
 import eu.h2020.helios_social.core.messaging.HeliosMessagingReceiver
 import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress
+import eu.h2020.helios_social.core.messaging.ProtocolRegistry
+import eu.h2020.helios_social.core.messaging.TrafficClass
+import eu.h2020.helios_social.core.messaging.util.BufferPool
+import eu.h2020.helios_social.core.messaging.util.PeerLaneExecutor
 import java.io.FileDescriptor
 import java.lang.Exception
 import java.util.*
+import java.util.concurrent.Callable
 import java.util.concurrent.Executors
 import java.util.concurrent.Future
 import java.util.concurrent.locks.ReentrantLock
@@ -22,11 +27,28 @@ class HeliosDirectMessagingNodejsLibp2p(private val node: NodejsInstance) : Heli
     companion object {
         const val TAG = "HeliosDirectMessagingNodejsLibp2p"
         val executor = Executors.newFixedThreadPool(5)
+
+        // Serial send lane per peer, at most 5 peers served concurrently.
+        val sendLanes = PeerLaneExecutor("helios-libp2p-send", 5)
+
+        // Maximum number of received sync messages waiting to be handled. More are dropped,
+        // as missing messages are resent after the next heartbeat anyway.
+        const val MAX_QUEUED_SYNC = 512
+
+        // Receive pipelines, in order per sender and traffic class. Chat and control lanes are
+        // bounded, so that a flood of incoming messages slows down node instead of filling
+        // the memory. Sync and file lanes never block node, so they cannot delay chat.
+        val receiveLanes = EnumMap<TrafficClass, PeerLaneExecutor>(TrafficClass::class.java).apply {
+            put(TrafficClass.CONTROL, PeerLaneExecutor("helios-libp2p-receive-control", 1, 256))
+            put(TrafficClass.CHAT, PeerLaneExecutor("helios-libp2p-receive", 4, 256))
+            put(TrafficClass.SYNC, PeerLaneExecutor("helios-libp2p-receive-sync", 2))
+            put(TrafficClass.BULK, PeerLaneExecutor("helios-libp2p-receive-bulk", 1))
+        }
     }
 
     override fun sendTo(address: HeliosNetworkAddress, protocolId: String, data: ByteArray) {
         Log.d(TAG, "sendTo address: $address")
-        node.callMethod("send-to", arrayOf(address, protocolId, data))
+        node.callMethodChecked("send-to", arrayOf(address, protocolId, data))
         Log.d(TAG, "sendTo address finished: $address")
     }
 
@@ -36,7 +58,7 @@ class HeliosDirectMessagingNodejsLibp2p(private val node: NodejsInstance) : Heli
         data: ByteArray
     ): Future<Unit> {
         Log.d(TAG, "sendToFuture address: $address")
-        return executor.submit<Unit> {
+        return sendLanes.submit<Unit>(address.getLaneKey()) {
             sendTo(address, protocolId, data)
         }
     }
@@ -79,6 +101,11 @@ class HeliosDirectMessagingNodejsLibp2p(private val node: NodejsInstance) : Heli
         }
     }
 
+    /**
+     * Handle "receive-message" call from node. The payload is read from the file descriptor
+     * here and node is acknowledged as soon as the payload is drained. Receivers are then
+     * called with the data asynchronously, in order per sender.
+     */
     internal fun receiveMessage(args: Array<Any?>): Any? {
         if (args.size < 3) {
             return null
@@ -98,7 +125,23 @@ class HeliosDirectMessagingNodejsLibp2p(private val node: NodejsInstance) : Heli
 
             NodejsInstance.setFileDescriptorInt(fd, data)
 
-            receiver.receiveMessage(addr, protoId, fd)
+            val payload = BufferPool.getInstance().readAll(fd)
+            val task = Callable {
+                try {
+                    receiver.receiveMessage(addr, protoId, payload)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Error handling direct message", e)
+                }
+            }
+            val handler = ProtocolRegistry.getInstance().get(protoId)
+            val lanes = receiveLanes.getValue(handler.trafficClass)
+            when (handler.trafficClass) {
+                TrafficClass.SYNC -> if (lanes.trySubmit(addr.getLaneKey(), MAX_QUEUED_SYNC, task) == null) {
+                    Log.d(TAG, "Sync queue full, dropped message from ${addr.networkId}")
+                }
+                // Repeated messages of the same kind, e.g., status, are coalesced while queued
+                else -> lanes.submit(addr.getLaneKey(), handler.getCoalesceKey(payload), task)
+            }
         } catch (e: Exception) {
             Log.e(TAG, "Error receiving direct message", e)
         }
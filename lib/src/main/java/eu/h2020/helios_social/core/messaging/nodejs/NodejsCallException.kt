@@ -0,0 +1,7 @@
+package eu.h2020.helios_social.core.messaging.nodejs
+
+/**
+ * Thrown when a method called in node returns an error, e.g., a dial to a peer failed.
+ */
+class NodejsCallException(val method: String, error: String) :
+    RuntimeException("Error in node call $method: $error")
@@ -127,6 +127,18 @@ class NodejsInstance(val args: Array<String>) : NodejsInstanceIo.Listener {
 
     @Suppress("unused")
     fun callMethod(name: String, arguments: Array<Any?> = emptyArray()): Any? {
+        return invokeMethod(name, arguments, false)
+    }
+
+    /**
+     * Call a node method like [callMethod], but throw [NodejsCallException] if node returns an
+     * error instead of returning null.
+     */
+    fun callMethodChecked(name: String, arguments: Array<Any?> = emptyArray()): Any? {
+        return invokeMethod(name, arguments, true)
+    }
+
+    private fun invokeMethod(name: String, arguments: Array<Any?>, throwOnError: Boolean): Any? {
         val callId = nextCallSequence()
         val msg = NodejsMessageCall(
             callId,
@@ -148,8 +160,10 @@ class NodejsInstance(val args: Array<String>) : NodejsInstanceIo.Listener {
 
         s.acquire()
         if (error != null) {
-            // throw RuntimeException("$error")
             Log.e(TAG, "Error in callMethod " + name);
+            if (throwOnError) {
+                throw NodejsCallException(name, "$error")
+            }
             return null
         }
 
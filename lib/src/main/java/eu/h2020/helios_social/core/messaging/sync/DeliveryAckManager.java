@@ -0,0 +1,208 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import eu.h2020.helios_social.core.messaging.HeliosDirectMessaging;
+import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
+import eu.h2020.helios_social.core.messaging.MessagingConstants;
+import eu.h2020.helios_social.core.messaging.db.HeliosMessageStore;
+
+/**
+ * Singleton manager for end-to-end delivery acknowledgements of direct messages.
+ *
+ * The receiver collects the UUIDs of received messages per peer and returns them either
+ * piggybacked on the next direct message to that peer, or in a batched ack message sent with
+ * {@link MessagingConstants#HELIOS_DM_ACK_PROTO} after a short delay. The sender marks all
+ * acknowledged messages delivered at once. Sent messages are only considered delivered after
+ * an ack from peers that are known to send acks; other peers are treated as before.
+ */
+public class DeliveryAckManager {
+    private static final String TAG = "DeliveryAckManager";
+    private static DeliveryAckManager sInstance = new DeliveryAckManager();
+    private static final int MAX_BATCH = 64;
+    private int mAckDelay = 2 * 1000; // 2 seconds
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "helios-ack"));
+    private final ConcurrentHashMap<String, Set<String>> mPendingAcks = new ConcurrentHashMap<>();
+    private final Set<String> mAckCapablePeers = ConcurrentHashMap.newKeySet();
+    private HeliosDirectMessaging mMessaging;
+    private HeliosMessageStore mStore;
+
+    public static DeliveryAckManager getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Initialize the manager.
+     *
+     * @param messaging HeliosDirectMessaging used to send ack messages
+     * @param store HeliosMessageStore to update delivery state of sent messages
+     */
+    public void init(HeliosDirectMessaging messaging, HeliosMessageStore store) {
+        mMessaging = messaging;
+        mStore = store;
+    }
+
+    /**
+     * Set the delay after which collected acks are sent, if there was no outbound message
+     * to piggyback them on.
+     *
+     * @param milliseconds Ack delay in milliseconds
+     */
+    public void setAckDelay(int milliseconds) {
+        mAckDelay = milliseconds;
+    }
+
+    /**
+     * Check if the peer sends delivery acks, i.e., whether sent messages should wait for an
+     * ack before they are considered delivered.
+     *
+     * @param networkId Network id of the peer
+     * @return true if the peer is known to send acks
+     */
+    public boolean isAckCapable(String networkId) {
+        return networkId != null && mAckCapablePeers.contains(networkId);
+    }
+
+    /**
+     * A direct message was received. Its UUID is acked later, if the sender handles acks.
+     *
+     * @param networkId Network id of the sender
+     * @param uuid UUID of the received message
+     * @param senderAckCapable true if the message itself shows that the sender handles acks
+     */
+    public void onMessageReceived(String networkId, String uuid, boolean senderAckCapable) {
+        if (networkId == null || uuid == null) {
+            return;
+        }
+        if (senderAckCapable) {
+            mAckCapablePeers.add(networkId);
+        }
+        if (!isAckCapable(networkId)) {
+            return;
+        }
+
+        final boolean[] first = {false};
+        final int[] size = {0};
+        mPendingAcks.compute(networkId, (k, uuids) -> {
+            if (uuids == null) {
+                uuids = new LinkedHashSet<>();
+                first[0] = true;
+            }
+            uuids.add(uuid);
+            size[0] = uuids.size();
+            return uuids;
+        });
+
+        if (size[0] >= MAX_BATCH) {
+            mScheduler.execute(() -> flush(networkId));
+        } else if (first[0]) {
+            mScheduler.schedule(() -> flush(networkId), mAckDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Take the acks collected for a peer, to piggyback them on an outbound message.
+     *
+     * @param networkId Network id of the peer
+     * @return list of message UUIDs, empty if there are none
+     */
+    public List<String> takeAcks(String networkId) {
+        Set<String> uuids = networkId == null ? null : mPendingAcks.remove(networkId);
+        if (uuids == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(uuids);
+    }
+
+    /**
+     * Return acks taken with {@link #takeAcks(String)} that could not be sent.
+     *
+     * @param networkId Network id of the peer
+     * @param uuids Message UUIDs
+     */
+    public void returnAcks(String networkId, List<String> uuids) {
+        for (String uuid : uuids) {
+            onMessageReceived(networkId, uuid, false);
+        }
+    }
+
+    /**
+     * Acks were received from a peer. The acknowledged messages sent to the peer are marked
+     * delivered.
+     *
+     * @param networkId Network id of the peer
+     * @param uuids UUIDs of the acknowledged messages
+     */
+    public void onAcksReceived(String networkId, Collection<String> uuids) {
+        if (networkId != null) {
+            mAckCapablePeers.add(networkId);
+        }
+        if (uuids.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Received " + uuids.size() + " acks from " + networkId);
+        if (mStore != null) {
+            mStore.markDelivered(networkId, uuids);
+        }
+    }
+
+    /**
+     * Encode message UUIDs for an ack message.
+     *
+     * @param uuids Message UUIDs
+     * @return payload
+     */
+    public static byte[] encodeAcks(Collection<String> uuids) {
+        return String.join("\n", uuids).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode message UUIDs from an ack message.
+     *
+     * @param data payload
+     * @return Message UUIDs
+     */
+    public static List<String> decodeAcks(byte[] data) {
+        String text = new String(data, StandardCharsets.UTF_8);
+        if (text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> uuids = new ArrayList<>();
+        for (String uuid : text.split("\n")) {
+            if (!uuid.isEmpty()) {
+                uuids.add(uuid);
+            }
+        }
+        return uuids;
+    }
+
+    private void flush(String networkId) {
+        List<String> uuids = takeAcks(networkId);
+        if (uuids.isEmpty() || mMessaging == null) {
+            return;
+        }
+
+        HeliosNetworkAddress address = new HeliosNetworkAddress();
+        address.setNetworkId(networkId);
+        try {
+            Log.d(TAG, "Sending " + uuids.size() + " acks to " + networkId);
+            mMessaging.sendTo(address, MessagingConstants.HELIOS_DM_ACK_PROTO, encodeAcks(uuids));
+        } catch (RuntimeException e) {
+            // The sender resends the messages later, and they are acked again.
+            Log.d(TAG, "Could not send acks to " + networkId + ": " + e.getMessage());
+        }
+    }
+}
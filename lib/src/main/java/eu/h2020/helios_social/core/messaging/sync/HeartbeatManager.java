@@ -7,29 +7,50 @@ import android.util.Log;
 
 import com.google.common.hash.BloomFilter;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import eu.h2020.helios_social.core.messaging.HeliosConnect;
 import eu.h2020.helios_social.core.messaging.HeliosIdentityInfo;
-import eu.h2020.helios_social.core.messaging.HeliosMessage;
 import eu.h2020.helios_social.core.messaging.HeliosMessaging;
 import eu.h2020.helios_social.core.messaging.HeliosMessagingException;
 import eu.h2020.helios_social.core.messaging.HeliosTopic;
 import eu.h2020.helios_social.core.messaging.data.HeliosConversation;
 import eu.h2020.helios_social.core.messaging.data.HeliosConversationList;
 import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
-import eu.h2020.helios_social.core.messaging.data.JsonMessageConverter;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePartEnvelope;
+import eu.h2020.helios_social.core.messaging.data.MessageSetSketch;
+import eu.h2020.helios_social.core.messaging.data.SequenceTracker;
 import eu.h2020.helios_social.core.messaging.HeliosDirectMessaging;
 import eu.h2020.helios_social.core.messaging.HeliosEgoTag;
 import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
 
 /**
  * This class takes care of sending periodic heartbeat messages to pubsub topics.
+ *
+ * Heartbeats carry a {@link MessageSetSketch} of the recent messages of the topic. A receiver
+ * that decodes the difference to its own messages resends what the sender lacks and requests
+ * what it lacks itself with a SYNC_REQUEST. The Bloom filter of older clients is sent as well
+ * while such clients are seen in the topic, and it is used as a fallback when the difference
+ * is too large for the sketch. A receiver that cannot decode a sketch sends its own Bloom
+ * filter in a SYNC_REQUEST, and the sketches of the topic are made larger.
+ *
+ * Heartbeats also carry the high-water marks of the senders whose messages are numbered, see
+ * {@link HeliosMessagePart#seq}. A receiver that is behind a mark requests the exact sequence
+ * numbers it lacks.
  */
 public class HeartbeatManager {
     private static final String TAG = "HeartbeatManager";
@@ -41,6 +62,18 @@ public class HeartbeatManager {
     private int mHeartbeatDelay = 3300; // 3.3 seconds
     private Hashtable<String, Hashtable<String, HeliosEgoTag>> mHeartbeatUsers = new Hashtable<>();
     private Hashtable<String, HeliosEgoTag> mHeartbeatUsersDm = new Hashtable<>();
+    // SYNC_REQUEST payloads
+    public static final String SYNC_REQUEST_KEYS = "keys";
+    public static final String SYNC_REQUEST_BLOOM = "bloom";
+    public static final String SYNC_REQUEST_GAPS = "gaps";
+    // Maximum number of messages requested by sequence number at a time
+    private static final int MAX_GAP_MESSAGES = 500;
+    // Capabilities seen in heartbeats and sketch sizes, by topic
+    private static final int CAPABILITY_TIMEOUT_INTERVALS = 10;
+    private final ConcurrentHashMap<String, Long> mLegacySeenAt = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> mSketchSeenAt = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> mSketchCells = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> mSketchFailedAt = new ConcurrentHashMap<>();
 
     public static HeartbeatManager getInstance() {
         return sInstance;
@@ -153,6 +186,7 @@ public class HeartbeatManager {
         // Also update individual network id status table
         Log.d(TAG, "--updateUserOnline getNetworkId: " + egoTag.getNetworkId() + " - " + msg.senderNetworkId);
         mHeartbeatUsersDm.put(egoTag.getNetworkId(), egoTag);
+        PeerCircuitBreaker.getInstance().onPresence(egoTag.getNetworkId());
     }
 
     /**
@@ -165,6 +199,7 @@ public class HeartbeatManager {
         Log.d(TAG, "updateUserOnline getNetworkId: " + address.getNetworkId() + " - " + msg.senderNetworkId);
         HeliosEgoTag egoTag = createEgoTag(msg);
         mHeartbeatUsersDm.put(egoTag.getNetworkId(), egoTag);
+        PeerCircuitBreaker.getInstance().onPresence(address.getNetworkId());
     }
 
     /**
@@ -202,10 +237,9 @@ public class HeartbeatManager {
                 Log.d(TAG, "mHeartbeatHandler.run() " + Thread.currentThread().getId());
                 if (connector.isConnected()) {
                     ZonedDateTime sinceTs = ZonedDateTime.now().minusDays(7);
-                    // FIXME: Is this iteration thread safe?
-                    ArrayList<HeliosConversation> conversationList = HeliosConversationList.getInstance().getConversations();
-                    for (int i = 0; i < conversationList.size(); i++) {
-                        HeliosConversation conversation = conversationList.get(i);
+                    // Snapshot, conversations may be added meanwhile
+                    List<HeliosConversation> conversationList = HeliosConversationList.getInstance().getSnapshot().getConversations();
+                    for (HeliosConversation conversation : conversationList) {
                         // Only send HEARTBEAT to groups, i.e., now without UUID
                         if (TextUtils.isEmpty(conversation.topic.uuid)) {
                             Log.d(TAG, "mHeartbeat send to topic:" + conversation.topic.topic);
@@ -217,11 +251,17 @@ public class HeartbeatManager {
                                 Log.e(TAG, "Identity info is missing - heartbeat message is not sent");
                                 return;
                             }
-                            heartbeatMsg.mediaFileData = conversation.formatBloom(sinceTs);
+                            heartbeatMsg.syncSketch = conversation.formatSketch(sinceTs,
+                                    getSketchCells(conversation.topic.topic));
+                            Map<String, Long> marks = conversation.getHighWaterMarks();
+                            heartbeatMsg.highWaterMarks = marks.isEmpty() ? null : marks;
+                            if (needsBloom(conversation.topic.topic)) {
+                                heartbeatMsg.mediaFileData = conversation.formatBloom(sinceTs);
+                            }
                             heartbeatMsg.sinceTs = sinceTs.format(DateTimeFormatter.ISO_ZONED_DATE_TIME);
 
                             try {
-                                messaging.publish(new HeliosTopic(heartbeatMsg.to, heartbeatMsg.to), new HeliosMessage(JsonMessageConverter.getInstance().convertToJson(heartbeatMsg)));
+                                messaging.publish(new HeliosTopic(heartbeatMsg.to, heartbeatMsg.to), new HeliosMessagePartEnvelope(heartbeatMsg));
                                 Log.d(TAG, "heartbeat sent to:" + heartbeatMsg.to);
                             } catch (HeliosMessagingException e) {
                                 Log.e(TAG, "heartbeat.run error sending to:" + heartbeatMsg.to);
@@ -257,12 +297,10 @@ public class HeartbeatManager {
         if ((msg == null) || !isHeartbeatMsg(msg) || (msg.mediaFileData == null) || (msg.mediaFileData.length == 0)) {
             throw new HeartbeatDataException();
         }
-        BloomFilter<String> filter = HeliosConversation.parseBloom(msg.mediaFileData);
-
-        ZonedDateTime sinceTs = msg.sinceTs == null ?
-                ZonedDateTime.now().minusDays(7) :
-                ZonedDateTime.parse(msg.sinceTs, DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        return collectMissingMessages(HeliosConversation.parseBloom(msg.mediaFileData), getSinceTs(msg), conversation);
+    }
 
+    private List<HeliosMessagePart> collectMissingMessages(BloomFilter<String> filter, ZonedDateTime sinceTs, HeliosConversation conversation) {
         List<HeliosMessagePart> recentMessages = conversation.getMessagesAfter(sinceTs);
         List<HeliosMessagePart> missingMessages = recentMessages
                 .stream()
@@ -272,6 +310,276 @@ public class HeartbeatManager {
         return missingMessages;
     }
 
+    private static ZonedDateTime getSinceTs(HeliosMessagePart msg) {
+        return msg.sinceTs == null ?
+                ZonedDateTime.now().minusDays(7) :
+                ZonedDateTime.parse(msg.sinceTs, DateTimeFormatter.ISO_ZONED_DATE_TIME);
+    }
+
+    /**
+     * Record the capabilities of the sender of a heartbeat, to decide what our heartbeats to
+     * the topic carry.
+     *
+     * @param msg Received heartbeat message
+     */
+    public void onHeartbeatReceived(HeliosMessagePart msg) {
+        if (msg.to == null) {
+            return;
+        }
+        if (msg.syncSketch != null) {
+            mSketchSeenAt.put(msg.to, System.currentTimeMillis());
+        } else {
+            mLegacySeenAt.put(msg.to, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Check if heartbeats to a topic must carry a Bloom filter, i.e., if clients without
+     * sketch support have been seen in the topic recently, or no clients at all.
+     *
+     * @param topic Topic name
+     * @return true if the Bloom filter is needed
+     */
+    boolean needsBloom(String topic) {
+        long now = System.currentTimeMillis();
+        long timeout = (long) CAPABILITY_TIMEOUT_INTERVALS * mHeartbeatInterval;
+        Long legacy = mLegacySeenAt.get(topic);
+        if (legacy != null && now - legacy < timeout) {
+            return true;
+        }
+        Long sketch = mSketchSeenAt.get(topic);
+        return sketch == null || now - sketch >= timeout;
+    }
+
+    /**
+     * Get the size of the sketches sent to a topic. Sketches are made larger when receivers
+     * cannot decode them and smaller again when they can.
+     *
+     * @param topic Topic name
+     * @return number of cells
+     */
+    int getSketchCells(String topic) {
+        Integer cells = mSketchCells.get(topic);
+        if (cells == null) {
+            return MessageSetSketch.MIN_CELLS;
+        }
+        Long failedAt = mSketchFailedAt.get(topic);
+        long timeout = (long) CAPABILITY_TIMEOUT_INTERVALS * mHeartbeatInterval;
+        if (failedAt == null || System.currentTimeMillis() - failedAt >= timeout) {
+            cells = MessageSetSketch.cellsFor(cells / 2);
+            mSketchCells.put(topic, cells);
+        }
+        return cells;
+    }
+
+    private void onSketchDecodeFailed(String topic) {
+        mSketchCells.merge(topic, MessageSetSketch.cellsFor(2 * MessageSetSketch.MIN_CELLS),
+                (cells, initial) -> MessageSetSketch.cellsFor(2 * cells));
+        mSketchFailedAt.put(topic, System.currentTimeMillis());
+    }
+
+    /**
+     * Compare the sketch of a heartbeat with the messages of the conversation.
+     *
+     * @param msg Helios heartbeat message
+     * @param conversation Discussion group
+     * @return the difference, or null if it is too large for the sketch
+     * @throws HeartbeatDataException No sketch in the heartbeat
+     * @throws IllegalArgumentException Invalid sketch
+     */
+    public SketchDifference compareSketch(HeliosMessagePart msg, HeliosConversation conversation) throws HeartbeatDataException {
+        if ((msg == null) || !isHeartbeatMsg(msg) || (msg.syncSketch == null)) {
+            throw new HeartbeatDataException();
+        }
+        MessageSetSketch remote = MessageSetSketch.parse(msg.syncSketch);
+        MessageSetSketch local = new MessageSetSketch(remote.getCellCount());
+        HashMap<Long, HeliosMessagePart> byKey = new HashMap<>();
+        for (HeliosMessagePart storedMsg : conversation.getDigestMessages(getSinceTs(msg))) {
+            if (byKey.put(MessageSetSketch.keyOf(storedMsg.getUuid()), storedMsg) == null) {
+                local.add(storedMsg.getUuid());
+            }
+        }
+
+        MessageSetSketch.Difference difference = local.subtract(remote).decode();
+        if (difference == null) {
+            return null;
+        }
+        List<HeliosMessagePart> missingFromSender = new ArrayList<>();
+        for (Long key : difference.getLocalKeys()) {
+            HeliosMessagePart storedMsg = byKey.get(key);
+            if (storedMsg != null) {
+                missingFromSender.add(storedMsg);
+            }
+        }
+        return new SketchDifference(missingFromSender, difference.getRemoteKeys());
+    }
+
+    /**
+     * Create a request for messages we lack, found by {@link #compareSketch}.
+     *
+     * @param heartbeat Heartbeat of the peer that has the messages
+     * @param keys Keys of the messages, see {@link MessageSetSketch#keyOf(String)}
+     * @return SYNC_REQUEST message
+     */
+    public HeliosMessagePart createKeyRequest(HeliosMessagePart heartbeat, Collection<Long> keys) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * keys.size());
+        for (Long key : keys) {
+            buffer.putLong(key);
+        }
+        HeliosMessagePart request = createSyncRequest(heartbeat, SYNC_REQUEST_KEYS);
+        request.mediaFileData = buffer.array();
+        return request;
+    }
+
+    /**
+     * Create a request for the messages not in our Bloom filter, used when the sketch of a
+     * heartbeat could not be decoded.
+     *
+     * @param heartbeat Heartbeat of the peer that has the messages
+     * @param conversation Discussion group
+     * @return SYNC_REQUEST message
+     */
+    public HeliosMessagePart createBloomRequest(HeliosMessagePart heartbeat, HeliosConversation conversation) {
+        HeliosMessagePart request = createSyncRequest(heartbeat, SYNC_REQUEST_BLOOM);
+        request.mediaFileData = conversation.formatBloom(getSinceTs(heartbeat));
+        return request;
+    }
+
+    /**
+     * Find the messages we lack compared with the high-water marks of a heartbeat.
+     *
+     * @param heartbeat Helios heartbeat message
+     * @param conversation Discussion group
+     * @return list of gaps, empty if the heartbeat has no marks
+     */
+    public List<SequenceTracker.Gap> findSequenceGaps(HeliosMessagePart heartbeat, HeliosConversation conversation) {
+        if (heartbeat.highWaterMarks == null || heartbeat.highWaterMarks.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return conversation.findSequenceGaps(heartbeat.highWaterMarks, MAX_GAP_MESSAGES);
+    }
+
+    /**
+     * Create a request for messages we lack, found by {@link #findSequenceGaps}. The messages
+     * we lack by the sketch of the heartbeat can be requested in the same request, so that the
+     * messages in both are sent only once.
+     *
+     * @param heartbeat Heartbeat of the peer that has the messages
+     * @param gaps Sequence numbers of the messages
+     * @param keys Keys of other messages, see {@link MessageSetSketch#keyOf(String)}
+     * @return SYNC_REQUEST message
+     */
+    public HeliosMessagePart createGapRequest(HeliosMessagePart heartbeat, List<SequenceTracker.Gap> gaps, Collection<Long> keys) {
+        ArrayList<byte[]> senders = new ArrayList<>(gaps.size());
+        int size = 4 + 8 * keys.size();
+        for (SequenceTracker.Gap gap : gaps) {
+            byte[] sender = gap.getSenderUUID().getBytes(StandardCharsets.UTF_8);
+            senders.add(sender);
+            size += 2 + sender.length + 8 + 8;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(gaps.size());
+        for (int i = 0; i < gaps.size(); i++) {
+            buffer.putShort((short) senders.get(i).length);
+            buffer.put(senders.get(i));
+            buffer.putLong(gaps.get(i).getFrom());
+            buffer.putLong(gaps.get(i).getTo());
+        }
+        for (Long key : keys) {
+            buffer.putLong(key);
+        }
+        HeliosMessagePart request = createSyncRequest(heartbeat, SYNC_REQUEST_GAPS);
+        request.mediaFileData = buffer.array();
+        return request;
+    }
+
+    private static List<SequenceTracker.Gap> parseGaps(ByteBuffer buffer) {
+        ArrayList<SequenceTracker.Gap> gaps = new ArrayList<>();
+        try {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] sender = new byte[buffer.getShort() & 0xffff];
+                buffer.get(sender);
+                gaps.add(new SequenceTracker.Gap(new String(sender, StandardCharsets.UTF_8),
+                        buffer.getLong(), buffer.getLong()));
+            }
+        } catch (BufferUnderflowException e) {
+            Log.e(TAG, "Truncated gap request");
+        }
+        return gaps;
+    }
+
+    private HeliosMessagePart createSyncRequest(HeliosMessagePart heartbeat, String type) {
+        String timestamp = DateTimeFormatter.ISO_ZONED_DATE_TIME.format(ZonedDateTime.now());
+        HeliosMessagePart request = new HeliosMessagePart(type, null, null, heartbeat.to, timestamp,
+                HeliosMessagePart.MessagePartType.SYNC_REQUEST);
+        request.sinceTs = heartbeat.sinceTs;
+        return request;
+    }
+
+    /**
+     * Collect the messages requested by a peer in a SYNC_REQUEST.
+     *
+     * @param request SYNC_REQUEST message
+     * @param conversation Discussion group of the request
+     * @return List of messages to resend
+     */
+    public List<HeliosMessagePart> collectRequestedMessages(HeliosMessagePart request, HeliosConversation conversation) {
+        if (request.mediaFileData == null) {
+            return new ArrayList<>();
+        }
+        if (SYNC_REQUEST_BLOOM.equals(request.msg)) {
+            // The peer could not decode our sketch
+            onSketchDecodeFailed(request.to);
+            return collectMissingMessages(HeliosConversation.parseBloom(request.mediaFileData),
+                    getSinceTs(request), conversation);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(request.mediaFileData);
+        List<SequenceTracker.Gap> gaps = SYNC_REQUEST_GAPS.equals(request.msg) ?
+                parseGaps(buffer) : new ArrayList<>();
+        Set<Long> keys = new HashSet<>();
+        while (buffer.remaining() >= 8) {
+            keys.add(buffer.getLong());
+        }
+        return conversation.getDigestMessages(getSinceTs(request))
+                .stream()
+                .filter(storedMsg -> keys.contains(MessageSetSketch.keyOf(storedMsg.getUuid())) ||
+                        gaps.stream().anyMatch(gap -> gap.contains(storedMsg)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Result of {@link #compareSketch}.
+     */
+    public static class SketchDifference {
+        private final List<HeliosMessagePart> mMissingFromSender;
+        private final Set<Long> mMissingLocally;
+
+        SketchDifference(List<HeliosMessagePart> missingFromSender, Set<Long> missingLocally) {
+            mMissingFromSender = missingFromSender;
+            mMissingLocally = missingLocally;
+        }
+
+        /**
+         * @return messages that we have but the sender of the heartbeat does not
+         */
+        public List<HeliosMessagePart> getMissingFromSender() {
+            return mMissingFromSender;
+        }
+
+        /**
+         * @return keys of messages that the sender of the heartbeat has but we do not
+         */
+        public Set<Long> getMissingLocally() {
+            return mMissingLocally;
+        }
+
+        public boolean isEmpty() {
+            return mMissingFromSender.isEmpty() && mMissingLocally.isEmpty();
+        }
+    }
+
     /**
      * Send message delayed
      * @param messaging HeliosMessaging handle that is used to publish delayed
@@ -285,7 +593,7 @@ public class HeartbeatManager {
         mHeartbeatHandler.postDelayed(() -> {
             HeliosMessagePart message = createNewMessage(topic, msg, identity, msgType);
             try {
-                messaging.publish(new HeliosTopic(message.to, message.to), new HeliosMessage(JsonMessageConverter.getInstance().convertToJson(message)));
+                messaging.publish(new HeliosTopic(message.to, message.to), new HeliosMessagePartEnvelope(message));
             } catch (HeliosMessagingException e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,314 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
+import eu.h2020.helios_social.core.messaging.data.HeliosConversation;
+import eu.h2020.helios_social.core.messaging.data.HeliosConversationList;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+import eu.h2020.helios_social.core.messaging.data.SequenceTracker;
+
+/**
+ * Analyzes received heartbeats in a background thread of its own, so that parsing the Bloom
+ * filter and comparing it with the conversation do not delay the delivery of chat messages.
+ *
+ * Heartbeats are queued per sender and conversation. If a newer heartbeat from the same sender
+ * arrives while the older one is still queued, only the newer one is analyzed. If the sender
+ * was not missing anything, a following heartbeat that carries the same Bloom filter is skipped
+ * as long as the conversation has not changed in between. Heartbeats that have waited in the
+ * queue for longer than two heartbeat intervals are dropped, as the sender has sent a newer one.
+ *
+ * Heartbeats with a sketch are reconciled both ways, see {@link HeartbeatManager}. Messages
+ * missing below the high-water marks of a heartbeat are requested by sequence number, together
+ * with the messages we lack by the sketch. A gap request that is not answered within two
+ * heartbeat intervals is sent again, and after {@link #MAX_GAP_ATTEMPTS} the gap is given up,
+ * e.g., because the messages are older than the heartbeat window of the peer. While a gap
+ * request is outstanding, the messages we lack by the sketch are not requested separately, as
+ * the gaps may cover them. SYNC_REQUESTs of peers are handled in the same thread.
+ */
+public class HeartbeatReconciler {
+    private static final String TAG = "HeartbeatReconciler";
+    static final int MAX_GAP_ATTEMPTS = 3;
+    private final HeartbeatManager mHeartbeatManager;
+    private final SyncManager mSyncManager;
+    private final Executor mExecutor;
+    private final LongSupplier mClock;
+    private final ConcurrentHashMap<String, Heartbeat> mQueued = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Heartbeat> mLastAnalyzed = new ConcurrentHashMap<>();
+    // Outstanding gap requests by sender and topic of the heartbeat, and by the gap
+    private final ConcurrentHashMap<String, HashMap<String, GapRequest>> mGapRequests = new ConcurrentHashMap<>();
+    private final AtomicLong mShedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param heartbeatManager HeartbeatManager used to analyze heartbeats.
+     * @param syncManager SyncManager used to resend missing messages.
+     */
+    public HeartbeatReconciler(HeartbeatManager heartbeatManager, SyncManager syncManager) {
+        this(heartbeatManager, syncManager,
+                Executors.newSingleThreadExecutor(r -> new Thread(r, "helios-heartbeat")),
+                System::currentTimeMillis);
+    }
+
+    HeartbeatReconciler(HeartbeatManager heartbeatManager, SyncManager syncManager, Executor executor, LongSupplier clock) {
+        mHeartbeatManager = heartbeatManager;
+        mSyncManager = syncManager;
+        mExecutor = executor;
+        mClock = clock;
+    }
+
+    /**
+     * Queue a received heartbeat for analysis. Returns immediately.
+     *
+     * @param msg Heartbeat message
+     * @param conversation Conversation of the heartbeat topic
+     * @param senderAddress Network address of the sender
+     */
+    public void submit(HeliosMessagePart msg, HeliosConversation conversation, HeliosNetworkAddress senderAddress) {
+        String key = senderAddress.getNetworkId() + "/" + conversation.topic.topic;
+        mHeartbeatManager.onHeartbeatReceived(msg);
+        Heartbeat heartbeat = new Heartbeat(msg, conversation, senderAddress, mClock.getAsLong());
+
+        // If a heartbeat is already queued, it is replaced and no new task is needed
+        if (mQueued.put(key, heartbeat) == null) {
+            mExecutor.execute(() -> analyze(key));
+        } else {
+            Log.d(TAG, "Coalesced heartbeat from " + key);
+            mShedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queue a SYNC_REQUEST received from a peer. The requested messages are resent to the peer.
+     *
+     * @param request SYNC_REQUEST message
+     * @param senderAddress Network address of the sender
+     */
+    public void submitSyncRequest(HeliosMessagePart request, HeliosNetworkAddress senderAddress) {
+        mExecutor.execute(() -> {
+            HeliosConversation conversation = HeliosConversationList.getInstance().getConversation(request.to);
+            if (conversation == null) {
+                Log.d(TAG, "Sync request for unknown topic " + request.to);
+                return;
+            }
+            try {
+                List<HeliosMessagePart> requested = mHeartbeatManager.collectRequestedMessages(request, conversation);
+                Log.d(TAG, "Sync request " + request.msg + " from " + senderAddress.getNetworkId() + ": " + requested.size());
+                if (!requested.isEmpty()) {
+                    mSyncManager.syncMessages(requested, senderAddress);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error handling sync request from " + senderAddress.getNetworkId() + ": " + e.toString());
+            }
+        });
+    }
+
+    /**
+     * Get the number of heartbeats that were not analyzed because they were stale or replaced
+     * by a newer heartbeat from the same sender.
+     *
+     * @return number of shed heartbeats
+     */
+    public long getShedCount() {
+        return mShedCount.get();
+    }
+
+    /**
+     * Drop queued heartbeats and forget the previously analyzed ones.
+     */
+    public void reset() {
+        mQueued.clear();
+        mLastAnalyzed.clear();
+        mGapRequests.clear();
+    }
+
+    private void analyze(String key) {
+        Heartbeat heartbeat = mQueued.remove(key);
+        if (heartbeat == null) {
+            return;
+        }
+        if (mClock.getAsLong() - heartbeat.receivedAt > 2L * mHeartbeatManager.getHeartbeatInterval()) {
+            Log.d(TAG, "Heartbeat from " + key + " is stale, dropping");
+            mShedCount.incrementAndGet();
+            return;
+        }
+
+        Heartbeat last = mLastAnalyzed.get(key);
+        if (last != null && last.conversation == heartbeat.conversation &&
+                last.version == heartbeat.version &&
+                Arrays.equals(last.msg.mediaFileData, heartbeat.msg.mediaFileData) &&
+                Arrays.equals(last.msg.syncSketch, heartbeat.msg.syncSketch) &&
+                Objects.equals(last.msg.highWaterMarks, heartbeat.msg.highWaterMarks) &&
+                (last.msg.sinceTs == null ? heartbeat.msg.sinceTs == null : last.msg.sinceTs.equals(heartbeat.msg.sinceTs))) {
+            Log.d(TAG, "Heartbeat from " + key + " unchanged, skipping");
+            return;
+        }
+        mLastAnalyzed.remove(key);
+
+        List<SequenceTracker.Gap> gaps = findGapsToRequest(key, heartbeat);
+        boolean gapsPending = mGapRequests.containsKey(key);
+        if (heartbeat.msg.syncSketch != null && reconcileSketch(key, heartbeat, gaps, gapsPending)) {
+            return;
+        }
+        if (!gaps.isEmpty()) {
+            mSyncManager.sendSyncRequest(mHeartbeatManager.createGapRequest(heartbeat.msg, gaps,
+                    Collections.emptySet()), heartbeat.senderAddress);
+        }
+        try {
+            List<HeliosMessagePart> hasMissing = mHeartbeatManager.collectMissingMessages(heartbeat.msg, heartbeat.conversation);
+            Log.d(TAG, "update hasMissing: " + hasMissing.size());
+            if (!hasMissing.isEmpty()) {
+                for (HeliosMessagePart missingMsg : hasMissing) {
+                    Log.i(TAG, "Sender " + heartbeat.msg.senderName + " is missing " + missingMsg.msg);
+                }
+                // Trigger a sync message to heartbeat sender
+                mSyncManager.syncMessages(hasMissing, heartbeat.senderAddress);
+            } else if (!gapsPending) {
+                mLastAnalyzed.put(key, heartbeat);
+            }
+        } catch (HeartbeatDataException e) {
+            Log.d(TAG, "Heartbeat message without payload");
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error analyzing heartbeat from " + key + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Find the messages missing below the high-water marks of a heartbeat that are to be
+     * requested now. Gaps already requested are requested again once their deadline passes,
+     * and given up after {@link #MAX_GAP_ATTEMPTS}.
+     *
+     * @return list of gaps, empty if none are due
+     */
+    private List<SequenceTracker.Gap> findGapsToRequest(String key, Heartbeat heartbeat) {
+        List<SequenceTracker.Gap> gaps;
+        try {
+            gaps = mHeartbeatManager.findSequenceGaps(heartbeat.msg, heartbeat.conversation);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error analyzing heartbeat marks from " + key + ": " + e.toString());
+            gaps = Collections.emptyList();
+        }
+
+        // Gaps that were filled or are no longer reported are forgotten
+        long now = mClock.getAsLong();
+        HashMap<String, GapRequest> requests = mGapRequests.getOrDefault(key, new HashMap<>());
+        HashMap<String, GapRequest> outstanding = new HashMap<>();
+        ArrayList<SequenceTracker.Gap> due = new ArrayList<>();
+        for (SequenceTracker.Gap gap : gaps) {
+            // A gap partly filled from the start is a new request, a gap growing at the end is not
+            String id = gap.getSenderUUID() + "/" + gap.getFrom();
+            GapRequest request = requests.get(id);
+            if (request == null) {
+                request = new GapRequest();
+            }
+            if (now >= request.deadline) {
+                if (request.attempts >= MAX_GAP_ATTEMPTS) {
+                    Log.d(TAG, "Giving up gap " + id + "-" + gap.getTo() + " from " + key);
+                    heartbeat.conversation.skipSequenceGap(gap);
+                    continue;
+                }
+                request.attempts++;
+                request.deadline = now + 2L * mHeartbeatManager.getHeartbeatInterval();
+                due.add(gap);
+            }
+            outstanding.put(id, request);
+        }
+        if (outstanding.isEmpty()) {
+            mGapRequests.remove(key);
+        } else {
+            mGapRequests.put(key, outstanding);
+        }
+        if (!due.isEmpty()) {
+            Log.d(TAG, "Heartbeat marks from " + key + ": missing " + due.size() + " ranges");
+        }
+        return due;
+    }
+
+    /**
+     * Reconcile the messages with the sketch of a heartbeat. Gaps due are requested with the
+     * messages we lack by the sketch.
+     *
+     * @param gaps Gaps to request now
+     * @param gapsPending true if gap requests are outstanding, then the messages we lack by
+     *                    the sketch are only requested with gaps that are due
+     * @return true if done, false if the Bloom filter of the heartbeat and the gaps are still
+     *         to be handled
+     */
+    private boolean reconcileSketch(String key, Heartbeat heartbeat, List<SequenceTracker.Gap> gaps, boolean gapsPending) {
+        HeartbeatManager.SketchDifference difference;
+        try {
+            difference = mHeartbeatManager.compareSketch(heartbeat.msg, heartbeat.conversation);
+        } catch (HeartbeatDataException | RuntimeException e) {
+            Log.e(TAG, "Error analyzing heartbeat sketch from " + key + ": " + e.toString());
+            return false;
+        }
+
+        if (difference == null) {
+            // Too many differences for the sketch, let the sender compare our Bloom filter
+            Log.d(TAG, "Heartbeat sketch from " + key + " could not be decoded");
+            mSyncManager.sendSyncRequest(mHeartbeatManager.createBloomRequest(heartbeat.msg, heartbeat.conversation),
+                    heartbeat.senderAddress);
+            if (heartbeat.msg.mediaFileData != null) {
+                return false;
+            }
+            if (!gaps.isEmpty()) {
+                mSyncManager.sendSyncRequest(mHeartbeatManager.createGapRequest(heartbeat.msg, gaps,
+                        Collections.emptySet()), heartbeat.senderAddress);
+            }
+            return true;
+        }
+
+        Log.d(TAG, "Heartbeat sketch from " + key + ": sender is missing " + difference.getMissingFromSender().size() +
+                ", we are missing " + difference.getMissingLocally().size());
+        if (!difference.getMissingFromSender().isEmpty()) {
+            mSyncManager.syncMessages(difference.getMissingFromSender(), heartbeat.senderAddress);
+        }
+        Set<Long> missingLocally = difference.getMissingLocally();
+        if (!gaps.isEmpty()) {
+            mSyncManager.sendSyncRequest(mHeartbeatManager.createGapRequest(heartbeat.msg, gaps, missingLocally),
+                    heartbeat.senderAddress);
+        } else if (!missingLocally.isEmpty() && !gapsPending) {
+            mSyncManager.sendSyncRequest(mHeartbeatManager.createKeyRequest(heartbeat.msg, missingLocally),
+                    heartbeat.senderAddress);
+        }
+        if (difference.isEmpty() && !gapsPending) {
+            mLastAnalyzed.put(key, heartbeat);
+        }
+        return true;
+    }
+
+    private static class GapRequest {
+        int attempts;
+        long deadline;
+    }
+
+    private static class Heartbeat {
+        final HeliosMessagePart msg;
+        final HeliosConversation conversation;
+        final HeliosNetworkAddress senderAddress;
+        final int version;
+        final long receivedAt;
+
+        Heartbeat(HeliosMessagePart msg, HeliosConversation conversation, HeliosNetworkAddress senderAddress, long receivedAt) {
+            this.msg = msg;
+            this.conversation = conversation;
+            this.senderAddress = senderAddress;
+            this.version = conversation.getVersion();
+            this.receivedAt = receivedAt;
+        }
+    }
+}
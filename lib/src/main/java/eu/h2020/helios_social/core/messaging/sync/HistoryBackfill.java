@@ -0,0 +1,286 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
+import eu.h2020.helios_social.core.messaging.data.HeliosConversation;
+import eu.h2020.helios_social.core.messaging.data.HeliosConversationList;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+import eu.h2020.helios_social.core.messaging.data.JsonMessageConverter;
+
+/**
+ * Pull-based backfill of the history of a group from a peer over HELIOS_CHAT_SYNC_PROTO.
+ *
+ * A SYNC_REQUEST asks for a page of messages of a topic older than a cursor. The peer answers
+ * with a SYNC_RESPONSE that carries the page as one batch, newest messages first if the page
+ * had to be cut to fit. Pages are requested until the requested number of pages has been
+ * received, the peer has no more messages or a page after the first one has no messages new
+ * to us.
+ *
+ * Responses are only accepted for pending requests. A backfill whose request is not answered
+ * in time is dropped.
+ */
+public class HistoryBackfill {
+    private static final String TAG = "HistoryBackfill";
+    public static final String SYNC_HISTORY = "history";
+    public static final String SYNC_HISTORY_END = "history-end";
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_MAX_PAGES = 10;
+    private static final int MAX_PAGE_SIZE = 200;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    static final long REQUEST_TIMEOUT = 60 * 1000; // 1 minute
+    private final SyncManager mSyncManager;
+    private final LongSupplier mClock;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "helios-backfill"));
+    // Pending backfills by peer and topic
+    private final ConcurrentHashMap<String, Backfill> mPending = new ConcurrentHashMap<>();
+    // Topics to backfill from the first peer seen
+    private final ConcurrentHashMap<String, Boolean> mTopicsToBackfill = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param syncManager SyncManager used to send requests and responses.
+     */
+    public HistoryBackfill(SyncManager syncManager) {
+        this(syncManager, System::currentTimeMillis);
+    }
+
+    HistoryBackfill(SyncManager syncManager, LongSupplier clock) {
+        mSyncManager = syncManager;
+        mClock = clock;
+    }
+
+    public static boolean isHistoryRequest(HeliosMessagePart msg) {
+        return msg.messageType == HeliosMessagePart.MessagePartType.SYNC_REQUEST && SYNC_HISTORY.equals(msg.msg);
+    }
+
+    /**
+     * Request the history of a topic from a peer.
+     *
+     * @param address Network address of the peer
+     * @param topic Topic name
+     * @param beforeMillis Epoch milliseconds, only older messages are requested
+     * @param pageSize Number of messages per page
+     * @param maxPages Maximum number of pages
+     */
+    public void request(HeliosNetworkAddress address, String topic, long beforeMillis, int pageSize, int maxPages) {
+        if (maxPages <= 0 || pageSize <= 0) {
+            return;
+        }
+        long now = mClock.getAsLong();
+        mPending.values().removeIf(pending -> isExpired(pending, now));
+        Backfill backfill = new Backfill(Math.min(pageSize, MAX_PAGE_SIZE), maxPages, beforeMillis);
+        mPending.put(getKey(address, topic), backfill);
+        sendRequest(address, topic, backfill);
+    }
+
+    /**
+     * Backfill a topic from the first peer seen in it, see {@link #onPeerSeen}.
+     *
+     * @param topic Topic name
+     */
+    public void backfillOnPeerSeen(String topic) {
+        mTopicsToBackfill.put(topic, true);
+    }
+
+    /**
+     * Called when a peer that supports backfill is seen in a topic, e.g., from its heartbeat.
+     * Starts a pending backfill of the topic.
+     *
+     * @param topic Topic name
+     * @param address Network address of the peer
+     */
+    public void onPeerSeen(String topic, HeliosNetworkAddress address) {
+        if (mTopicsToBackfill.remove(topic) != null) {
+            Log.d(TAG, "Backfill " + topic + " from " + address.getNetworkId());
+            request(address, topic, Long.MAX_VALUE, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+        }
+    }
+
+    /**
+     * Queue a history request received from a peer. A page of messages is sent to the peer.
+     *
+     * @param request SYNC_REQUEST message
+     * @param address Network address of the peer
+     */
+    public void submitRequest(HeliosMessagePart request, HeliosNetworkAddress address) {
+        mExecutor.execute(() -> {
+            try {
+                HeliosMessagePart response = createResponse(request);
+                if (response != null) {
+                    mSyncManager.sendSyncResponse(response, address);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error handling history request from " + address.getNetworkId() + ": " + e.toString());
+            }
+        });
+    }
+
+    /**
+     * Read the batch of a SYNC_RESPONSE to a pending request.
+     *
+     * @param response SYNC_RESPONSE message
+     * @param address Network address of the peer
+     * @return the messages, or null if there was no request
+     */
+    public List<HeliosMessagePart> readResponse(HeliosMessagePart response, HeliosNetworkAddress address) {
+        String key = getKey(address, response.to);
+        Backfill backfill = mPending.get(key);
+        if (backfill == null) {
+            Log.d(TAG, "Unexpected history from " + address.getNetworkId());
+            return null;
+        }
+        if (isExpired(backfill, mClock.getAsLong())) {
+            Log.d(TAG, "Backfill of " + key + " timed out");
+            mPending.remove(key, backfill);
+            return null;
+        }
+        if (response.mediaFileData == null) {
+            return Collections.emptyList();
+        }
+        return JsonMessageConverter.getInstance().readMessageList(response.mediaFileData);
+    }
+
+    /**
+     * Request the next page after a batch has been merged, if needed.
+     *
+     * @param response SYNC_RESPONSE message
+     * @param address Network address of the peer
+     * @param batch Messages of the response
+     * @param added Number of messages new to us
+     */
+    public void onBatchMerged(HeliosMessagePart response, HeliosNetworkAddress address, List<HeliosMessagePart> batch, int added) {
+        String key = getKey(address, response.to);
+        Backfill backfill = mPending.get(key);
+        if (backfill == null) {
+            return;
+        }
+        backfill.pagesReceived++;
+        long oldest = Long.MAX_VALUE;
+        for (HeliosMessagePart msg : batch) {
+            oldest = Math.min(oldest, msg.getTimestampAsMilliseconds());
+        }
+        // Messages of the oldest millisecond may not all have fit, so they are asked again
+        long cursor = oldest == Long.MAX_VALUE ? oldest : oldest + 1;
+        if (SYNC_HISTORY_END.equals(response.msg) || backfill.pagesReceived >= backfill.maxPages ||
+                (added == 0 && backfill.pagesReceived > 1) ||
+                cursor >= backfill.cursor) {
+            Log.d(TAG, "Backfill of " + key + " done");
+            mPending.remove(key, backfill);
+            return;
+        }
+        backfill.cursor = cursor;
+        sendRequest(address, response.to, backfill);
+    }
+
+    /**
+     * Get the number of pending backfills.
+     *
+     * @return number of backfills waiting for a response
+     */
+    int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Forget pending backfills.
+     */
+    public void reset() {
+        mPending.clear();
+        mTopicsToBackfill.clear();
+    }
+
+    private void sendRequest(HeliosNetworkAddress address, String topic, Backfill backfill) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4);
+        buffer.putLong(backfill.cursor);
+        buffer.putInt(backfill.pageSize);
+        HeliosMessagePart request = createMessage(topic, SYNC_HISTORY, HeliosMessagePart.MessagePartType.SYNC_REQUEST);
+        request.mediaFileData = buffer.array();
+        backfill.requestedAt = mClock.getAsLong();
+        mSyncManager.sendSyncRequest(request, address);
+    }
+
+    private HeliosMessagePart createResponse(HeliosMessagePart request) {
+        HeliosConversation conversation = HeliosConversationList.getInstance().getConversation(request.to);
+        if (conversation == null || request.mediaFileData == null ||
+                (conversation.topic.uuid != null && !conversation.topic.uuid.isEmpty())) {
+            Log.d(TAG, "History request for unknown topic " + request.to);
+            return null;
+        }
+        long beforeMillis;
+        int pageSize;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(request.mediaFileData);
+            beforeMillis = buffer.getLong();
+            pageSize = Math.max(1, Math.min(buffer.getInt(), MAX_PAGE_SIZE));
+        } catch (BufferUnderflowException e) {
+            Log.e(TAG, "Invalid history request");
+            return null;
+        }
+
+        List<HeliosMessagePart> page = conversation.getMessagesBefore(beforeMillis, pageSize);
+        boolean more = page.size() >= pageSize;
+        // Newest first, so that a cut page continues from the cursor
+        JsonMessageConverter converter = JsonMessageConverter.getInstance();
+        ArrayList<HeliosMessagePart> batch = new ArrayList<>();
+        int bytes = 0;
+        for (int i = page.size() - 1; i >= 0; i--) {
+            HeliosMessagePart msg = page.get(i);
+            if (msg.messageType != HeliosMessagePart.MessagePartType.MESSAGE) {
+                continue;
+            }
+            bytes += converter.convertToJson(msg).length();
+            if (bytes > MAX_BATCH_BYTES && !batch.isEmpty()) {
+                more = true;
+                break;
+            }
+            batch.add(msg);
+        }
+
+        HeliosMessagePart response = createMessage(request.to, more ? SYNC_HISTORY : SYNC_HISTORY_END,
+                HeliosMessagePart.MessagePartType.SYNC_RESPONSE);
+        response.mediaFileData = converter.convertMessageListToJson(batch).getBytes(StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private static HeliosMessagePart createMessage(String topic, String type, HeliosMessagePart.MessagePartType messageType) {
+        String timestamp = DateTimeFormatter.ISO_ZONED_DATE_TIME.format(ZonedDateTime.now());
+        return new HeliosMessagePart(type, null, null, topic, timestamp, messageType);
+    }
+
+    private static boolean isExpired(Backfill backfill, long now) {
+        return now - backfill.requestedAt > REQUEST_TIMEOUT;
+    }
+
+    private static String getKey(HeliosNetworkAddress address, String topic) {
+        return address.getNetworkId() + "/" + topic;
+    }
+
+    private static class Backfill {
+        final int pageSize;
+        final int maxPages;
+        volatile int pagesReceived = 0;
+        volatile long cursor;
+        volatile long requestedAt;
+
+        Backfill(int pageSize, int maxPages, long cursor) {
+            this.pageSize = pageSize;
+            this.maxPages = maxPages;
+            this.cursor = cursor;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Singleton per-peer circuit breaker for direct messages. After repeated failed sends to a peer
+ * the circuit opens and further sends fail fast with {@link PeerUnreachableException} instead of
+ * waiting for a dial that will not succeed. A single probe send is let through (half-open) when
+ * the peer is seen online again, see {@link HeartbeatManager}, or after a timeout.
+ */
+public class PeerCircuitBreaker {
+    private static final String TAG = "PeerCircuitBreaker";
+    private static PeerCircuitBreaker sInstance = new PeerCircuitBreaker();
+    private int mFailureThreshold = 3;
+    private long mOpenTimeout = 5 * 60 * 1000; // 5 minutes
+    private long mMinProbeInterval = 30 * 1000; // 30 seconds
+    private final ConcurrentHashMap<String, PeerState> mPeers = new ConcurrentHashMap<>();
+    private final LongSupplier mClock;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static PeerCircuitBreaker getInstance() {
+        return sInstance;
+    }
+
+    public PeerCircuitBreaker() {
+        this(System::currentTimeMillis);
+    }
+
+    PeerCircuitBreaker(LongSupplier clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Check whether a send to the peer should be attempted now. In half-open state only one
+     * probe is allowed at a time.
+     *
+     * @param networkId Network id of the peer (if null, always allowed).
+     * @return true if the send can be attempted.
+     */
+    public boolean allowRequest(String networkId) {
+        if (TextUtils.isEmpty(networkId)) {
+            return true;
+        }
+        PeerState peer = mPeers.get(networkId);
+        if (peer == null) {
+            return true;
+        }
+
+        synchronized (peer) {
+            long now = mClock.getAsLong();
+            if (peer.state == State.OPEN && now - peer.openedAt >= mOpenTimeout) {
+                peer.state = State.HALF_OPEN;
+                peer.probeInFlight = false;
+            }
+
+            switch (peer.state) {
+                case CLOSED:
+                    return true;
+                case HALF_OPEN:
+                    if (!peer.probeInFlight) {
+                        Log.d(TAG, "Probing peer " + networkId);
+                        peer.probeInFlight = true;
+                        return true;
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Run a send to the peer through the breaker: fail fast if the circuit is open, and
+     * record the result otherwise.
+     *
+     * @param networkId Network id of the peer.
+     * @param send Send operation, should throw RuntimeException on failure.
+     * @throws PeerUnreachableException the circuit to the peer is open.
+     */
+    public void call(String networkId, Runnable send) {
+        if (!allowRequest(networkId)) {
+            throw new PeerUnreachableException(networkId);
+        }
+
+        try {
+            send.run();
+        } catch (RuntimeException e) {
+            onFailure(networkId);
+            throw e;
+        }
+        onSuccess(networkId);
+    }
+
+    /**
+     * Record a successful send to the peer. Closes the circuit.
+     *
+     * @param networkId Network id of the peer.
+     */
+    public void onSuccess(String networkId) {
+        if (TextUtils.isEmpty(networkId)) {
+            return;
+        }
+        if (mPeers.remove(networkId) != null) {
+            Log.d(TAG, "Circuit closed to " + networkId);
+        }
+    }
+
+    /**
+     * Record a failed send to the peer. Opens the circuit after repeated failures, or
+     * immediately if a half-open probe failed.
+     *
+     * @param networkId Network id of the peer.
+     */
+    public void onFailure(String networkId) {
+        if (TextUtils.isEmpty(networkId)) {
+            return;
+        }
+        PeerState peer = mPeers.computeIfAbsent(networkId, k -> new PeerState());
+
+        synchronized (peer) {
+            peer.failures++;
+            peer.probeInFlight = false;
+            if (peer.state == State.HALF_OPEN || peer.failures >= mFailureThreshold) {
+                if (peer.state != State.OPEN) {
+                    Log.d(TAG, "Circuit opened to " + networkId + " after " + peer.failures + " failures");
+                }
+                peer.state = State.OPEN;
+                peer.openedAt = mClock.getAsLong();
+            }
+        }
+    }
+
+    /**
+     * The peer has been seen online, e.g., it sent a heartbeat or a status message. If the
+     * circuit is open, it moves to half-open so that the next send is used as a probe.
+     *
+     * @param networkId Network id of the peer.
+     */
+    public void onPresence(String networkId) {
+        if (TextUtils.isEmpty(networkId)) {
+            return;
+        }
+        PeerState peer = mPeers.get(networkId);
+        if (peer == null) {
+            return;
+        }
+
+        synchronized (peer) {
+            if (peer.state == State.OPEN &&
+                    mClock.getAsLong() - peer.openedAt >= mMinProbeInterval) {
+                Log.d(TAG, "Peer " + networkId + " seen, circuit half-open");
+                peer.state = State.HALF_OPEN;
+                peer.probeInFlight = false;
+            }
+        }
+    }
+
+    /**
+     * Get the current state of the circuit to the peer.
+     *
+     * @param networkId Network id of the peer.
+     * @return {@link State}
+     */
+    public State getState(String networkId) {
+        PeerState peer = TextUtils.isEmpty(networkId) ? null : mPeers.get(networkId);
+        if (peer == null) {
+            return State.CLOSED;
+        }
+        synchronized (peer) {
+            return peer.state;
+        }
+    }
+
+    /**
+     * Check if sends to the peer currently fail fast.
+     *
+     * @param networkId Network id of the peer.
+     * @return true if the circuit is open.
+     */
+    public boolean isOpen(String networkId) {
+        PeerState peer = TextUtils.isEmpty(networkId) ? null : mPeers.get(networkId);
+        if (peer == null) {
+            return false;
+        }
+        synchronized (peer) {
+            return peer.state == State.OPEN &&
+                    mClock.getAsLong() - peer.openedAt < mOpenTimeout;
+        }
+    }
+
+    /**
+     * Set the number of consecutive failed sends that opens the circuit.
+     *
+     * @param failures Failure threshold (must be >0)
+     */
+    public void setFailureThreshold(int failures) {
+        if (failures > 0) {
+            mFailureThreshold = failures;
+        } else {
+            Log.d(TAG, "Invalid failure threshold " + failures);
+        }
+    }
+
+    /**
+     * Set the time after which an open circuit lets a probe through even without presence
+     * signals from the peer.
+     *
+     * @param milliseconds Open timeout in milliseconds
+     */
+    public void setOpenTimeout(long milliseconds) {
+        mOpenTimeout = milliseconds;
+    }
+
+    /**
+     * Set the minimum time between a failed send and a probe triggered by presence.
+     *
+     * @param milliseconds Minimum probe interval in milliseconds
+     */
+    public void setMinProbeInterval(long milliseconds) {
+        mMinProbeInterval = milliseconds;
+    }
+
+    /**
+     * Forget all peer states.
+     */
+    public void reset() {
+        mPeers.clear();
+    }
+
+    private static class PeerState {
+        State state = State.CLOSED;
+        int failures = 0;
+        long openedAt = 0;
+        boolean probeInFlight = false;
+    }
+}
@@ -0,0 +1,22 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+/**
+ * Thrown when a direct message is not sent because the circuit to the peer is open, see
+ * {@link PeerCircuitBreaker}.
+ */
+public class PeerUnreachableException extends RuntimeException {
+    private final String networkId;
+
+    public PeerUnreachableException(String networkId) {
+        super("Peer unreachable: " + networkId);
+        this.networkId = networkId;
+    }
+
+    /**
+     * Get the network id of the unreachable peer.
+     * @return network id
+     */
+    public String getNetworkId() {
+        return networkId;
+    }
+}
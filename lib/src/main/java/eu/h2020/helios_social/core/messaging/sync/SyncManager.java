@@ -4,20 +4,20 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
-import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.h2020.helios_social.core.messaging.MessagingConstants;
+import eu.h2020.helios_social.core.messaging.ProtocolRegistry;
 import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
 import eu.h2020.helios_social.core.messaging.data.JsonMessageConverter;
 import eu.h2020.helios_social.core.messaging.db.HeliosMessageStore;
+import eu.h2020.helios_social.core.messaging.db.PendingMessageIndex;
 import eu.h2020.helios_social.core.messaging.HeliosMessagingReceiver;
 import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
 import eu.h2020.helios_social.core.storage.HeliosStorageUtils;
@@ -25,8 +25,9 @@ import eu.h2020.helios_social.core.messaging.nodejs.HeliosMessagingNodejsLibp2p;
 
 /**
  * Singleton manager class that takes care of handling direct message resending to
- * other Helios users. The manager has a list of nodes that needs to be synced and
- * will then try to send direct messages to those nodes.
+ * other Helios users. The manager keeps a sync state for each user (idle, syncing or
+ * backing off after a failure) and sends the undelivered direct messages found in the
+ * {@link PendingMessageIndex} of the message store when the user is seen online.
  */
 public class SyncManager {
     private static final String TAG = "SyncManager";
@@ -48,24 +49,37 @@ public class SyncManager {
      * @param map A hash map of direct message receivers (can be null)
      */
     public void syncDirectMessages(Context context, String uuid, String networkId, HeliosMessageStore store, HashMap<String, HeliosMessagingReceiver> map) {
-        // Are we already syncing messages to this user
-        if (hasNode(uuid)) {
-            Log.d(TAG, "Already syncing to: " + uuid);
+        if (store == null) {
             return;
         }
-        // TODO: Add timestamp or status in order to restart sync if taking too long.
-        boolean added = addNode(uuid);
-        if (!added) {
-            Log.d(TAG, "Unable to add the sender UUID to the sync queue");
+        // Nothing to send to this user, the usual case
+        PendingMessageIndex pending = store.getPendingMessages();
+        if (!pending.hasPending(networkId, uuid)) {
+            return;
+        }
+        // Peer has not answered recently, wait until it is seen again or the circuit times out
+        if (PeerCircuitBreaker.getInstance().isOpen(networkId)) {
+            Log.d(TAG, "Peer unreachable, not syncing to: " + uuid);
+            return;
+        }
+        // Are we already syncing messages to this user, or waiting to retry
+        PeerSync peer = mPeerSyncs.computeIfAbsent(uuid, k -> new PeerSync());
+        if (!peer.start()) {
+            Log.d(TAG, "Already syncing or backing off: " + uuid + " " + peer.state);
             return;
         }
 
-        List<HeliosMessagePart> unsent = getUnsentMessages(store, uuid, networkId, 7);
+        long since = ZonedDateTime.now().minusDays(7).toInstant().toEpochMilli();
+        List<HeliosMessagePart> unsent = pending.getPending(since, networkId, uuid);
+        Log.d(TAG, "syncDirectMessages unsent.size:" + unsent.size());
         if (unsent.size() == 0) {
+            peer.finish(true);
             return;
         }
 
-        startSendingDirectMessages(context, unsent, uuid, networkId, store, map);
+        // Files are sent last, so that they do not delay the pending chat messages.
+        unsent.sort(Comparator.comparing(m -> MessagingConstants.HELIOS_DIRECT_CHAT_FILE_PROTO.equals(m.protocol)));
+        startSendingDirectMessages(context, unsent, peer, networkId, store, map);
     }
 
     /**
@@ -101,89 +115,105 @@ public class SyncManager {
         }).start();
     }
 
-    //
-    // A list of nodes that need to be synchronized and methods manipulating the list
-    //
-
-    private BlockingDeque<String> mSyncNodeQue = new LinkedBlockingDeque<>();
+    /**
+     * Send a request to resend pubsub messages, see {@link HeartbeatManager#createKeyRequest}
+     * and {@link HistoryBackfill}.
+     * @param request SYNC_REQUEST message
+     * @param address Network address of the peer that has the messages
+     */
+    public void sendSyncRequest(HeliosMessagePart request, HeliosNetworkAddress address) {
+        sendSyncMessage(request, address);
+    }
 
-    private boolean hasNode(String uuid) {
-        return mSyncNodeQue.contains(uuid);
+    /**
+     * Send a batch of pubsub messages requested by a peer, see {@link HistoryBackfill}.
+     * @param response SYNC_RESPONSE message
+     * @param address Network address of the peer that requested the messages
+     */
+    public void sendSyncResponse(HeliosMessagePart response, HeliosNetworkAddress address) {
+        sendSyncMessage(response, address);
     }
 
-    private boolean addNode(String uuid) {
-        boolean added = true;
-        try {
-            if (!hasNode(uuid)) {
-                mSyncNodeQue.putLast(uuid);
+    private void sendSyncMessage(HeliosMessagePart msg, HeliosNetworkAddress address) {
+        new Thread(() -> {
+            try {
+                byte[] data = JsonMessageConverter.getInstance().convertToJson(msg).getBytes(StandardCharsets.UTF_8);
+                Log.d(TAG, "Send " + msg.messageType + " " + msg.msg + " to " + address.getNetworkId());
+                sendDirect(address, MessagingConstants.HELIOS_CHAT_SYNC_PROTO, data);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not send " + msg.messageType + " to " + address.getNetworkId() + ": " + e.getMessage());
             }
-        } catch (InterruptedException e) {
-            added = false;
-        }
-        return added;
+        }).start();
     }
 
-    private boolean removeNode(String uuid) {
-        boolean removed = false;
-        if (hasNode(uuid)) {
-            removed = mSyncNodeQue.remove(uuid);
-        }
-        return removed;
-    }
+    //
+    // Sync state of each user, identified by the UUID
+    //
 
-    /**
-     * Get a list of unsent messages to a certain user identified by the UUID
-     *
-     * @param store HeliosMessageStore to query messages
-     * @param uuid The UUID of the message recipient
-     * @param networkId The networkId of the message recipient
-     * @param days Specify how many days old messages will be sent
-     * @return The list of unsent messages
-     */
-    private List<HeliosMessagePart> getUnsentMessages(HeliosMessageStore store, String uuid, String networkId, int days) {
-        List<HeliosMessagePart> unsent = new ArrayList<>();
+    private final ConcurrentHashMap<String, PeerSync> mPeerSyncs = new ConcurrentHashMap<>();
 
-        // This checks all messages from recent days (number of days as a parameter)
-        ZonedDateTime sinceTs = ZonedDateTime.now().minusDays(days);
+    private enum PeerSyncState {
+        IDLE,
+        SYNCING,
+        BACKOFF
+    }
+
+    private static class PeerSync {
+        private static final long MIN_BACKOFF = 30 * 1000; // 30 seconds
+        private static final long MAX_BACKOFF = 10 * 60 * 1000; // 10 minutes
+        PeerSyncState state = PeerSyncState.IDLE;
+        long backoff = 0;
+        long retryAt = 0;
 
-        Log.d(TAG, "getUnsentMessages loadMessages networkId: " + networkId);
-        // Load messages with user's networkId
-        List<HeliosMessagePart> messages = store.loadMessages(networkId, sinceTs.toEpochSecond());
-        for (int i = 0; i < messages.size(); i++) {
-            HeliosMessagePart message = messages.get(i);
-            if (message.to.equals(networkId) && !message.msgReceived) {
-                unsent.add(message);
+        /**
+         * Move to SYNCING state, unless already syncing or backing off.
+         * @return true if the sync can be started.
+         */
+        synchronized boolean start() {
+            if (state == PeerSyncState.SYNCING) {
+                return false;
             }
+            if (state == PeerSyncState.BACKOFF && System.currentTimeMillis() < retryAt) {
+                return false;
+            }
+            state = PeerSyncState.SYNCING;
+            return true;
         }
-        Log.d(TAG, "getUnsentMessages unsent.size:" + unsent.size());
 
-        Log.d(TAG, "getUnsentMessages loadMessages uuid: " + uuid);
-        // Load messages with user's UUID, if stored
-        List<HeliosMessagePart> messages2 = store.loadMessages(uuid, sinceTs.toEpochSecond());
-        for (int i = 0; i < messages2.size(); i++) {
-            HeliosMessagePart message = messages2.get(i);
-            if (message.to.equals(uuid) && !message.msgReceived) {
-                unsent.add(message);
+        /**
+         * Sync finished. After a failure, wait with exponential backoff before trying again.
+         * @param success true if all messages were sent.
+         */
+        synchronized void finish(boolean success) {
+            if (success) {
+                state = PeerSyncState.IDLE;
+                backoff = 0;
+            } else {
+                state = PeerSyncState.BACKOFF;
+                backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+                retryAt = System.currentTimeMillis() + backoff;
             }
         }
-        Log.d(TAG, "getUnsentMessages unsent.size:" + unsent.size());
-        if (unsent.size() == 0) {
-            removeNode(uuid);
-        }
-        return unsent;
     }
 
     /**
-     * Send a message using Helios P2P transport
+     * Send a message using Helios P2P transport. Sends to a peer with an open circuit fail
+     * fast, see {@link PeerCircuitBreaker}.
      * @param addr Network address of the recipient
      * @param proto Protocol that will be used
      * @param data message payload
+     * @throws PeerUnreachableException the circuit to the peer is open.
      */
     private void sendDirect(HeliosNetworkAddress addr, String proto, byte[] data) {
         if (mHeliosMessagingNodejs == null) {
             return;
         }
-        mHeliosMessagingNodejs.getDirectMessaging().sendTo(addr, proto, data);
+        byte[] wireData = ProtocolRegistry.getInstance().interceptSend(addr, proto, data);
+        if (wireData == null) {
+            return;
+        }
+        PeerCircuitBreaker.getInstance().call(addr.getNetworkId(),
+                () -> mHeliosMessagingNodejs.getDirectMessaging().sendTo(addr, proto, wireData));
     }
 
     /**
@@ -198,15 +228,20 @@ public class SyncManager {
             Log.d(TAG, "syncDirectMsgTo sending mediaFile:" + filename);
             // Sending a file. HELIOS_DIRECT_CHAT_FILE_PROTO
             Log.d(TAG, "Sending a file >");
-            try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            try {
                 // TODO FIX a proper way for file sending
-                out.write(filename.getBytes(StandardCharsets.UTF_8));
-                out.write(0);
-                out.write(cacheMediaFileData);
+                // Payload is file name, zero byte and file data, assembled with a single copy.
+                byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+                byte[] payload = new byte[name.length + 1 + cacheMediaFileData.length];
+                System.arraycopy(name, 0, payload, 0, name.length);
+                System.arraycopy(cacheMediaFileData, 0, payload, name.length + 1, cacheMediaFileData.length);
 
                 Log.d(TAG, "syncDirectMsgTo HELIOS_DIRECT_CHAT_FILE_PROTO start");
-                sendDirect(address, MessagingConstants.HELIOS_DIRECT_CHAT_FILE_PROTO, out.toByteArray());
+                sendDirect(address, MessagingConstants.HELIOS_DIRECT_CHAT_FILE_PROTO, payload);
                 Log.d(TAG, "syncDirectMsgTo HELIOS_DIRECT_CHAT_FILE_PROTO end");
+            } catch (PeerUnreachableException e) {
+                // Stop the sync, the message stays unsent
+                throw e;
             } catch (Exception e) {
                 Log.e(TAG, "syncDirectMsgTo Error sending file:" + e.toString());
             }
@@ -220,13 +255,14 @@ public class SyncManager {
      *
      * @param context Application context of the program (getApplicationContext())
      * @param messages List of unsent messages
-     * @param uuid UUID of the recipient
+     * @param peer Sync state of the recipient
      * @param networkId Network address of the recipient
      * @param store HeliosMessageStore to update the message (can be null)
      * @param map A hash map of direct message receivers (can be null)
      */
-    private void startSendingDirectMessages(Context context, List<HeliosMessagePart> messages, String uuid, String networkId, HeliosMessageStore store, HashMap<String, HeliosMessagingReceiver> map) {
+    private void startSendingDirectMessages(Context context, List<HeliosMessagePart> messages, PeerSync peer, String networkId, HeliosMessageStore store, HashMap<String, HeliosMessagingReceiver> map) {
         new Thread(() -> {
+            boolean success = false;
             HeliosNetworkAddress address = new HeliosNetworkAddress();
             address.setNetworkId(networkId);
             try {
@@ -255,9 +291,12 @@ public class SyncManager {
                         syncMsg.msgReceived = true;
                         syncMsg.mediaFileData = null;
 
-                        // Store success to Room storage
+                        // Store success to Room storage. Messages of other protocols to peers
+                        // that ack are delivered only when acked.
                         if (store != null) {
-                            store.setReceivedField(syncMsg.getUuid(), true);
+                            boolean awaitAck = ProtocolRegistry.getInstance().get(syncMsg.protocol).isSynced() &&
+                                    DeliveryAckManager.getInstance().isAckCapable(networkId);
+                            store.recordSendAttempt(syncMsg.getUuid(), true, awaitAck);
                         }
 
                         // Check the internal receivers and notify listener with a HELIOS_SYNC_DM_ACK_PROTO message
@@ -272,11 +311,11 @@ public class SyncManager {
                         Log.e(TAG, "syncDirectMsgTo syncMsg.protocol not defined for msg.uuid: " + syncMsg.uuid);
                     }
                 }
+                success = true;
             } catch (RuntimeException e) {
                 Log.e(TAG, "syncDirectMsgTo Could not resend messages to " + address.getNetworkId() + ": " + e.getMessage());
-                removeNode(uuid);
             } finally {
-                removeNode(uuid);
+                peer.finish(success);
                 Log.d(TAG, "syncDirectMsgTo end send to " + address.getNetworkId());
             }
         }).start();
@@ -0,0 +1,161 @@
+package eu.h2020.helios_social.core.messaging.util;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of reusable byte buffers for message payloads. Buffers are kept in power of two size
+ * classes, so that reading a payload does not need to allocate and copy a growing array for
+ * every message. Payloads are read in bulk, not one byte at a time.
+ *
+ * Only buffers up to 1 MB are pooled, and the pool retains at most a few megabytes in total.
+ * Larger payloads are rare, and keeping their buffers would pin memory for the app lifetime.
+ */
+public class BufferPool {
+    private static final BufferPool sInstance = new BufferPool();
+    private static final int MIN_BUFFER_SHIFT = 13; // 8 kB
+    private static final int MAX_BUFFER_SHIFT = 20; // 1 MB, larger buffers are not pooled
+    private static final int MAX_FREE_PER_CLASS = 4;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 4L * 1024 * 1024;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<byte[]>[] mFree;
+    private final long mMaxRetainedBytes;
+    private long mRetainedBytes = 0;
+
+    /**
+     * Get instance of this class.
+     *
+     * @return {@link BufferPool}
+     */
+    public static BufferPool getInstance() {
+        return sInstance;
+    }
+
+    public BufferPool() {
+        this(DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxRetainedBytes Maximum total size of the free buffers kept in the pool.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long maxRetainedBytes) {
+        mMaxRetainedBytes = maxRetainedBytes;
+        mFree = new ArrayDeque[MAX_BUFFER_SHIFT - MIN_BUFFER_SHIFT + 1];
+        for (int i = 0; i < mFree.length; i++) {
+            mFree[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Acquire a buffer from the pool. The buffer must be closed after use to return it to
+     * the pool.
+     *
+     * @param sizeHint Expected payload size in bytes (may be 0 if not known).
+     * @return {@link PooledBuffer}
+     */
+    public PooledBuffer acquire(int sizeHint) {
+        return new PooledBuffer(this, take(sizeHint));
+    }
+
+    /**
+     * Read the whole input stream into a pooled buffer. The stream is not closed.
+     *
+     * @param input Stream to read.
+     * @param sizeHint Expected payload size in bytes (may be 0 if not known).
+     * @return {@link PooledBuffer} containing the data. Caller must close it.
+     * @throws IOException reading the stream failed.
+     */
+    public PooledBuffer read(InputStream input, int sizeHint) throws IOException {
+        PooledBuffer buffer = acquire(sizeHint);
+        try {
+            buffer.readFrom(input);
+        } catch (IOException | RuntimeException e) {
+            buffer.close();
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Read all data from the file descriptor and close it.
+     *
+     * @param fd File descriptor to read.
+     * @return Data read from the descriptor.
+     * @throws IOException reading the descriptor failed.
+     */
+    public byte[] readAll(FileDescriptor fd) throws IOException {
+        try (FileInputStream input = new FileInputStream(fd);
+             PooledBuffer buffer = read(input, input.available())) {
+            return buffer.toByteArray();
+        }
+    }
+
+    /**
+     * Get the total size of the free buffers kept in the pool.
+     *
+     * @return retained bytes.
+     */
+    public long getRetainedBytes() {
+        synchronized (lock) {
+            return mRetainedBytes;
+        }
+    }
+
+    private byte[] take(int sizeHint) {
+        int shift = sizeClass(sizeHint);
+        if (shift > MAX_BUFFER_SHIFT) {
+            return new byte[sizeHint];
+        }
+
+        synchronized (lock) {
+            byte[] buf = mFree[shift - MIN_BUFFER_SHIFT].poll();
+            if (buf != null) {
+                mRetainedBytes -= buf.length;
+                return buf;
+            }
+        }
+        return new byte[1 << shift];
+    }
+
+    void release(byte[] buf) {
+        int shift = sizeClass(buf.length);
+        if (shift > MAX_BUFFER_SHIFT || buf.length != (1 << shift)) {
+            // Not a pooled size, let GC take it.
+            return;
+        }
+
+        synchronized (lock) {
+            ArrayDeque<byte[]> free = mFree[shift - MIN_BUFFER_SHIFT];
+            if (free.size() < MAX_FREE_PER_CLASS &&
+                    mRetainedBytes + buf.length <= mMaxRetainedBytes) {
+                free.push(buf);
+                mRetainedBytes += buf.length;
+            }
+        }
+    }
+
+    byte[] grow(byte[] buf, int minCapacity) {
+        int newSize = Math.max(buf.length * 2, minCapacity);
+        if (newSize < 0) {
+            throw new OutOfMemoryError("Payload too large");
+        }
+        byte[] bigger = take(newSize);
+        System.arraycopy(buf, 0, bigger, 0, buf.length);
+        release(buf);
+        return bigger;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_BUFFER_SHIFT)) {
+            return MIN_BUFFER_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
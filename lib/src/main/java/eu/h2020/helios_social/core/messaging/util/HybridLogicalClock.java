@@ -0,0 +1,79 @@
+package eu.h2020.helios_social.core.messaging.util;
+
+/**
+ * Hybrid logical clock for ordering messages. A time stamp is a long with the physical time in
+ * epoch milliseconds in the high bits and a logical counter in the low 16 bits, so time stamps
+ * compare as plain longs.
+ *
+ * Time stamps of the clock always increase, also if the wall clock is set back, and a time
+ * stamp given after receiving a message is larger than the time stamp of the message. So a
+ * reply is ordered after the message it replies to, even if the clock of the device is behind.
+ * Time stamps of peers that are ahead of the wall clock by more than {@link #MAX_DRIFT} are
+ * not followed, so that one device with a wrong clock cannot move the clocks of all others.
+ */
+public class HybridLogicalClock {
+    private static final HybridLogicalClock sInstance = new HybridLogicalClock();
+    private static final int LOGICAL_BITS = 16;
+    public static final long MAX_DRIFT = 60 * 60 * 1000; // 1 hour
+
+    private long mLast = 0;
+
+    /**
+     * Get instance of this class.
+     *
+     * @return {@link HybridLogicalClock}
+     */
+    public static HybridLogicalClock getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Get a time stamp for a message to send.
+     *
+     * @return time stamp larger than any given before
+     */
+    public synchronized long now() {
+        long physical = fromMillis(System.currentTimeMillis());
+        // The counter carries over to the milliseconds if it overflows
+        mLast = physical > mLast ? physical : mLast + 1;
+        return mLast;
+    }
+
+    /**
+     * Update the clock with the time stamp of a received message.
+     *
+     * @param remote Time stamp of the message
+     * @return time stamp larger than the time stamp of the message, unless it is too far ahead
+     */
+    public synchronized long update(long remote) {
+        long millis = System.currentTimeMillis();
+        long physical = fromMillis(millis);
+        long latest = mLast;
+        if (toMillis(remote) - millis <= MAX_DRIFT) {
+            latest = Math.max(latest, remote);
+        }
+        mLast = physical > latest ? physical : latest + 1;
+        return mLast;
+    }
+
+    /**
+     * Get the time stamp of the start of given millisecond, e.g., to order messages without a
+     * clock time stamp by their wall clock time.
+     *
+     * @param millis Epoch milliseconds
+     * @return time stamp
+     */
+    public static long fromMillis(long millis) {
+        return millis << LOGICAL_BITS;
+    }
+
+    /**
+     * Get the physical time of a time stamp.
+     *
+     * @param timestamp Time stamp
+     * @return epoch milliseconds
+     */
+    public static long toMillis(long timestamp) {
+        return timestamp >> LOGICAL_BITS;
+    }
+}
@@ -0,0 +1,330 @@
+package eu.h2020.helios_social.core.messaging.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor that runs tasks in serial lanes, typically one lane per peer. Tasks submitted to the
+ * same lane are run one at a time in FIFO order, while different lanes run concurrently up to
+ * a fixed number of lanes. Lanes with pending work are served round-robin, one task at a time,
+ * so that a slow or unreachable peer cannot hog all the workers.
+ *
+ * Tasks can be given a coalescing key: if a task with the same key is still queued in the
+ * lane, the new task is shed and the future of the queued task is returned instead.
+ */
+public class PeerLaneExecutor {
+    private final Object lock = new Object();
+    private final HashMap<String, Lane> mLanes = new HashMap<>();
+    private final ArrayDeque<Lane> mReadyLanes = new ArrayDeque<>();
+    private final ExecutorService mExecutor;
+    private final int mMaxConcurrentLanes;
+    private final Semaphore mQueueSlots;
+    private int mActiveLanes = 0;
+    private int mQueuedTasks = 0;
+    private boolean mShutdown = false;
+    private final AtomicLong mShedCount = new AtomicLong();
+
+    /**
+     * Constructor for an executor with unbounded lane queues.
+     *
+     * @param name Name prefix for the worker threads.
+     * @param maxConcurrentLanes Maximum number of lanes (peers) served at the same time.
+     */
+    public PeerLaneExecutor(String name, int maxConcurrentLanes) {
+        this(name, maxConcurrentLanes, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name Name prefix for the worker threads.
+     * @param maxConcurrentLanes Maximum number of lanes (peers) served at the same time.
+     * @param maxQueuedTasks Maximum number of queued and running tasks in all lanes, or 0 for
+     *                       no limit. When the limit is reached, submit blocks until a task
+     *                       has finished.
+     */
+    public PeerLaneExecutor(String name, int maxConcurrentLanes, int maxQueuedTasks) {
+        if (maxConcurrentLanes < 1) {
+            throw new IllegalArgumentException("maxConcurrentLanes must be positive");
+        }
+        mMaxConcurrentLanes = maxConcurrentLanes;
+        mQueueSlots = maxQueuedTasks > 0 ? new Semaphore(maxQueuedTasks) : null;
+        mExecutor = Executors.newFixedThreadPool(maxConcurrentLanes, new LaneThreadFactory(name));
+    }
+
+    /**
+     * Submit a task to a lane. Tasks with the same lane key are run in submission order and
+     * never concurrently with each other. If the executor is bounded and full, this call
+     * blocks until there is room.
+     *
+     * @param laneKey Key of the lane, e.g., network id of the peer. If null, the task gets a
+     *                lane of its own and is not ordered against any other task.
+     * @param task Task to run.
+     * @return Future of the task result.
+     */
+    public <T> Future<T> submit(String laneKey, Callable<T> task) {
+        return submit(laneKey, null, task);
+    }
+
+    /**
+     * Submit a task to a lane, coalescing it with a queued task of the same key. Tasks with
+     * the same lane key are run in submission order and never concurrently with each other.
+     *
+     * @param laneKey Key of the lane, e.g., network id of the peer. If null, the task gets a
+     *                lane of its own and is not ordered against any other task.
+     * @param coalesceKey If a task with this key is queued and not yet started in the lane,
+     *                    this task is dropped. If null, the task is never dropped.
+     * @param task Task to run.
+     * @return Future of the task result, or of the queued task this task was coalesced with.
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> submit(String laneKey, String coalesceKey, Callable<T> task) {
+        if (coalesceKey != null && laneKey != null) {
+            // Do not wait for room if the task is coalesced anyway
+            synchronized (lock) {
+                FutureTask<?> queued = findCoalescedLocked(laneKey, coalesceKey);
+                if (queued != null) {
+                    mShedCount.incrementAndGet();
+                    return (Future<T>) queued;
+                }
+            }
+        }
+
+        if (mQueueSlots != null) {
+            mQueueSlots.acquireUninterruptibly();
+        }
+        synchronized (lock) {
+            return enqueueLocked(laneKey, coalesceKey, task);
+        }
+    }
+
+    /**
+     * Submit a task to a lane unless too many tasks are already queued. Unlike
+     * {@link #submit(String, Callable)}, this never blocks, the task is shed instead.
+     *
+     * @param laneKey Key of the lane, e.g., network id of the peer.
+     * @param maxQueuedTasks Maximum number of tasks queued in all lanes.
+     * @param task Task to run.
+     * @return Future of the task result, or null if the task was shed.
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public <T> Future<T> trySubmit(String laneKey, int maxQueuedTasks, Callable<T> task) {
+        if (mQueueSlots != null && !mQueueSlots.tryAcquire()) {
+            mShedCount.incrementAndGet();
+            return null;
+        }
+        synchronized (lock) {
+            if (mQueuedTasks >= maxQueuedTasks) {
+                releaseSlot();
+                mShedCount.incrementAndGet();
+                return null;
+            }
+            return enqueueLocked(laneKey, null, task);
+        }
+    }
+
+    /**
+     * Queue a task to its lane. Must be called holding the lock, after a queue slot has been
+     * acquired. The slot is released if the task is not queued.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Future<T> enqueueLocked(String laneKey, String coalesceKey, Callable<T> task) {
+        if (mShutdown) {
+            releaseSlot();
+            throw new RejectedExecutionException("PeerLaneExecutor has been shut down");
+        }
+        if (coalesceKey != null && laneKey != null) {
+            // Checked again, a task with the same key may have been queued while waiting
+            FutureTask<?> queued = findCoalescedLocked(laneKey, coalesceKey);
+            if (queued != null) {
+                releaseSlot();
+                mShedCount.incrementAndGet();
+                return (Future<T>) queued;
+            }
+        }
+
+        LaneTask<T> future = new LaneTask<>(task, coalesceKey);
+        Lane lane = laneKey == null ? null : mLanes.get(laneKey);
+        if (lane == null) {
+            lane = new Lane(laneKey);
+            if (laneKey != null) {
+                mLanes.put(laneKey, lane);
+            }
+        }
+        lane.tasks.add(future);
+        mQueuedTasks++;
+        if (coalesceKey != null) {
+            lane.coalesced.put(coalesceKey, future);
+        }
+        if (!lane.scheduled) {
+            lane.scheduled = true;
+            mReadyLanes.add(lane);
+        }
+        dispatchLocked();
+        return future;
+    }
+
+    private FutureTask<?> findCoalescedLocked(String laneKey, String coalesceKey) {
+        Lane lane = mLanes.get(laneKey);
+        return lane == null ? null : lane.coalesced.get(coalesceKey);
+    }
+
+    private void releaseSlot() {
+        if (mQueueSlots != null) {
+            mQueueSlots.release();
+        }
+    }
+
+    /**
+     * Get the number of lanes that currently have queued or running tasks.
+     *
+     * @return number of busy lanes.
+     */
+    public int getBusyLaneCount() {
+        synchronized (lock) {
+            return mActiveLanes + mReadyLanes.size();
+        }
+    }
+
+    /**
+     * Get the number of tasks that are queued and not yet started.
+     *
+     * @return queue depth.
+     */
+    public int getQueuedTaskCount() {
+        synchronized (lock) {
+            return mQueuedTasks;
+        }
+    }
+
+    /**
+     * Get the number of tasks that were dropped because they were coalesced with a queued
+     * task.
+     *
+     * @return number of shed tasks.
+     */
+    public long getShedCount() {
+        return mShedCount.get();
+    }
+
+    /**
+     * Stop accepting new work. Already queued tasks are cancelled, running tasks are let to
+     * finish. Submitting after this throws {@link RejectedExecutionException}.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            mShutdown = true;
+            // Lanes with a running task are not ready, but are still mapped by their key
+            cancelQueuedLocked(mReadyLanes);
+            cancelQueuedLocked(mLanes.values());
+            mReadyLanes.clear();
+            mLanes.clear();
+        }
+        mExecutor.shutdown();
+    }
+
+    private void cancelQueuedLocked(Iterable<Lane> lanes) {
+        for (Lane lane : lanes) {
+            for (FutureTask<?> task : lane.tasks) {
+                task.cancel(false);
+            }
+            mQueuedTasks -= lane.tasks.size();
+            if (mQueueSlots != null) {
+                mQueueSlots.release(lane.tasks.size());
+            }
+            lane.tasks.clear();
+            lane.coalesced.clear();
+        }
+    }
+
+    private void dispatchLocked() {
+        while (!mShutdown && mActiveLanes < mMaxConcurrentLanes && !mReadyLanes.isEmpty()) {
+            Lane lane = mReadyLanes.poll();
+            mActiveLanes++;
+            mExecutor.execute(() -> runNext(lane));
+        }
+    }
+
+    private void runNext(Lane lane) {
+        LaneTask<?> task;
+        synchronized (lock) {
+            task = lane.tasks.poll();
+            if (task != null) {
+                mQueuedTasks--;
+                // Started, later tasks with the same key are not coalesced with it
+                if (task.coalesceKey != null) {
+                    lane.coalesced.remove(task.coalesceKey, task);
+                }
+            }
+        }
+
+        try {
+            if (task != null) {
+                // FutureTask stores any exception for the caller.
+                task.run();
+            }
+        } finally {
+            if (task != null) {
+                releaseSlot();
+            }
+            synchronized (lock) {
+                mActiveLanes--;
+                if (lane.tasks.isEmpty() || mShutdown) {
+                    lane.scheduled = false;
+                    if (lane.key != null && mLanes.get(lane.key) == lane) {
+                        mLanes.remove(lane.key);
+                    }
+                } else {
+                    // Back of the queue, so that other lanes get their turn first.
+                    mReadyLanes.add(lane);
+                }
+                dispatchLocked();
+            }
+        }
+    }
+
+    private static class Lane {
+        final String key;
+        final ArrayDeque<LaneTask<?>> tasks = new ArrayDeque<>();
+        final HashMap<String, LaneTask<?>> coalesced = new HashMap<>();
+        boolean scheduled = false;
+
+        Lane(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class LaneTask<T> extends FutureTask<T> {
+        final String coalesceKey;
+
+        LaneTask(Callable<T> task, String coalesceKey) {
+            super(task);
+            this.coalesceKey = coalesceKey;
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        LaneThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mName + "-" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package eu.h2020.helios_social.core.messaging.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer borrowed from {@link BufferPool}. The data can be handed to decoders
+ * without copying via {@link #getBuffer()} and {@link #size()} or {@link #asInputStream()}.
+ * Closing the buffer returns the backing array to the pool, after which it must not be used.
+ */
+public class PooledBuffer extends OutputStream {
+    private final BufferPool mPool;
+    private byte[] mBuf;
+    private int mCount = 0;
+
+    PooledBuffer(BufferPool pool, byte[] buf) {
+        mPool = pool;
+        mBuf = buf;
+    }
+
+    /**
+     * Read the input stream until end of stream, appending to this buffer.
+     *
+     * @param input Stream to read.
+     * @return Number of bytes read.
+     * @throws IOException reading failed.
+     */
+    public int readFrom(InputStream input) throws IOException {
+        int total = 0;
+        while (true) {
+            if (mCount == mBuf.length) {
+                mBuf = mPool.grow(mBuf, mCount + 1);
+            }
+            int n = input.read(mBuf, mCount, mBuf.length - mCount);
+            if (n < 0) {
+                return total;
+            }
+            mCount += n;
+            total += n;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mCount + 1);
+        mBuf[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuf, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * Get the backing array. Only the first {@link #size()} bytes are valid.
+     *
+     * @return backing array
+     */
+    public byte[] getBuffer() {
+        return mBuf;
+    }
+
+    /**
+     * Get the number of valid bytes in the buffer.
+     *
+     * @return size in bytes
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Get an input stream over the valid bytes without copying them.
+     *
+     * @return InputStream
+     */
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(mBuf, 0, mCount);
+    }
+
+    /**
+     * Copy the valid bytes into a new array of exact size.
+     *
+     * @return data
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuf, mCount);
+    }
+
+    /**
+     * Return the backing array to the pool.
+     */
+    @Override
+    public void close() {
+        if (mBuf != null) {
+            mPool.release(mBuf);
+            mBuf = null;
+            mCount = 0;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuf.length) {
+            mBuf = mPool.grow(mBuf, capacity);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package eu.h2020.helios_social.core.messaging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import eu.h2020.helios_social.core.messaging.util.BufferPool;
+import eu.h2020.helios_social.core.messaging.util.PooledBuffer;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void readLargePayloadTest() throws Exception {
+        byte[] payload = new byte[5 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(payload);
+
+        BufferPool pool = new BufferPool();
+        // Hint is too small on purpose, buffer must grow
+        try (PooledBuffer buffer = pool.read(new ByteArrayInputStream(payload), 100)) {
+            assertEquals(payload.length, buffer.size());
+            assertTrue(Arrays.equals(payload, buffer.toByteArray()));
+        }
+    }
+
+    @Test
+    public void buffersAreReusedTest() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] first;
+        try (PooledBuffer buffer = pool.acquire(1000)) {
+            first = buffer.getBuffer();
+        }
+        try (PooledBuffer buffer = pool.acquire(2000)) {
+            assertTrue(first == buffer.getBuffer());
+            buffer.write(new byte[]{1, 2, 3}, 0, 3);
+            assertEquals(3, buffer.size());
+        }
+    }
+
+    @Test
+    public void retainedBytesAreCappedTest() throws Exception {
+        BufferPool pool = new BufferPool();
+        List<PooledBuffer> buffers = new ArrayList<>();
+        for (int size = 1024; size <= 8 * 1024 * 1024; size *= 2) {
+            for (int i = 0; i < 4; i++) {
+                buffers.add(pool.acquire(size));
+            }
+        }
+        for (PooledBuffer buffer : buffers) {
+            buffer.close();
+        }
+        assertTrue(pool.getRetainedBytes() > 0);
+        assertTrue(pool.getRetainedBytes() <= BufferPool.DEFAULT_MAX_RETAINED_BYTES);
+
+        // Buffers taken from the pool are no longer counted
+        try (PooledBuffer buffer = pool.acquire(1000)) {
+            assertEquals(0, buffer.size());
+        }
+        long retained = pool.getRetainedBytes();
+        pool.acquire(1024 * 1024).close();
+        assertEquals(retained, pool.getRetainedBytes());
+    }
+}
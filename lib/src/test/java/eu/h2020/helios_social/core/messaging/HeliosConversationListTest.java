@@ -12,13 +12,18 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import eu.h2020.helios_social.core.messaging.data.HeliosConversation;
 import eu.h2020.helios_social.core.messaging.data.HeliosConversationList;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessageHistory;
 import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
 import eu.h2020.helios_social.core.messaging.data.HeliosTopicContext;
 
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
 import static junit.framework.TestCase.assertTrue;
 
 @RunWith(PowerMockRunner.class)
@@ -63,6 +68,184 @@ public class HeliosConversationListTest {
         assertTrue(convs.size() == 2);
     }
 
+    @Test
+    public void conversationLookupTest() {
+        HeliosConversation conv1 = new HeliosConversation();
+        conv1.topic.topic = "CONVERSATION1";
+        HeliosConversation conv2 = new HeliosConversation();
+        conv2.topic.topic = "CONVERSATION2";
+        conv2.topic.uuid = "uuid2";
+
+        HeliosConversationList conversations = new HeliosConversationList();
+        conversations.addConversation(conv1);
+        conversations.addConversation(conv2);
+
+        assertTrue(conversations.getConversation("CONVERSATION1") == conv1);
+        assertTrue(conversations.getConversationByTopicUUID("uuid2") == conv2);
+        assertNull(conversations.getConversationByTopicUUID(null));
+
+        conversations.renameConversation(conv2, "renamed");
+        assertNull(conversations.getConversation("CONVERSATION2"));
+        assertTrue(conversations.getConversation("renamed") == conv2);
+
+        // Unknown names and conversations without a name are not found
+        assertNull(conversations.getConversation("unknown"));
+        HeliosConversation unnamed = new HeliosConversation();
+        unnamed.topic.topic = null;
+        conversations.addConversation(unnamed);
+        assertNull(conversations.getConversation("unknown"));
+
+        // The first conversation of a name is found, the next one when it is gone
+        HeliosConversation conv3 = new HeliosConversation();
+        conv3.topic.topic = "renamed";
+        conv3.topic.uuid = "uuid3";
+        conversations.addConversation(conv3);
+        assertTrue(conversations.getConversation("renamed") == conv2);
+        assertTrue(conversations.deleteConversationByTopicUUID("uuid2"));
+        assertNull(conversations.getConversationByTopicUUID("uuid2"));
+        assertTrue(conversations.getConversation("renamed") == conv3);
+        assertFalse(conversations.deleteConversationByTopicUUID("uuid2"));
+
+        conversations.renameConversation(conv3, "CONVERSATION3");
+        assertNull(conversations.getConversation("renamed"));
+        assertTrue(conversations.getConversation("CONVERSATION3") == conv3);
+        assertTrue(conversations.getConversationByTopicUUID("uuid3") == conv3);
+        assertEquals(3, conversations.getSnapshot().getConversations().size());
+    }
+
+    @Test
+    public void snapshotTest() {
+        HeliosConversationList conversations = new HeliosConversationList();
+        HeliosConversation conv1 = new HeliosConversation();
+        conv1.topic.topic = "CONVERSATION1";
+        conversations.addConversation(conv1);
+        conv1.addMessage(conv1TestMsg1);
+
+        // Later changes do not show in a snapshot
+        HeliosConversationList.Snapshot snapshot = conversations.getSnapshot();
+        HeliosConversation.MessageSnapshot messages = conv1.getSnapshot();
+        HeliosConversation conv2 = new HeliosConversation();
+        conv2.topic.topic = "CONVERSATION2";
+        conversations.addConversation(conv2);
+        conv1.addMessage(conv1TestMsg2);
+        assertEquals(1, snapshot.getConversations().size());
+        assertEquals(1, snapshot.getTopics().size());
+        assertEquals(1, messages.getMessages().size());
+
+        HeliosConversationList.Snapshot newer = conversations.getSnapshot();
+        assertTrue(newer.getVersion() > snapshot.getVersion());
+        assertEquals(2, newer.getConversations().size());
+        assertEquals(2, conv1.getSnapshot().getMessages().size());
+
+        // Unchanged messages are not copied again
+        assertTrue(conv1.getSnapshot() == conv1.getSnapshot());
+        try {
+            conv1.getSnapshot().getMessages().clear();
+            assertTrue(false);
+        } catch (UnsupportedOperationException e) {
+            assertEquals(2, conv1.messages.size());
+        }
+    }
+
+    @Test
+    public void memoryBudgetTest() {
+        TestHistory history = new TestHistory();
+        HeliosConversationList conversations = new HeliosConversationList();
+        HeliosConversation conv1 = new HeliosConversation();
+        conv1.topic.topic = "CONVERSATION1";
+        HeliosConversation conv2 = new HeliosConversation();
+        conv2.topic.topic = "CONVERSATION2";
+        HeliosConversation direct = new HeliosConversation();
+        direct.topic.topic = "DIRECT";
+        direct.topic.uuid = "uuid";
+        conversations.addConversation(conv1);
+        conversations.addConversation(conv2);
+        conversations.addConversation(direct);
+
+        ZonedDateTime start = ZonedDateTime.now().minusHours(1);
+        List<HeliosMessagePart> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            HeliosMessagePart msg = new HeliosMessagePart("msg" + i, "sender",
+                    UUID.randomUUID().toString(), "CONVERSATION1", start.plusMinutes(i).toString());
+            sent.add(msg);
+            conversations.getConversation("CONVERSATION1").addMessage(msg);
+            history.messages.add(msg);
+            direct.addMessage(new HeliosMessagePart(msg));
+        }
+        long size = conv1.getResidentBytes();
+        conversations.setMemoryBudget(history, size + direct.getResidentBytes());
+        assertFalse(conv1.isEvicted());
+
+        // Using another conversation evicts the least recently used one
+        HeliosMessagePart other = new HeliosMessagePart("other", "sender",
+                UUID.randomUUID().toString(), "CONVERSATION2", start.toString());
+        conversations.getConversation("CONVERSATION2").addMessage(other);
+        history.messages.add(other);
+        conversations.getConversation("CONVERSATION2");
+        assertTrue(conv1.isEvicted());
+        assertFalse(direct.isEvicted());
+        assertEquals(0, conv1.messages.size());
+        assertEquals(conv2.getResidentBytes() + direct.getResidentBytes(), conversations.getResidentBytes());
+        assertEquals(5, conv1.getMessageCount());
+        assertEquals("msg4", conv1.getLatestMessage().msg);
+        assertTrue(conv1.isEvicted());
+        assertEquals(5, conv1.getMessagesAfter(0).size());
+        assertTrue(conv1.isEvicted());
+
+        // Reloaded when looked up, e.g., to be shown
+        List<HeliosMessagePart> shown = conversations.getConversation("CONVERSATION1").getSnapshot().getMessages();
+        assertFalse(conv1.isEvicted());
+        assertTrue(conv2.isEvicted());
+        assertEquals(5, shown.size());
+        assertEquals("msg0", shown.get(0).msg);
+        assertEquals(5, conv1.messages.size());
+        assertTrue(conversations.getResidentBytes() <= size + direct.getResidentBytes());
+
+        // Known messages are still duplicates
+        assertFalse(conv1.addMessage(new HeliosMessagePart(sent.get(1))));
+
+        // The snapshot of an evicted conversation is reloaded as well
+        assertEquals(1, conv2.getSnapshot().getMessages().size());
+        assertFalse(conv2.isEvicted());
+        assertTrue(conv1.isEvicted());
+    }
+
+    private static class TestHistory implements HeliosMessageHistory {
+        final List<HeliosMessagePart> messages = new ArrayList<>();
+
+        @Override
+        public List<HeliosMessagePart> loadMessages(String topic, long sinceMillis) {
+            List<HeliosMessagePart> result = new ArrayList<>();
+            for (HeliosMessagePart msg : messages) {
+                if (topic.equals(msg.to) && msg.getTimestampAsMilliseconds() > sinceMillis) {
+                    result.add(new HeliosMessagePart(msg));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public List<HeliosMessagePart> loadMessagesBefore(String topic, long beforeMillis, int limit) {
+            List<HeliosMessagePart> result = new ArrayList<>();
+            for (HeliosMessagePart msg : messages) {
+                if (topic.equals(msg.to) && msg.getTimestampAsMilliseconds() < beforeMillis) {
+                    result.add(new HeliosMessagePart(msg));
+                }
+            }
+            return new ArrayList<>(result.subList(Math.max(0, result.size() - limit), result.size()));
+        }
+
+        @Override
+        public boolean hasMessage(String uuid) {
+            for (HeliosMessagePart msg : messages) {
+                if (msg.uuid.equals(uuid)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     @After
     public void tearDown() {
 
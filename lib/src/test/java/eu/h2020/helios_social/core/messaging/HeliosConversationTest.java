@@ -11,12 +11,19 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 
 import eu.h2020.helios_social.core.messaging.data.HeliosConversation;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessageHistory;
 import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+import eu.h2020.helios_social.core.messaging.data.SequenceTracker;
+import eu.h2020.helios_social.core.messaging.util.HybridLogicalClock;
 
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
 
 @RunWith(PowerMockRunner.class)
@@ -67,6 +74,273 @@ public class HeliosConversationTest {
         assertTrue(!testMsg1.msgReceived);
     }
 
+    @Test
+    public void addMessageOrderTest() {
+        HeliosConversation conversation = new HeliosConversation();
+        ZonedDateTime now = ZonedDateTime.now();
+        int[] offsets = {0, 5, 10, 3, 10, -2, 7};
+        for (int i = 0; i < offsets.length; i++) {
+            HeliosMessagePart msg = new HeliosMessagePart("msg" + i, "sender",
+                    UUID.randomUUID().toString(), "receiver", now.plusSeconds(offsets[i]).toString());
+            assertTrue(conversation.addMessage(msg));
+            // Duplicate UUID is not added
+            assertTrue(!conversation.addMessage(new HeliosMessagePart(msg)));
+        }
+
+        assertEquals(offsets.length, conversation.messages.size());
+        String[] expected = {"msg5", "msg0", "msg3", "msg1", "msg6", "msg2", "msg4"};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], conversation.messages.get(i).msg);
+        }
+
+        // Index follows a replaced message list
+        HeliosMessagePart first = conversation.messages.get(0);
+        conversation.messages = new ArrayList<>(conversation.messages);
+        assertTrue(!conversation.addMessage(new HeliosMessagePart(first)));
+        conversation.setMessageReceivedValue(first.uuid, true);
+        assertTrue(conversation.messages.get(0).msgReceived);
+    }
+
+    @Test
+    public void joinMessagesTest() {
+        HeliosConversation conversation = new HeliosConversation();
+        ZonedDateTime start = ZonedDateTime.now().minusHours(1);
+        ArrayList<HeliosMessagePart> cached = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            HeliosMessagePart msg = new HeliosMessagePart("msg" + i, "sender",
+                    UUID.randomUUID().toString(), "receiver", start.plusMinutes(i).toString());
+            if (i % 2 == 0) {
+                cached.add(msg);
+            } else {
+                conversation.addMessage(msg);
+            }
+        }
+        // Duplicates within the list and in the conversation are not added
+        cached.add(new HeliosMessagePart(cached.get(0)));
+        cached.add(new HeliosMessagePart(conversation.messages.get(0)));
+
+        assertEquals(3, conversation.joinAndCountMessages(cached, HeliosConversation.JoinLocation.PREPEND));
+        assertEquals(5, cached.size());
+        assertEquals(6, conversation.messages.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals("msg" + i, conversation.messages.get(i).msg);
+        }
+        conversation.joinMessages(cached, HeliosConversation.JoinLocation.APPEND);
+        assertEquals(6, conversation.messages.size());
+
+        HeliosMessagePart newer = new HeliosMessagePart("msg6", "sender",
+                UUID.randomUUID().toString(), "receiver", start.plusMinutes(6).toString());
+        List<HeliosMessagePart> added = conversation.addMessages(Arrays.asList(cached.get(1), newer));
+        assertEquals(1, added.size());
+        assertTrue(added.get(0) == newer);
+        assertEquals("msg6", conversation.messages.get(6).msg);
+    }
+
+    @Test
+    public void messageBloomTest() {
+        HeliosConversation conversation = new HeliosConversation();
+        ZonedDateTime now = ZonedDateTime.now();
+        HeliosMessagePart old = new HeliosMessagePart("old", "sender",
+                UUID.randomUUID().toString(), "receiver", now.minusHours(3).toString());
+        conversation.addMessage(old);
+        for (int i = 0; i < 200; i++) {
+            conversation.addMessage(new HeliosMessagePart("msg" + i, "sender",
+                    UUID.randomUUID().toString(), "receiver", now.minusMinutes(30).plusSeconds(i).toString()));
+        }
+
+        // Cached until messages are added
+        byte[] digest = conversation.formatBloom(now.minusHours(1));
+        assertTrue(digest == conversation.formatBloom(now.minusHours(1)));
+        assertTrue(!HeliosConversation.parseBloom(digest).mightContain(old.uuid));
+        assertTrue(HeliosConversation.parseBloom(digest).mightContain(conversation.messages.get(200).uuid));
+
+        // Added messages are in the digest, also when it grows
+        HeliosMessagePart newest = new HeliosMessagePart("newest", "sender",
+                UUID.randomUUID().toString(), "receiver", now.toString());
+        conversation.addMessage(newest);
+        for (int i = 0; i < 300; i++) {
+            conversation.addMessage(new HeliosMessagePart("more" + i, "sender",
+                    UUID.randomUUID().toString(), "receiver", now.plusSeconds(i).toString()));
+        }
+        byte[] updated = conversation.formatBloom(now.minusHours(1));
+        assertTrue(digest != updated);
+        assertTrue(HeliosConversation.parseBloom(updated).mightContain(newest.uuid));
+        assertTrue(HeliosConversation.parseBloom(updated).expectedFpp() < 0.01);
+
+        // A longer window includes older messages
+        assertTrue(conversation.getMessageBloom(now.minusHours(4)).mightContain(old.uuid));
+    }
+
+    @Test
+    public void windowedConversationTest() {
+        TestHistory history = new TestHistory();
+        HeliosConversation conversation = new HeliosConversation();
+        conversation.topic.topic = "topic";
+        conversation.setWindow(history, 3, 0);
+
+        ZonedDateTime start = ZonedDateTime.now().minusHours(1);
+        List<HeliosMessagePart> all = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            HeliosMessagePart msg = new HeliosMessagePart("msg" + i, "sender",
+                    UUID.randomUUID().toString(), "topic", start.plusMinutes(i).toString());
+            all.add(msg);
+            assertTrue(conversation.addMessage(msg));
+            history.messages.add(msg);
+        }
+
+        // Only the newest messages are in memory
+        assertEquals(3, conversation.messages.size());
+        assertEquals("msg7", conversation.messages.get(0).msg);
+        assertTrue(conversation.isTrimmed());
+
+        // Dropped messages are still duplicates
+        assertTrue(!conversation.addMessage(new HeliosMessagePart(all.get(2))));
+
+        // Sync reads the dropped messages from the history
+        assertEquals(10, conversation.getMessagesAfter(0).size());
+        assertTrue(conversation.getMessageBloom(start.minusMinutes(1)).mightContain(all.get(0).uuid));
+
+        // Paging backwards
+        List<HeliosMessagePart> page = conversation.getMessagesBefore(Long.MAX_VALUE, 5);
+        assertEquals(5, page.size());
+        assertEquals("msg5", page.get(0).msg);
+        assertEquals("msg9", page.get(4).msg);
+        page = conversation.getMessagesBefore(page.get(0).getTimestampAsMilliseconds(), 5);
+        assertEquals("msg0", page.get(0).msg);
+        assertEquals("msg4", page.get(4).msg);
+    }
+
+    @Test
+    public void skewedPagingTest() {
+        HeliosConversation conversation = new HeliosConversation();
+        conversation.topic.topic = "topic";
+        TestHistory history = new TestHistory();
+        conversation.setWindow(history, 3, 0);
+
+        // The newest message by time stamp is ordered first by the clock of its sender
+        ZonedDateTime start = ZonedDateTime.now().minusHours(1);
+        for (int i = 0; i < 6; i++) {
+            HeliosMessagePart msg = new HeliosMessagePart("msg" + i, "sender",
+                    UUID.randomUUID().toString(), "topic", start.plusMinutes(i).toString());
+            msg.hlc = i == 5 ? 1L : 10L + i;
+            assertTrue(conversation.addMessage(msg));
+            history.messages.add(msg);
+        }
+        assertEquals("msg2", conversation.messages.get(0).msg);
+
+        // Pages are cut by time stamp, also from the messages dropped from memory
+        List<HeliosMessagePart> page = conversation.getMessagesBefore(Long.MAX_VALUE, 3);
+        assertEquals(3, page.size());
+        assertEquals("msg3", page.get(0).msg);
+        assertEquals("msg5", page.get(2).msg);
+        page = conversation.getMessagesBefore(page.get(0).getTimestampAsMilliseconds(), 3);
+        assertEquals(3, page.size());
+        assertEquals("msg0", page.get(0).msg);
+        assertEquals("msg2", page.get(2).msg);
+    }
+
+    @Test
+    public void clockOrderTest() {
+        HeliosConversation conversation = new HeliosConversation();
+        HybridLogicalClock clock = new HybridLogicalClock();
+        ZonedDateTime now = ZonedDateTime.now();
+        HeliosMessagePart first = new HeliosMessagePart("first", "sender",
+                UUID.randomUUID().toString(), "receiver", now.toString());
+        first.hlc = clock.now();
+        conversation.addMessage(first);
+
+        // A reply from a device with a clock ten minutes behind is still ordered after
+        HeliosMessagePart reply = new HeliosMessagePart("reply", "sender",
+                UUID.randomUUID().toString(), "receiver", now.minusMinutes(10).toString());
+        reply.hlc = clock.update(first.hlc);
+        conversation.addMessage(reply);
+        assertEquals("reply", conversation.messages.get(1).msg);
+
+        // Messages without a clock are ordered by their time stamp
+        HeliosMessagePart old = new HeliosMessagePart("old", "sender",
+                UUID.randomUUID().toString(), "receiver", now.minusMinutes(5).toString());
+        conversation.addMessage(old);
+        assertEquals("old", conversation.messages.get(0).msg);
+        assertEquals("reply", conversation.getLatestMessage().msg);
+    }
+
+    @Test
+    public void sequenceGapTest() {
+        HeliosConversation conversation = new HeliosConversation();
+        String sender = UUID.randomUUID().toString();
+        ZonedDateTime start = ZonedDateTime.now().minusHours(1);
+        for (long seq : new long[]{3, 4, 6, 9}) {
+            HeliosMessagePart msg = new HeliosMessagePart("msg" + seq, "sender", sender, "topic",
+                    start.plusMinutes(seq).toString());
+            msg.seq = seq;
+            conversation.addMessage(msg);
+        }
+        // Messages before the first one seen are not missing
+        assertEquals(4L, (long) conversation.getHighWaterMarks().get(sender));
+        assertEquals(9L, conversation.getLastSequence(sender));
+
+        HashMap<String, Long> remoteMarks = new HashMap<>();
+        remoteMarks.put(sender, 11L);
+        remoteMarks.put(UUID.randomUUID().toString(), 5L);
+        List<SequenceTracker.Gap> gaps = conversation.findSequenceGaps(remoteMarks, 100);
+        assertEquals(3, gaps.size());
+        assertEquals(5, gaps.get(0).getFrom());
+        assertEquals(5, gaps.get(0).getTo());
+        assertEquals(7, gaps.get(1).getFrom());
+        assertEquals(8, gaps.get(1).getTo());
+        assertEquals(10, gaps.get(2).getFrom());
+        assertEquals(11, gaps.get(2).getTo());
+        assertEquals(2, conversation.findSequenceGaps(remoteMarks, 3).size());
+
+        // Filling the gaps moves the mark
+        List<HeliosMessagePart> filled = new ArrayList<>();
+        for (long seq : new long[]{5, 7, 8}) {
+            HeliosMessagePart msg = new HeliosMessagePart("msg" + seq, "sender", sender, "topic",
+                    start.plusMinutes(seq).toString());
+            msg.seq = seq;
+            filled.add(msg);
+        }
+        conversation.addMessages(filled);
+        assertEquals(9L, (long) conversation.getHighWaterMarks().get(sender));
+        assertEquals(1, conversation.findSequenceGaps(remoteMarks, 100).size());
+    }
+
+    private static class TestHistory implements HeliosMessageHistory {
+        final List<HeliosMessagePart> messages = new ArrayList<>();
+
+        @Override
+        public List<HeliosMessagePart> loadMessages(String topic, long sinceMillis) {
+            List<HeliosMessagePart> result = new ArrayList<>();
+            for (HeliosMessagePart msg : messages) {
+                if (msg.getTimestampAsMilliseconds() > sinceMillis) {
+                    result.add(msg);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public List<HeliosMessagePart> loadMessagesBefore(String topic, long beforeMillis, int limit) {
+            List<HeliosMessagePart> result = new ArrayList<>();
+            for (HeliosMessagePart msg : messages) {
+                if (msg.getTimestampAsMilliseconds() < beforeMillis) {
+                    result.add(msg);
+                }
+            }
+            return new ArrayList<>(result.subList(Math.max(0, result.size() - limit), result.size()));
+        }
+
+        @Override
+        public boolean hasMessage(String uuid) {
+            for (HeliosMessagePart msg : messages) {
+                if (msg.uuid.equals(uuid)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     @After
     public void tearDown() {
 
@@ -0,0 +1,43 @@
+package eu.h2020.helios_social.core.messaging;
+
+import org.junit.Test;
+
+import eu.h2020.helios_social.core.messaging.util.HybridLogicalClock;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class HybridLogicalClockTest {
+
+    @Test
+    public void monotonicTest() {
+        HybridLogicalClock clock = new HybridLogicalClock();
+        long previous = clock.now();
+        for (int i = 0; i < 100000; i++) {
+            long next = clock.now();
+            assertTrue(next > previous);
+            previous = next;
+        }
+        // Close to the wall clock
+        assertTrue(Math.abs(HybridLogicalClock.toMillis(previous) - System.currentTimeMillis()) < 1000);
+    }
+
+    @Test
+    public void updateTest() {
+        HybridLogicalClock clock = new HybridLogicalClock();
+        long now = System.currentTimeMillis();
+
+        // A message from a peer ahead of us is followed
+        long remote = HybridLogicalClock.fromMillis(now + 60 * 1000) + 5;
+        assertEquals(remote + 1, clock.update(remote));
+        assertTrue(clock.now() > remote);
+
+        // A message from a peer behind us does not move the clock back
+        long before = clock.now();
+        assertTrue(clock.update(HybridLogicalClock.fromMillis(now - 60 * 1000)) > before);
+
+        // A clock too far ahead is not followed
+        long wrong = HybridLogicalClock.fromMillis(now + 2 * HybridLogicalClock.MAX_DRIFT);
+        assertTrue(clock.update(wrong) < wrong);
+    }
+}
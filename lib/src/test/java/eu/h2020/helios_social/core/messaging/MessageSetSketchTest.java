@@ -0,0 +1,70 @@
+package eu.h2020.helios_social.core.messaging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import eu.h2020.helios_social.core.messaging.data.MessageSetSketch;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+public class MessageSetSketchTest {
+
+    @Test
+    public void decodeDifferenceTest() {
+        List<String> common = randomUuids(1000);
+        List<String> onlyLocal = randomUuids(4);
+        List<String> onlyRemote = randomUuids(3);
+
+        MessageSetSketch local = new MessageSetSketch(MessageSetSketch.MIN_CELLS);
+        MessageSetSketch remote = new MessageSetSketch(MessageSetSketch.MIN_CELLS);
+        for (String uuid : common) {
+            local.add(uuid);
+            remote.add(uuid);
+        }
+        onlyLocal.forEach(local::add);
+        onlyRemote.forEach(remote::add);
+
+        // Sketch size depends on the difference, not on the number of messages
+        byte[] data = remote.toBytes();
+        assertTrue(data.length < 1000);
+
+        MessageSetSketch.Difference difference = local.subtract(MessageSetSketch.parse(data)).decode();
+        assertEquals(4, difference.getLocalKeys().size());
+        assertEquals(3, difference.getRemoteKeys().size());
+        for (String uuid : onlyLocal) {
+            assertTrue(difference.getLocalKeys().contains(MessageSetSketch.keyOf(uuid)));
+        }
+        for (String uuid : onlyRemote) {
+            assertTrue(difference.getRemoteKeys().contains(MessageSetSketch.keyOf(uuid)));
+        }
+
+        // Removed messages leave the sketch
+        onlyLocal.forEach(local::remove);
+        assertEquals(3, local.subtract(remote).decode().size());
+    }
+
+    @Test
+    public void differenceTooLargeTest() {
+        MessageSetSketch local = new MessageSetSketch(MessageSetSketch.MIN_CELLS);
+        randomUuids(200).forEach(local::add);
+        assertNull(local.subtract(new MessageSetSketch(MessageSetSketch.MIN_CELLS)).decode());
+
+        MessageSetSketch larger = new MessageSetSketch(600);
+        List<String> uuids = randomUuids(200);
+        uuids.forEach(larger::add);
+        assertEquals(200, larger.subtract(new MessageSetSketch(600)).decode().getLocalKeys().size());
+    }
+
+    private static List<String> randomUuids(int count) {
+        List<String> uuids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            uuids.add(UUID.randomUUID().toString());
+        }
+        return uuids;
+    }
+}
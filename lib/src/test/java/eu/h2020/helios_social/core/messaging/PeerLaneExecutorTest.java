@@ -0,0 +1,205 @@
+package eu.h2020.helios_social.core.messaging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.h2020.helios_social.core.messaging.util.PeerLaneExecutor;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class PeerLaneExecutorTest {
+
+    @Test
+    public void laneKeepsOrderTest() throws Exception {
+        PeerLaneExecutor lanes = new PeerLaneExecutor("test", 4);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Future<Integer>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            final int n = i;
+            futures.add(lanes.submit("peer", () -> {
+                order.add(n);
+                return n;
+            }));
+        }
+        for (Future<Integer> f : futures) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+        lanes.shutdown();
+    }
+
+    @Test
+    public void slowPeerDoesNotBlockOthersTest() throws Exception {
+        PeerLaneExecutor lanes = new PeerLaneExecutor("test", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+
+        // Queue several blocked sends to one slow peer
+        List<Future<Boolean>> slow = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            slow.add(lanes.submit("slow", () -> {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                boolean done = release.await(5, TimeUnit.SECONDS);
+                running.decrementAndGet();
+                return done;
+            }));
+        }
+
+        // Another peer should still get through
+        Future<String> fast = lanes.submit("fast", () -> "sent");
+        assertEquals("sent", fast.get(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        for (Future<Boolean> f : slow) {
+            assertTrue(f.get(5, TimeUnit.SECONDS));
+        }
+        // Sends to the same peer never overlap
+        assertEquals(1, maxRunning.get());
+        lanes.shutdown();
+    }
+
+    @Test
+    public void coalesceQueuedTasksTest() throws Exception {
+        PeerLaneExecutor lanes = new PeerLaneExecutor("test", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger(0);
+
+        // Block the lane, so that the following tasks stay queued
+        Future<Boolean> blocker = lanes.submit("peer", () -> release.await(5, TimeUnit.SECONDS));
+        Future<Integer> first = lanes.submit("peer", "status", runs::incrementAndGet);
+        Future<Integer> second = lanes.submit("peer", "status", runs::incrementAndGet);
+        Future<Integer> other = lanes.submit("peer", "other", runs::incrementAndGet);
+
+        assertTrue(first == second);
+        assertEquals(1, lanes.getShedCount());
+
+        release.countDown();
+        assertTrue(blocker.get(5, TimeUnit.SECONDS));
+        first.get(5, TimeUnit.SECONDS);
+        other.get(5, TimeUnit.SECONDS);
+        assertEquals(2, runs.get());
+        assertEquals(0, lanes.getQueuedTaskCount());
+        lanes.shutdown();
+    }
+
+    @Test
+    public void concurrentCoalesceTest() throws Exception {
+        PeerLaneExecutor lanes = new PeerLaneExecutor("test", 1, 64);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger(0);
+        Future<Boolean> blocker = lanes.submit("peer", () -> release.await(5, TimeUnit.SECONDS));
+
+        // Submitted at the same time, only one task of the key is queued
+        List<Future<Integer>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                futures.add(lanes.submit("peer", "status", runs::incrementAndGet));
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(8, futures.size());
+        for (Future<Integer> f : futures) {
+            assertTrue(f == futures.get(0));
+        }
+        assertEquals(1, lanes.getQueuedTaskCount());
+        assertEquals(7, lanes.getShedCount());
+
+        release.countDown();
+        assertTrue(blocker.get(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) futures.get(0).get(5, TimeUnit.SECONDS));
+        lanes.shutdown();
+    }
+
+    @Test
+    public void trySubmitDoesNotBlockTest() throws Exception {
+        PeerLaneExecutor lanes = new PeerLaneExecutor("test", 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Boolean> blocker = lanes.submit("peer", () -> release.await(5, TimeUnit.SECONDS));
+        Future<String> queued = lanes.trySubmit("peer", 10, () -> "queued");
+        assertTrue(queued != null);
+
+        // No queue slots left, shed without waiting
+        assertTrue(lanes.trySubmit("other", 10, () -> "shed") == null);
+        assertEquals(1, lanes.getShedCount());
+
+        release.countDown();
+        assertTrue(blocker.get(5, TimeUnit.SECONDS));
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+        // The slot of the shed task was never taken
+        assertTrue(lanes.trySubmit("other", 10, () -> "sent") != null);
+        lanes.shutdown();
+    }
+
+    @Test
+    public void shutdownTest() throws Exception {
+        PeerLaneExecutor lanes = new PeerLaneExecutor("test", 1, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // One running and one queued task fill the executor, a third submit blocks
+        Future<Boolean> running = lanes.submit("peer", () -> {
+            started.countDown();
+            return release.await(5, TimeUnit.SECONDS);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<String> queued = lanes.submit("peer", () -> "queued");
+        AtomicReference<Exception> rejected = new AtomicReference<>();
+        Thread blocked = new Thread(() -> {
+            try {
+                lanes.submit("other", () -> "blocked");
+            } catch (RejectedExecutionException e) {
+                rejected.set(e);
+            }
+        });
+        blocked.start();
+
+        // Queued tasks are cancelled and blocked submitters rejected
+        lanes.shutdown();
+        blocked.join(5000);
+        assertTrue(rejected.get() != null);
+        assertTrue(queued.isCancelled());
+        assertEquals(0, lanes.getQueuedTaskCount());
+
+        // The running task finishes, and its lane is not scheduled again
+        release.countDown();
+        assertTrue(running.get(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50 && lanes.getBusyLaneCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, lanes.getBusyLaneCount());
+        try {
+            lanes.submit("peer", () -> "late");
+            assertTrue(false);
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+    }
+}
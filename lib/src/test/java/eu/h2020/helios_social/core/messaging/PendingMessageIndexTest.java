@@ -0,0 +1,63 @@
+package eu.h2020.helios_social.core.messaging;
+
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+import eu.h2020.helios_social.core.messaging.db.PendingMessageIndex;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class PendingMessageIndexTest {
+
+    private HeliosMessagePart createMessage(String to, ZonedDateTime ts, String protocol) {
+        HeliosMessagePart msg = new HeliosMessagePart("test", "sender", "senderUUID", to, ts.toString());
+        msg.protocol = protocol;
+        return msg;
+    }
+
+    @Test
+    public void pendingMessagesTest() {
+        PendingMessageIndex index = new PendingMessageIndex();
+        ZonedDateTime now = ZonedDateTime.now();
+        HeliosMessagePart first = createMessage("peer", now.minusMinutes(2), "/test/proto");
+        HeliosMessagePart second = createMessage("peer", now.minusMinutes(1), "/test/proto");
+        HeliosMessagePart pubsub = createMessage("topic", now, MessagingConstants.PUB_SUB_PACKAGED);
+
+        index.update(second);
+        index.update(first);
+        index.update(pubsub);
+        assertTrue(index.hasPending(null, "peer"));
+        assertFalse(index.hasPending("topic"));
+
+        List<HeliosMessagePart> pending = index.getPending(0, "peer");
+        assertEquals(2, pending.size());
+        assertEquals(first.getUuid(), pending.get(0).getUuid());
+
+        // Delivered, stored again with the flag set
+        first.msgReceived = true;
+        index.update(first);
+        index.remove(second.getUuid());
+        assertFalse(index.hasPending("peer"));
+    }
+
+    @Test
+    public void awaitingAckTest() {
+        PendingMessageIndex index = new PendingMessageIndex();
+        HeliosMessagePart msg = createMessage("peer", ZonedDateTime.now(), "/test/proto");
+        index.update(msg);
+
+        // Sent, waiting for the ack
+        index.markAwaitingAck(msg.getUuid());
+        assertTrue(index.hasPending("peer"));
+        assertEquals(0, index.getPending(0, "peer").size());
+
+        // No ack in time, resend
+        index.setAckTimeout(0);
+        assertEquals(1, index.getPending(0, "peer").size());
+    }
+}
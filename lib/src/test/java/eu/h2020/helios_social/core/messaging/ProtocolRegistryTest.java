@@ -0,0 +1,135 @@
+package eu.h2020.helios_social.core.messaging;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+import eu.h2020.helios_social.core.messaging.data.JsonMessageConverter;
+import eu.h2020.helios_social.core.messaging.util.PeerLaneExecutor;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+public class ProtocolRegistryTest {
+
+    @Test
+    public void handlerLookupTest() {
+        ProtocolRegistry registry = new ProtocolRegistry();
+
+        ProtocolHandler chat = registry.get(MessagingConstants.HELIOS_DIRECT_CHAT_PROTO);
+        assertEquals(ProtocolHandler.Codec.RAW, chat.getCodec());
+        assertFalse(chat.isStored());
+
+        // Unknown protocols are stored and synced
+        ProtocolHandler app = registry.get("/test/app/1.0");
+        assertEquals(ProtocolHandler.Codec.MESSAGE_PART, app.getCodec());
+        assertTrue(app.isStored());
+        assertTrue(app.isSynced());
+        assertEquals(TrafficClass.CHAT, app.getTrafficClass());
+
+        // Opt out of sync, sync requires storage
+        registry.register(new ProtocolHandler("/test/app/1.0", true, false));
+        assertTrue(registry.get("/test/app/1.0").isStored());
+        assertFalse(registry.get("/test/app/1.0").isSynced());
+        registry.register(new ProtocolHandler("/test/app/1.0", false, true));
+        assertFalse(registry.get("/test/app/1.0").isSynced());
+
+        registry.unregister("/test/app/1.0");
+        assertTrue(registry.get("/test/app/1.0").isSynced());
+    }
+
+    @Test
+    public void interceptorOrderTest() {
+        ProtocolRegistry registry = new ProtocolRegistry();
+        List<String> calls = new ArrayList<>();
+        registry.addInterceptor(new TestInterceptor("a", calls));
+        registry.addInterceptor(new TestInterceptor("b", calls));
+
+        HeliosNetworkAddress address = new HeliosNetworkAddress();
+        byte[] sent = registry.interceptSend(address, "/test", "x".getBytes());
+        assertEquals("xab", new String(sent));
+        byte[] received = registry.interceptReceive(address, "/test", sent);
+        assertEquals("x", new String(received));
+        assertEquals("send a,send b,receive b,receive a", String.join(",", calls));
+
+        // Dropped messages are not passed on
+        calls.clear();
+        assertNull(registry.interceptSend(address, "/drop", "x".getBytes()));
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void inboundStatusCoalesceTest() throws Exception {
+        ProtocolHandler status = new ProtocolHandler(MessagingConstants.HELIOS_STATUS_PROTO,
+                ProtocolHandler.Codec.MESSAGE_PART, false, false, ProtocolHandler.Forwarding.WIRE,
+                TrafficClass.CONTROL, null, ProtocolHandler.BY_MESSAGE_TEXT);
+        byte[] first = createStatus("online");
+        byte[] second = createStatus("online");
+        byte[] other = createStatus("ack-online");
+
+        // Statuses of the same kind share a key, although their uuid and ts differ
+        assertEquals(status.getCoalesceKey(first), status.getCoalesceKey(second));
+        assertFalse(status.getCoalesceKey(first).equals(status.getCoalesceKey(other)));
+        assertNull(status.getCoalesceKey("not json".getBytes(StandardCharsets.UTF_8)));
+        assertNull(new ProtocolHandler("/test/app/1.0", true, true).getCoalesceKey(first));
+
+        // Received while the lane of the sender is busy, the second status is coalesced
+        PeerLaneExecutor lanes = new PeerLaneExecutor("test", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger(0);
+        Future<Boolean> busy = lanes.submit("peer", () -> release.await(5, TimeUnit.SECONDS));
+        Future<Integer> handledFirst = lanes.submit("peer", status.getCoalesceKey(first), handled::incrementAndGet);
+        Future<Integer> handledSecond = lanes.submit("peer", status.getCoalesceKey(second), handled::incrementAndGet);
+        Future<Integer> handledOther = lanes.submit("peer", status.getCoalesceKey(other), handled::incrementAndGet);
+        assertTrue(handledFirst == handledSecond);
+
+        release.countDown();
+        assertTrue(busy.get(5, TimeUnit.SECONDS));
+        handledFirst.get(5, TimeUnit.SECONDS);
+        handledOther.get(5, TimeUnit.SECONDS);
+        assertEquals(2, handled.get());
+        lanes.shutdown();
+    }
+
+    private static byte[] createStatus(String kind) {
+        HeliosMessagePart msg = new HeliosMessagePart(kind, "sender", "senderUUID",
+                MessagingConstants.HELIOS_STATUS_PROTO, ZonedDateTime.now().toString());
+        return JsonMessageConverter.getInstance().convertToJson(msg).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class TestInterceptor implements ProtocolInterceptor {
+        private final String mSuffix;
+        private final List<String> mCalls;
+
+        TestInterceptor(String suffix, List<String> calls) {
+            mSuffix = suffix;
+            mCalls = calls;
+        }
+
+        @Override
+        public byte[] onSend(HeliosNetworkAddress address, String protocolId, byte[] data) {
+            mCalls.add("send " + mSuffix);
+            if ("/drop".equals(protocolId)) {
+                return null;
+            }
+            return (new String(data) + mSuffix).getBytes();
+        }
+
+        @Override
+        public byte[] onReceive(HeliosNetworkAddress address, String protocolId, byte[] data) {
+            mCalls.add("receive " + mSuffix);
+            String text = new String(data);
+            return text.substring(0, text.length() - mSuffix.length()).getBytes();
+        }
+    }
+}
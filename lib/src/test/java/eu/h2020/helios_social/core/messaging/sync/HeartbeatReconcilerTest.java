@@ -0,0 +1,115 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
+import eu.h2020.helios_social.core.messaging.data.HeliosConversation;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Log.class})
+public class HeartbeatReconcilerTest {
+    private static final String TOPIC = "topic";
+    private long now;
+    private RecordingSyncManager syncManager;
+    private HeartbeatReconciler reconciler;
+
+    @Before
+    public void setUp() {
+        PowerMockito.mockStatic(Log.class);
+        now = System.currentTimeMillis();
+        syncManager = new RecordingSyncManager();
+        reconciler = new HeartbeatReconciler(HeartbeatManager.getInstance(), syncManager,
+                Runnable::run, () -> now);
+    }
+
+    @Test
+    public void unansweredGapTest() {
+        HeliosConversation local = new HeliosConversation();
+        local.topic.topic = TOPIC;
+        HeliosConversation remote = new HeliosConversation();
+        remote.topic.topic = TOPIC;
+        for (long seq = 1; seq <= 2; seq++) {
+            HeliosMessagePart msg = createMessage("alice", seq);
+            local.addMessage(msg);
+            remote.addMessage(new HeliosMessagePart(msg));
+        }
+        // The peer has a message we lack, but not the messages 3 and 4 of alice either
+        HeliosMessagePart other = createMessage("bob", 1);
+        remote.addMessage(other);
+
+        ZonedDateTime sinceTs = ZonedDateTime.now().minusDays(7);
+        HeliosMessagePart heartbeat = new HeliosMessagePart("heartbeat 1", "peer", "peer",
+                TOPIC, ZonedDateTime.now().toString(), HeliosMessagePart.MessagePartType.HEARTBEAT);
+        heartbeat.sinceTs = sinceTs.format(DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        heartbeat.syncSketch = remote.formatSketch(sinceTs, 64);
+        heartbeat.highWaterMarks = Collections.singletonMap("alice", 4L);
+        HeliosNetworkAddress address = new HeliosNetworkAddress();
+        address.setNetworkId("peer");
+
+        // The gaps are requested with the message we lack by the sketch
+        reconciler.submit(heartbeat, local, address);
+        assertEquals(1, syncManager.requests.size());
+        HeliosMessagePart request = syncManager.requests.get(0);
+        assertEquals(HeartbeatManager.SYNC_REQUEST_GAPS, request.msg);
+        List<HeliosMessagePart> requested = HeartbeatManager.getInstance().collectRequestedMessages(request, remote);
+        assertEquals(1, requested.size());
+        assertEquals(other.getUuid(), requested.get(0).getUuid());
+
+        // Not requested again while the request is live
+        now += 1000;
+        reconciler.submit(heartbeat, local, address);
+        assertEquals(1, syncManager.requests.size());
+
+        // Requested again after the deadline, and given up after the last attempt
+        long timeout = 2L * HeartbeatManager.getInstance().getHeartbeatInterval();
+        for (int attempt = 2; attempt <= HeartbeatReconciler.MAX_GAP_ATTEMPTS; attempt++) {
+            now += timeout;
+            reconciler.submit(heartbeat, local, address);
+            assertEquals(attempt, syncManager.requests.size());
+            assertEquals(HeartbeatManager.SYNC_REQUEST_GAPS, syncManager.requests.get(attempt - 1).msg);
+        }
+        now += timeout;
+        reconciler.submit(heartbeat, local, address);
+        assertEquals(HeartbeatReconciler.MAX_GAP_ATTEMPTS + 1, syncManager.requests.size());
+        assertEquals(HeartbeatManager.SYNC_REQUEST_KEYS, syncManager.requests.get(HeartbeatReconciler.MAX_GAP_ATTEMPTS).msg);
+        assertEquals(4, local.getHighWaterMarks().get("alice").longValue());
+        assertTrue(local.findSequenceGaps(heartbeat.highWaterMarks, 100).isEmpty());
+    }
+
+    private static HeliosMessagePart createMessage(String sender, long seq) {
+        HeliosMessagePart msg = new HeliosMessagePart("msg " + seq, sender, sender,
+                TOPIC, ZonedDateTime.now().minusMinutes(10).plusSeconds(seq).toString());
+        msg.seq = seq;
+        return msg;
+    }
+
+    private static class RecordingSyncManager extends SyncManager {
+        final List<HeliosMessagePart> requests = new ArrayList<>();
+
+        @Override
+        public void syncMessages(Iterable<HeliosMessagePart> messages, HeliosNetworkAddress address) {
+        }
+
+        @Override
+        public void sendSyncRequest(HeliosMessagePart request, HeliosNetworkAddress address) {
+            requests.add(request);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.h2020.helios_social.core.messaging.HeliosNetworkAddress;
+import eu.h2020.helios_social.core.messaging.data.HeliosMessagePart;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Log.class})
+public class HistoryBackfillTest {
+    private long now;
+    private RecordingSyncManager syncManager;
+    private HistoryBackfill backfill;
+
+    @Before
+    public void setUp() {
+        PowerMockito.mockStatic(Log.class);
+        now = 1000000;
+        syncManager = new RecordingSyncManager();
+        backfill = new HistoryBackfill(syncManager, () -> now);
+    }
+
+    @Test
+    public void timedOutBackfillIsRemovedTest() {
+        HeliosNetworkAddress peer = createAddress("peer");
+        backfill.request(peer, "topic", Long.MAX_VALUE, 10, 5);
+        assertEquals(1, syncManager.requests.size());
+        assertEquals(1, backfill.getPendingCount());
+
+        // A late response is rejected and the backfill forgotten
+        now += HistoryBackfill.REQUEST_TIMEOUT + 1;
+        assertTrue(backfill.readResponse(createResponse("topic"), peer) == null);
+        assertEquals(0, backfill.getPendingCount());
+    }
+
+    @Test
+    public void staleBackfillsAreSweptTest() {
+        backfill.request(createAddress("first"), "topic", Long.MAX_VALUE, 10, 5);
+        backfill.request(createAddress("second"), "topic", Long.MAX_VALUE, 10, 5);
+        assertEquals(2, backfill.getPendingCount());
+
+        // Unanswered backfills are dropped when a new one starts
+        now += HistoryBackfill.REQUEST_TIMEOUT + 1;
+        HeliosNetworkAddress third = createAddress("third");
+        backfill.request(third, "topic", Long.MAX_VALUE, 10, 5);
+        assertEquals(1, backfill.getPendingCount());
+        assertTrue(backfill.readResponse(createResponse("topic"), third) != null);
+    }
+
+    private static HeliosNetworkAddress createAddress(String networkId) {
+        HeliosNetworkAddress address = new HeliosNetworkAddress();
+        address.setNetworkId(networkId);
+        return address;
+    }
+
+    private static HeliosMessagePart createResponse(String topic) {
+        return new HeliosMessagePart(HistoryBackfill.SYNC_HISTORY_END, null, null, topic,
+                ZonedDateTime.now().toString(), HeliosMessagePart.MessagePartType.SYNC_RESPONSE);
+    }
+
+    private static class RecordingSyncManager extends SyncManager {
+        final List<HeliosMessagePart> requests = new ArrayList<>();
+
+        @Override
+        public void sendSyncRequest(HeliosMessagePart request, HeliosNetworkAddress address) {
+            requests.add(request);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package eu.h2020.helios_social.core.messaging.sync;
+
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Log.class})
+public class PeerCircuitBreakerTest {
+    private static final String PEER = "peer";
+    private static final long OPEN_TIMEOUT = 60 * 1000;
+    private long now;
+    private PeerCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        PowerMockito.mockStatic(Log.class);
+        now = 1000000;
+        breaker = new PeerCircuitBreaker(() -> now);
+        breaker.setFailureThreshold(3);
+        breaker.setOpenTimeout(OPEN_TIMEOUT);
+        breaker.setMinProbeInterval(10 * 1000);
+    }
+
+    @Test
+    public void opensAfterThresholdTest() {
+        breaker.onFailure(PEER);
+        breaker.onFailure(PEER);
+        assertEquals(PeerCircuitBreaker.State.CLOSED, breaker.getState(PEER));
+        assertTrue(breaker.allowRequest(PEER));
+
+        breaker.onFailure(PEER);
+        assertEquals(PeerCircuitBreaker.State.OPEN, breaker.getState(PEER));
+        assertTrue(breaker.isOpen(PEER));
+    }
+
+    @Test
+    public void failsFastWhileOpenTest() {
+        openCircuit();
+        AtomicInteger sends = new AtomicInteger(0);
+        try {
+            breaker.call(PEER, sends::incrementAndGet);
+            assertTrue(false);
+        } catch (PeerUnreachableException e) {
+            // Expected
+        }
+        assertEquals(0, sends.get());
+
+        // Still open just before the timeout
+        now += OPEN_TIMEOUT - 1;
+        assertFalse(breaker.allowRequest(PEER));
+    }
+
+    @Test
+    public void singleProbeWhenHalfOpenTest() {
+        openCircuit();
+        now += OPEN_TIMEOUT;
+        assertTrue(breaker.allowRequest(PEER));
+        assertEquals(PeerCircuitBreaker.State.HALF_OPEN, breaker.getState(PEER));
+        assertFalse(breaker.allowRequest(PEER));
+        assertFalse(breaker.allowRequest(PEER));
+    }
+
+    @Test
+    public void closesOnProbeSuccessTest() {
+        openCircuit();
+        now += OPEN_TIMEOUT;
+        breaker.call(PEER, () -> { });
+        assertEquals(PeerCircuitBreaker.State.CLOSED, breaker.getState(PEER));
+        assertTrue(breaker.allowRequest(PEER));
+
+        // Failures are counted from zero again
+        breaker.onFailure(PEER);
+        assertEquals(PeerCircuitBreaker.State.CLOSED, breaker.getState(PEER));
+    }
+
+    @Test
+    public void reopensOnProbeFailureTest() {
+        openCircuit();
+        now += OPEN_TIMEOUT;
+        try {
+            breaker.call(PEER, () -> {
+                throw new RuntimeException("dial failed");
+            });
+            assertTrue(false);
+        } catch (RuntimeException e) {
+            assertEquals("dial failed", e.getMessage());
+        }
+        assertEquals(PeerCircuitBreaker.State.OPEN, breaker.getState(PEER));
+        assertFalse(breaker.allowRequest(PEER));
+
+        // The open timeout starts again from the failed probe
+        now += OPEN_TIMEOUT - 1;
+        assertFalse(breaker.allowRequest(PEER));
+        now += 1;
+        assertTrue(breaker.allowRequest(PEER));
+    }
+
+    @Test
+    public void presenceStartsProbeTest() {
+        openCircuit();
+        breaker.onPresence(PEER);
+        assertEquals(PeerCircuitBreaker.State.OPEN, breaker.getState(PEER));
+
+        now += 10 * 1000;
+        breaker.onPresence(PEER);
+        assertEquals(PeerCircuitBreaker.State.HALF_OPEN, breaker.getState(PEER));
+        assertTrue(breaker.allowRequest(PEER));
+        assertFalse(breaker.allowRequest(PEER));
+    }
+
+    private void openCircuit() {
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(PEER);
+        }
+        assertTrue(breaker.isOpen(PEER));
+    }
+}